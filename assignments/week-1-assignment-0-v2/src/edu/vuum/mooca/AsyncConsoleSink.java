@@ -0,0 +1,192 @@
+package edu.vuum.mooca;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @class AsyncConsoleSink
+ *
+ * @brief Prints lines to a PrintStream from a background Thread so
+ *        that the Threads producing them don't pay for a
+ *        synchronized PrintStream write and flush per line.
+ *        println() just offers the preformatted line to a ring
+ *        buffer (an MPMCBlockingQueue), and the background Thread
+ *        drains whatever has accumulated and prints it with a single
+ *        write and flush.
+ *
+ *        println() never blocks: if the ring buffer is full the line
+ *        is dropped and counted, and the number of dropped lines is
+ *        reported in the output.  Call flush() to wait until every
+ *        line printed so far has been written, e.g., at the end of a
+ *        test.
+ */
+public class AsyncConsoleSink {
+    /**
+     * Default number of lines the ring buffer can hold.
+     */
+    static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * Maximum number of lines the background Thread prints with one
+     * write.
+     */
+    static final int MAX_BATCH = 1024;
+
+    /**
+     * The line separator appended to each line.
+     */
+    private static final String LINE_SEPARATOR =
+        System.getProperty("line.separator");
+
+    /**
+     * The ring buffer of lines waiting to be printed.  It also holds
+     * the CountDownLatches that flush() waits on.
+     */
+    private final MPMCBlockingQueue<Object> mLines;
+
+    /**
+     * Where the lines are printed.
+     */
+    private final PrintStream mOut;
+
+    /**
+     * Total number of lines dropped because the ring buffer was full.
+     */
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * Set once the background Thread has been started.
+     */
+    private final AtomicBoolean mStarted = new AtomicBoolean();
+
+    /**
+     * Constructor creates a sink that prints to out via a ring
+     * buffer of DEFAULT_CAPACITY lines.
+     */
+    public AsyncConsoleSink(PrintStream out) {
+        this(out, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor creates a sink that prints to out via a ring
+     * buffer of capacity lines.  The background Thread isn't started
+     * until the first line is printed.
+     */
+    public AsyncConsoleSink(PrintStream out, int capacity) {
+        mOut = out;
+        mLines = new MPMCBlockingQueue<Object>(capacity);
+    }
+
+    /**
+     * Print line followed by a line separator, or drop it if the
+     * ring buffer is full.
+     */
+    public void println(String line) {
+        start();
+        if (!mLines.offer(line))
+            mDropped.incrementAndGet();
+    }
+
+    /**
+     * Wait up to timeout until every line passed to println() before
+     * this call has been written and the PrintStream flushed.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean flush(long timeout, TimeUnit unit)
+        throws InterruptedException {
+        start();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        CountDownLatch flushed = new CountDownLatch(1);
+        if (!mLines.offer(flushed, timeout, unit))
+            return false;
+        return flushed.await(deadline - System.nanoTime(),
+                             TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the total number of lines dropped because the ring
+     * buffer was full.
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * Start the background Thread if it isn't already running.
+     */
+    private void start() {
+        if (mStarted.get() || !mStarted.compareAndSet(false, true))
+            return;
+
+        Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        writeLines();
+                    } catch (InterruptedException e) {
+                        // Nobody interrupts the writer, but exit
+                        // quietly if someone does.
+                    }
+                }
+            }, "AsyncConsoleSink");
+        // Don't keep the JVM alive just to print diagnostics.
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Runs in the background Thread, printing batches of lines as
+     * they arrive.
+     */
+    private void writeLines() throws InterruptedException {
+        List<Object> batch = new ArrayList<Object>(MAX_BATCH);
+        StringBuilder text = new StringBuilder();
+        long reportedDropped = 0;
+
+        for (;;) {
+            batch.add(mLines.take());
+            mLines.drainTo(batch, MAX_BATCH - 1);
+
+            for (Object element : batch)
+                if (element instanceof String)
+                    text.append((String) element).append(LINE_SEPARATOR);
+                else {
+                    // Everything before the latch must be written
+                    // before its flush() returns.
+                    reportedDropped = write(text, reportedDropped);
+                    ((CountDownLatch) element).countDown();
+                }
+
+            reportedDropped = write(text, reportedDropped);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Print text (and a note about any lines dropped since
+     * reportedDropped) with one write, flush the PrintStream and
+     * empty text.
+     *
+     * @return the number of dropped lines reported so far
+     */
+    private long write(StringBuilder text, long reportedDropped) {
+        long dropped = mDropped.get();
+        if (dropped != reportedDropped)
+            text.append("[")
+                .append(dropped - reportedDropped)
+                .append(" lines dropped]")
+                .append(LINE_SEPARATOR);
+
+        if (text.length() > 0) {
+            mOut.print(text);
+            mOut.flush();
+            text.setLength(0);
+        }
+        return dropped;
+    }
+}
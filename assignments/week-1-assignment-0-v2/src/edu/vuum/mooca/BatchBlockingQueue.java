@@ -0,0 +1,35 @@
+package edu.vuum.mooca;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @class BatchBlockingQueue
+ *
+ * @brief A BlockingQueue that can insert a whole batch of elements
+ *        for roughly the synchronization cost of inserting one.
+ *        BlockingQueue.drainTo() already provides the matching batch
+ *        removal operation.  QueueAdapter.putAll() uses offerAll()
+ *        when the queue it adapts implements this interface and
+ *        falls back to one offer() per element otherwise.
+ */
+public interface BatchBlockingQueue<E> extends BlockingQueue<E> {
+    /**
+     * Insert the elements of c at the tail of the queue in iteration
+     * order, waiting up to timeout for space to become available
+     * whenever the queue is full.
+     *
+     * @return the number of elements inserted, which is less than
+     *         c.size() only if timeout elapsed or the calling Thread
+     *         was interrupted while waiting after it had inserted
+     *         some elements (in which case its interrupt status is
+     *         set again)
+     * @throws InterruptedException if the calling Thread was
+     *         interrupted before any element was inserted
+     * @throws NullPointerException if an element of c is null, in
+     *         which case the elements before it have been inserted
+     */
+    int offerAll(Collection<? extends E> c, long timeout, TimeUnit unit)
+        throws InterruptedException;
+}
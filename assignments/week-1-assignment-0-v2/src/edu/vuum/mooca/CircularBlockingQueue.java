@@ -0,0 +1,501 @@
+package edu.vuum.mooca;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @class CircularBlockingQueue
+ *
+ * @brief Defines a bounded implementation of the BlockingQueue
+ *        interface that fixes everything BuggyBlockingQueue gets
+ *        wrong, using the classic monitor design: a fixed array
+ *        used as a circular buffer, guarded by a single
+ *        ReentrantLock, with a notFull Condition that producers wait
+ *        on and a notEmpty Condition that consumers wait on.
+ *
+ *        Unlike the ArrayList.remove(0) of BuggyBlockingQueue, which
+ *        shifts every remaining element, inserting and removing at
+ *        either end only moves an index, so both are O(1).  Since
+ *        every operation holds the same lock it is simple to reason
+ *        about, which makes it the baseline that the lock-free
+ *        queues are measured against.
+ */
+public class CircularBlockingQueue<E> extends AbstractQueue<E>
+                                      implements BatchBlockingQueue<E> {
+    /**
+     * The circular buffer that holds the elements.
+     */
+    private final Object[] mItems;
+
+    /**
+     * Index of the element at the head of the queue.
+     */
+    private int mTakeIndex;
+
+    /**
+     * Index at which the next element will be inserted.
+     */
+    private int mPutIndex;
+
+    /**
+     * Number of elements in the queue.
+     */
+    private int mCount;
+
+    /**
+     * Guards every access to the fields above.
+     */
+    private final ReentrantLock mLock;
+
+    /**
+     * Consumers wait on this for an element to be inserted.
+     */
+    private final Condition mNotEmpty;
+
+    /**
+     * Producers wait on this for an element to be removed.
+     */
+    private final Condition mNotFull;
+
+    /**
+     * Constructor creates a queue that holds up to capacity
+     * elements, whose lock doesn't favour the longest-waiting
+     * Thread.
+     */
+    public CircularBlockingQueue(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * Constructor creates a queue that holds up to capacity
+     * elements.  If fair is true, blocked Threads acquire the lock
+     * in the order they asked for it, at some cost in throughput.
+     */
+    public CircularBlockingQueue(int capacity, boolean fair) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity = " + capacity);
+        mItems = new Object[capacity];
+        mLock = new ReentrantLock(fair);
+        mNotEmpty = mLock.newCondition();
+        mNotFull = mLock.newCondition();
+    }
+
+    /**
+     * Returns the number of elements the queue can hold.
+     */
+    public int capacity() {
+        return mItems.length;
+    }
+
+    /**
+     * Returns the number of elements in this queue.
+     */
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of additional elements this queue can
+     * accept without blocking.
+     */
+    public int remainingCapacity() {
+        mLock.lock();
+        try {
+            return mItems.length - mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Insert e at the tail of the queue if there's room, returning
+     * false if the queue is full.
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+
+        mLock.lock();
+        try {
+            if (mCount == mItems.length)
+                return false;
+            enqueue(e);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Insert e at the tail of the queue, waiting up to timeout for
+     * space to become available.
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        if (e == null)
+            throw new NullPointerException();
+
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == mItems.length) {
+                if (nanos <= 0)
+                    return false;
+                nanos = mNotFull.awaitNanos(nanos);
+            }
+            enqueue(e);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Insert e at the tail of the queue, waiting as long as
+     * necessary for space to become available.
+     */
+    public void put(E e) throws InterruptedException {
+        if (e == null)
+            throw new NullPointerException();
+
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == mItems.length)
+                mNotFull.await();
+            enqueue(e);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Insert the elements of c at the tail of the queue, acquiring
+     * the lock once per run of elements that fit rather than once
+     * per element.
+     */
+    public int offerAll(Collection<? extends E> c, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        int count = 0;
+        mLock.lockInterruptibly();
+        try {
+            for (E e : c) {
+                if (e == null)
+                    throw new NullPointerException();
+
+                while (mCount == mItems.length) {
+                    if (nanos <= 0)
+                        return count;
+                    try {
+                        nanos = mNotFull.awaitNanos(nanos);
+                    } catch (InterruptedException ex) {
+                        if (count == 0)
+                            throw ex;
+                        // Report the partial batch to the caller.
+                        Thread.currentThread().interrupt();
+                        return count;
+                    }
+                }
+                enqueue(e);
+                count++;
+            }
+            return count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue, returning null if
+     * the queue is empty.
+     */
+    public E poll() {
+        mLock.lock();
+        try {
+            return mCount == 0 ? null : dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting up to
+     * timeout for one to become available.
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0) {
+                if (nanos <= 0)
+                    return null;
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting as long
+     * as necessary for one to become available.
+     */
+    public E take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0)
+                mNotEmpty.await();
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the element at the head of the queue without removing
+     * it, or null if the queue is empty.
+     */
+    public E peek() {
+        mLock.lock();
+        try {
+            return itemAt(mTakeIndex);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the queue contains an element equal to o.
+     */
+    public boolean contains(Object o) {
+        if (o == null)
+            return false;
+
+        mLock.lock();
+        try {
+            for (int i = 0, index = mTakeIndex; i < mCount; i++, index = inc(index))
+                if (o.equals(mItems[index]))
+                    return true;
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Remove the first element equal to o from the queue, if there
+     * is one.
+     */
+    public boolean remove(Object o) {
+        if (o == null)
+            return false;
+
+        mLock.lock();
+        try {
+            for (int i = 0, index = mTakeIndex; i < mCount; i++, index = inc(index))
+                if (o.equals(mItems[index])) {
+                    removeAt(index);
+                    return true;
+                }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Remove every element from the queue.
+     */
+    public void clear() {
+        mLock.lock();
+        try {
+            for (int i = 0, index = mTakeIndex; i < mCount; i++, index = inc(index))
+                mItems[index] = null;
+            mTakeIndex = mPutIndex = mCount = 0;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the elements of the queue in order from head to tail.
+     */
+    public Object[] toArray() {
+        mLock.lock();
+        try {
+            Object[] a = new Object[mCount];
+            for (int i = 0, index = mTakeIndex; i < mCount; i++, index = inc(index))
+                a[i] = mItems[index];
+            return a;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all available elements and adds them to c.
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes at most maxElements available elements and adds them
+     * to c, holding the lock once for all of them.
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+
+        mLock.lock();
+        try {
+            int count = 0;
+            while (count < maxElements && mCount > 0) {
+                // Dequeue before adding, so that an exception from c
+                // can't leave an element both in c and in the queue.
+                c.add(dequeue());
+                count++;
+            }
+            return count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the elements that were
+     * in the queue when it was called.  Its remove() removes the
+     * last element it returned from the queue, if that element is
+     * still there.
+     */
+    public Iterator<E> iterator() {
+        final List<E> snapshot = new ArrayList<E>(mItems.length);
+        mLock.lock();
+        try {
+            for (int i = 0, index = mTakeIndex; i < mCount; i++, index = inc(index))
+                snapshot.add(itemAt(index));
+        } finally {
+            mLock.unlock();
+        }
+
+        return new Iterator<E>() {
+            private int mNext = 0;
+            private E mLast = null;
+
+            public boolean hasNext() {
+                return mNext < snapshot.size();
+            }
+
+            public E next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                mLast = snapshot.get(mNext++);
+                return mLast;
+            }
+
+            public void remove() {
+                if (mLast == null)
+                    throw new IllegalStateException();
+                removeIdentical(mLast);
+                mLast = null;
+            }
+        };
+    }
+
+    /**
+     * Returns the element at index, or null if the slot is empty.
+     */
+    @SuppressWarnings("unchecked")
+    private E itemAt(int index) {
+        return (E) mItems[index];
+    }
+
+    /**
+     * Returns the index after index, wrapping around the buffer.
+     */
+    private int inc(int index) {
+        return ++index == mItems.length ? 0 : index;
+    }
+
+    /**
+     * Store e at the tail and wake up a consumer.  Must be called
+     * with the lock held and the queue not full.
+     */
+    private void enqueue(E e) {
+        mItems[mPutIndex] = e;
+        mPutIndex = inc(mPutIndex);
+        mCount++;
+        mNotEmpty.signal();
+    }
+
+    /**
+     * Remove the element at the head and wake up a producer.  Must
+     * be called with the lock held and the queue not empty.
+     */
+    private E dequeue() {
+        E e = itemAt(mTakeIndex);
+        mItems[mTakeIndex] = null;
+        mTakeIndex = inc(mTakeIndex);
+        mCount--;
+        mNotFull.signal();
+        return e;
+    }
+
+    /**
+     * Remove the element at index from the middle of the queue by
+     * shifting the elements after it towards the head.  Must be
+     * called with the lock held.
+     */
+    private void removeAt(int index) {
+        if (index == mTakeIndex) {
+            dequeue();
+            return;
+        }
+
+        for (;;) {
+            int next = inc(index);
+            if (next == mPutIndex) {
+                mItems[index] = null;
+                mPutIndex = index;
+                break;
+            }
+            mItems[index] = mItems[next];
+            index = next;
+        }
+        mCount--;
+        mNotFull.signal();
+    }
+
+    /**
+     * Remove the element that is e itself (rather than equal to it),
+     * if it's still in the queue.
+     */
+    private void removeIdentical(Object e) {
+        mLock.lock();
+        try {
+            for (int i = 0, index = mTakeIndex; i < mCount; i++, index = inc(index))
+                if (mItems[index] == e) {
+                    removeAt(index);
+                    return;
+                }
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @class Diagnostics
+ *
+ * @brief Prints the diagnostic output of whichever test is running,
+ *        if SynchronizedQueue.diagnosticsEnabled was set when it
+ *        started.  The output is printed in a background Thread by
+ *        an AsyncConsoleSink, so that enabling diagnostics doesn't
+ *        make the Threads under test contend for System.out.  The
+ *        queues and consumer groups report the exceptions that end
+ *        their own Threads here too.
+ */
+public class Diagnostics {
+    /**
+     * Prints the diagnostic output in a background Thread.
+     */
+    static final AsyncConsoleSink sConsole =
+        new AsyncConsoleSink(System.out);
+
+    /**
+     * Whether the running test has diagnostics enabled.
+     */
+    private static volatile boolean sEnabled;
+
+    /**
+     * The name of the running test, which each diagnostic includes.
+     */
+    private static volatile String sTestName;
+
+    /**
+     * Record that the test called testName is starting, and whether
+     * it should print diagnostics.
+     */
+    static void startTest(String testName, boolean enabled) {
+        sTestName = testName;
+        sEnabled = enabled;
+    }
+
+    /**
+     * Returns true if the running test has diagnostics enabled, so
+     * callers needn't build a line that won't be printed.
+     */
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Print line, if diagnostics are enabled.
+     */
+    static void println(String line) {
+        if (sEnabled)
+            sConsole.println(line);
+    }
+
+    /**
+     * Print a diagnostic explaining that exception e ended the
+     * runnable called where, if diagnostics are enabled.
+     */
+    static void print(String where, Exception e) {
+        if (!sEnabled)
+            return;
+
+        if (e instanceof InterruptedException)
+            sConsole.println("Thread "
+                             + Thread.currentThread().getId()
+                             + " in test "
+                             + sTestName
+                             + " properly interrupted by "
+                             + e.toString() + " in " + where);
+        else
+            sConsole.println("Thread "
+                             + Thread.currentThread().getId()
+                             + " in test "
+                             + sTestName
+                             + " Exception "
+                             + e.toString()
+                             + " occurred in " + where);
+    }
+
+    /**
+     * Wait for the diagnostic output printed so far to appear on the
+     * console, if diagnostics are enabled.
+     */
+    static void flush() throws InterruptedException {
+        if (sEnabled)
+            sConsole.flush(SynchronizedQueue.TIMEOUT_SECONDS,
+                           TimeUnit.SECONDS);
+    }
+}
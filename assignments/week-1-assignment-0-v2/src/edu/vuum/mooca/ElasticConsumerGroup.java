@@ -0,0 +1,503 @@
+package edu.vuum.mooca;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @class ElasticConsumerGroup
+ *
+ * @brief A group of consumer Threads that take elements from a
+ *        bounded BlockingQueue and pass them to a Handler.  The
+ *        group grows while producers outpace it and shrinks back
+ *        once they don't.  Unlike a single consumerRunnable, it can
+ *        absorb a burst of elements before the queue fills and the
+ *        producers' offer() times out, without keeping the extra
+ *        Threads around once the burst has passed.
+ *
+ *        A monitor Thread samples the queue every sampleMillis.  It
+ *        measures how full the queue is, how fast elements arrive
+ *        and are drained, and how much of their time the consumers
+ *        spend in the Handler.  It adds consumers when the queue is
+ *        above the high watermark, or when elements arrive faster
+ *        than they're drained and the queue isn't nearly empty.  It
+ *        adds enough consumers to match the arrival rate, or doubles
+ *        them while the queue is full (since blocked producers hide
+ *        the real arrival rate), up to maxConsumers.  It retires
+ *        consumers when the queue is below the low watermark and the
+ *        remaining consumers would still be mostly idle, but never
+ *        more than half of them at once and never below
+ *        minConsumers.
+ *
+ *        Either condition has to hold for several samples in a row
+ *        before the group changes size, and scaling down needs more
+ *        samples than scaling up.  Together with the gap between the
+ *        watermarks, this hysteresis stops the group from flapping
+ *        between sizes under a steady load.  Each change is reported
+ *        to the Listeners as a ScalingEvent and is kept for
+ *        getEvents().
+ */
+public class ElasticConsumerGroup<E> {
+    /**
+     * @class Handler
+     *
+     * @brief The work done on each element.
+     */
+    public interface Handler<E> {
+        void process(E element);
+    }
+
+    /**
+     * @class ScalingEvent
+     *
+     * @brief Records a change in the number of consumers and the
+     *        measurements that caused it.
+     */
+    public static class ScalingEvent {
+        /**
+         * When the change was made, in System.currentTimeMillis()
+         * time.
+         */
+        public final long mTimeMillis;
+
+        /**
+         * The number of consumers before and after the change.
+         */
+        public final int mFrom;
+        public final int mTo;
+
+        /**
+         * The fraction of the queue's capacity in use.
+         */
+        public final double mOccupancy;
+
+        /**
+         * The number of elements per second that arrived in and
+         * were drained from the queue over the last sample.
+         */
+        public final double mArrivalRate;
+        public final double mDrainRate;
+
+        ScalingEvent(long timeMillis,
+                     int from,
+                     int to,
+                     double occupancy,
+                     double arrivalRate,
+                     double drainRate) {
+            mTimeMillis = timeMillis;
+            mFrom = from;
+            mTo = to;
+            mOccupancy = occupancy;
+            mArrivalRate = arrivalRate;
+            mDrainRate = drainRate;
+        }
+
+        /**
+         * Returns a one line summary of the change.
+         */
+        public String toString() {
+            return String.format("%3d -> %3d consumers, %5.1f%% full, %12.0f arriving/sec, %12.0f drained/sec",
+                                 mFrom,
+                                 mTo,
+                                 mOccupancy * 100,
+                                 mArrivalRate,
+                                 mDrainRate);
+        }
+    }
+
+    /**
+     * @class Listener
+     *
+     * @brief Is told about each change in the number of consumers,
+     *        on the monitor Thread.
+     */
+    public interface Listener {
+        void onScale(ScalingEvent event);
+    }
+
+    /**
+     * How long an idle consumer waits for an element before checking
+     * whether it should retire.
+     */
+    static final long POLL_MILLIS = 10;
+
+    /**
+     * A consumer is only retired if the others would then be busy
+     * for less than this fraction of the time.
+     */
+    static final double RETIRE_UTILIZATION = 0.7;
+
+    /**
+     * The queue that elements are taken from.
+     */
+    private final BlockingQueue<E> mQueue;
+
+    /**
+     * The work done on each element.
+     */
+    private final Handler<E> mHandler;
+
+    /**
+     * The least and most consumers there may be.
+     */
+    private final int mMinConsumers;
+    private final int mMaxConsumers;
+
+    /**
+     * Makes the Threads of the monitor and the consumers.
+     */
+    private final ThreadFactory mThreadFactory;
+
+    /**
+     * The fractions of the queue's capacity in use above which the
+     * group grows and below which it shrinks.
+     */
+    private volatile double mLowWatermark = 0.25;
+    private volatile double mHighWatermark = 0.75;
+
+    /**
+     * How often the monitor samples the queue.
+     */
+    private volatile long mSampleMillis = 50;
+
+    /**
+     * How many samples in a row must call for growing or shrinking
+     * the group before it's done.
+     */
+    private volatile int mScaleUpSamples = 2;
+    private volatile int mScaleDownSamples = 20;
+
+    /**
+     * The number of consumers the monitor wants.
+     */
+    private volatile int mTarget;
+
+    /**
+     * The number of consumers that are running.
+     */
+    private final AtomicInteger mLive = new AtomicInteger();
+
+    /**
+     * The number of elements the consumers have handled.
+     */
+    private final AtomicLong mProcessed = new AtomicLong();
+
+    /**
+     * The time the consumers have spent in the Handler.
+     */
+    private final AtomicLong mBusyNanos = new AtomicLong();
+
+    /**
+     * The Threads of the monitor and of the running consumers.
+     */
+    private final List<Thread> mThreads = new CopyOnWriteArrayList<Thread>();
+
+    /**
+     * The Listeners told about each ScalingEvent.
+     */
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Every ScalingEvent so far.
+     */
+    private final List<ScalingEvent> mEvents = new CopyOnWriteArrayList<ScalingEvent>();
+
+    /**
+     * The largest number of consumers there have been.
+     */
+    private volatile int mPeakConsumers;
+
+    /**
+     * Cleared by shutdown().
+     */
+    private volatile boolean mRunning = true;
+
+    /**
+     * Constructor takes elements from queue, which must be bounded
+     * since the group scales by how full it is, and passes them to
+     * handler on between minConsumers and maxConsumers Threads made
+     * by threadFactory.
+     *
+     * @throws IllegalArgumentException if queue is unbounded (i.e.,
+     *         its remainingCapacity() is Integer.MAX_VALUE).
+     */
+    public ElasticConsumerGroup(BlockingQueue<E> queue,
+                                Handler<E> handler,
+                                int minConsumers,
+                                int maxConsumers,
+                                ThreadFactory threadFactory) {
+        if (minConsumers < 1 || maxConsumers < minConsumers)
+            throw new IllegalArgumentException("minConsumers = " + minConsumers
+                                               + ", maxConsumers = " + maxConsumers);
+        if (queue.remainingCapacity() == Integer.MAX_VALUE)
+            throw new IllegalArgumentException("queue is unbounded");
+        mQueue = queue;
+        mHandler = handler;
+        mMinConsumers = minConsumers;
+        mMaxConsumers = maxConsumers;
+        mThreadFactory = threadFactory;
+    }
+
+    /**
+     * Grow the group when the queue is more than high full and
+     * shrink it when it's less than low full.  Must be called
+     * before start().
+     */
+    public void setWatermarks(double low, double high) {
+        if (low < 0 || high > 1 || low >= high)
+            throw new IllegalArgumentException("low = " + low + ", high = " + high);
+        mLowWatermark = low;
+        mHighWatermark = high;
+    }
+
+    /**
+     * Sample the queue every sampleMillis, and grow the group after
+     * upSamples samples in a row call for it or shrink it after
+     * downSamples do.  Must be called before start().
+     */
+    public void setSampling(long sampleMillis, int upSamples, int downSamples) {
+        if (sampleMillis < 1 || upSamples < 1 || downSamples < 1)
+            throw new IllegalArgumentException();
+        mSampleMillis = sampleMillis;
+        mScaleUpSamples = upSamples;
+        mScaleDownSamples = downSamples;
+    }
+
+    /**
+     * Tell listener about each change in the number of consumers.
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Returns every change in the number of consumers so far.
+     */
+    public List<ScalingEvent> getEvents() {
+        return new ArrayList<ScalingEvent>(mEvents);
+    }
+
+    /**
+     * Returns the number of consumers that are running.
+     */
+    public int getConsumers() {
+        return mLive.get();
+    }
+
+    /**
+     * Returns the largest number of consumers there have been.
+     */
+    public int getPeakConsumers() {
+        return mPeakConsumers;
+    }
+
+    /**
+     * Returns the number of elements the consumers have handled.
+     */
+    public long getProcessed() {
+        return mProcessed.get();
+    }
+
+    /**
+     * Start minConsumers consumers and the monitor.
+     */
+    public void start() {
+        mTarget = mMinConsumers;
+        addConsumers();
+        Thread monitor = mThreadFactory.newThread(new Runnable() {
+                public void run() {
+                    monitor();
+                }
+            });
+        mThreads.add(monitor);
+        monitor.start();
+    }
+
+    /**
+     * Stop the monitor and the consumers, which finish the elements
+     * they're handling, and wait for them.  Any elements left in the
+     * queue stay there.
+     */
+    public void shutdown() throws InterruptedException {
+        mRunning = false;
+        for (Thread thread : mThreads)
+            thread.interrupt();
+        for (Thread thread : mThreads)
+            thread.join();
+    }
+
+    /**
+     * Start consumers until there are mTarget of them.
+     */
+    private void addConsumers() {
+        while (mRunning) {
+            int live = mLive.get();
+            if (live >= mTarget)
+                break;
+            if (!mLive.compareAndSet(live, live + 1))
+                continue;
+            mPeakConsumers = Math.max(mPeakConsumers, live + 1);
+
+            Thread consumer = mThreadFactory.newThread(new Runnable() {
+                    public void run() {
+                        consume();
+                    }
+                });
+            mThreads.add(consumer);
+            consumer.start();
+        }
+    }
+
+    /**
+     * Handle elements until shutdown(), or until there are more
+     * consumers than mTarget, in which case this one retires.
+     */
+    private void consume() {
+        try {
+            while (mRunning) {
+                int live = mLive.get();
+                if (live > mTarget) {
+                    if (mLive.compareAndSet(live, live - 1))
+                        return;
+                    continue;
+                }
+
+                E e = mQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (e == null)
+                    continue;
+                long start = System.nanoTime();
+                try {
+                    mHandler.process(e);
+                } catch (RuntimeException ex) {
+                    // Don't let one bad element kill the consumer.
+                    Diagnostics.print("ElasticConsumerGroup", ex);
+                }
+                mBusyNanos.addAndGet(System.nanoTime() - start);
+                mProcessed.incrementAndGet();
+            }
+            mLive.decrementAndGet();
+        } catch (InterruptedException e) {
+            // Interrupted by shutdown().
+            mLive.decrementAndGet();
+        } finally {
+            mThreads.remove(Thread.currentThread());
+        }
+    }
+
+    /**
+     * Sample the queue every mSampleMillis and change mTarget when
+     * the samples call for it.
+     */
+    private void monitor() {
+        // A long, since the sum overflows an int for a queue that's
+        // bounded close to Integer.MAX_VALUE.
+        long capacity = (long) mQueue.size() + mQueue.remainingCapacity();
+        long lastTime = System.nanoTime();
+        long lastProcessed = mProcessed.get();
+        long lastBusy = mBusyNanos.get();
+        int lastSize = mQueue.size();
+        int upSamples = 0;
+        int downSamples = 0;
+
+        try {
+            while (mRunning) {
+                Thread.sleep(mSampleMillis);
+
+                long now = System.nanoTime();
+                long processed = mProcessed.get();
+                long busy = mBusyNanos.get();
+                int size = mQueue.size();
+                double seconds = (now - lastTime) / (double) TimeUnit.SECONDS.toNanos(1);
+
+                // Whatever wasn't drained is still in the queue.
+                long drained = processed - lastProcessed;
+                long arrived = drained + size - lastSize;
+                double drainRate = drained / seconds;
+                double arrivalRate = Math.max(0, arrived) / seconds;
+                double occupancy = capacity == 0 ? 0 : size / (double) capacity;
+                int consumers = mTarget;
+                double utilization =
+                    (busy - lastBusy) / ((double) (now - lastTime) * consumers);
+
+                lastTime = now;
+                lastProcessed = processed;
+                lastBusy = busy;
+                lastSize = size;
+
+                if (occupancy >= mHighWatermark
+                    || (occupancy > mLowWatermark && arrivalRate > drainRate)) {
+                    downSamples = 0;
+                    if (++upSamples >= mScaleUpSamples && consumers < mMaxConsumers) {
+                        int wanted;
+                        if (occupancy >= mHighWatermark)
+                            // Producers are blocked, so the arrival
+                            // rate only shows what we drain; double
+                            // up until the queue empties.
+                            wanted = consumers * 2;
+                        else
+                            // Add enough consumers to keep up with the
+                            // arrivals, assuming each drains at the
+                            // rate they do now.
+                            wanted = Math.max(consumers + 1,
+                                              (int) Math.ceil(consumers * arrivalRate
+                                                              / Math.max(drainRate, 1)));
+                        scale(consumers, Math.min(wanted, mMaxConsumers),
+                              occupancy, arrivalRate, drainRate);
+                        upSamples = 0;
+                    }
+                } else if (occupancy <= mLowWatermark
+                           && consumers > mMinConsumers
+                           && utilization * consumers / (consumers - 1)
+                              < RETIRE_UTILIZATION) {
+                    upSamples = 0;
+                    if (++downSamples >= mScaleDownSamples) {
+                        // Retire as many consumers as the others can
+                        // cover for, but no more than half at once.
+                        int needed = (int) Math.ceil(utilization * consumers
+                                                     / RETIRE_UTILIZATION);
+                        scale(consumers,
+                              Math.max(mMinConsumers,
+                                       Math.max(needed, consumers / 2)),
+                              occupancy, arrivalRate, drainRate);
+                        downSamples = 0;
+                    }
+                } else {
+                    upSamples = 0;
+                    downSamples = 0;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Interrupted by shutdown().
+        } finally {
+            mThreads.remove(Thread.currentThread());
+        }
+    }
+
+    /**
+     * Change the number of consumers from from to to, and report it.
+     */
+    private void scale(int from,
+                       int to,
+                       double occupancy,
+                       double arrivalRate,
+                       double drainRate) {
+        mTarget = to;
+        // Surplus consumers retire themselves.
+        addConsumers();
+
+        ScalingEvent event = new ScalingEvent(System.currentTimeMillis(),
+                                              from,
+                                              to,
+                                              occupancy,
+                                              arrivalRate,
+                                              drainRate);
+        mEvents.add(event);
+        for (Listener listener : mListeners)
+            listener.onScale(event);
+    }
+}
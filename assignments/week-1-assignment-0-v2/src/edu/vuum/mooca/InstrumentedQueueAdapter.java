@@ -0,0 +1,189 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.vuum.mooca.SynchronizedQueue.QueueAdapter;
+
+/**
+ * @class InstrumentedQueueAdapter
+ *
+ * @brief A QueueAdapter that measures where the time goes while the
+ *        queue is under load, without needing a profiler.  It
+ *        records:
+ *
+ *        - how long each put() and take() takes, in
+ *          LatencyHistograms,
+ *        - how often and for how long producers stalled because the
+ *          queue was full and consumers stalled because it was
+ *          empty, and
+ *        - the number of elements in the queue, sampled every
+ *          OCCUPANCY_SAMPLE_INTERVAL take()s.
+ *
+ *        put() and take() first try to complete without waiting, so
+ *        a call only counts as a stall if that attempt fails.  Calls
+ *        that time out or are interrupted count towards the stall
+ *        time but not towards the latency histograms.  Only
+ *        put() and take() are instrumented; putAll() and drainTo()
+ *        are passed straight through.
+ */
+public class InstrumentedQueueAdapter<E> extends QueueAdapter<E> {
+    /**
+     * The queue occupancy is sampled once every this many take()s,
+     * which must be a power of two.
+     */
+    static final int OCCUPANCY_SAMPLE_INTERVAL = 64;
+
+    /**
+     * How long each put() took.
+     */
+    private final LatencyHistogram mPutLatency = new LatencyHistogram();
+
+    /**
+     * How long each take() took.
+     */
+    private final LatencyHistogram mTakeLatency = new LatencyHistogram();
+
+    /**
+     * The sampled number of elements in the queue.  It's a histogram
+     * of element counts rather than of latencies.
+     */
+    private final LatencyHistogram mOccupancy = new LatencyHistogram();
+
+    /**
+     * The number of put()s that found the queue full and the total
+     * time they spent waiting.
+     */
+    private final AtomicLong mProducerStalls = new AtomicLong();
+    private final AtomicLong mProducerStallNanos = new AtomicLong();
+
+    /**
+     * The number of take()s that found the queue empty and the total
+     * time they spent waiting.
+     */
+    private final AtomicLong mConsumerStalls = new AtomicLong();
+    private final AtomicLong mConsumerStallNanos = new AtomicLong();
+
+    /**
+     * Store the queue that we're adapting.
+     */
+    public InstrumentedQueueAdapter(BlockingQueue<E> queue) {
+        super(queue);
+    }
+
+    /**
+     * Store the queue that we're adapting and the WaitStrategy used
+     * to wait for it.
+     */
+    public InstrumentedQueueAdapter(BlockingQueue<E> queue,
+                                    WaitStrategy waitStrategy) {
+        super(queue, waitStrategy);
+    }
+
+    /**
+     * Insert msg at the tail of the queue, recording how long it took
+     * and whether it stalled.
+     *
+     * @throws TimeoutException and InterruptedException
+     */
+    public void put(E msg) throws InterruptedException, TimeoutException {
+        long start = System.nanoTime();
+        if (!tryPut(msg)) {
+            mProducerStalls.incrementAndGet();
+            try {
+                super.put(msg);
+            } finally {
+                mProducerStallNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+        mPutLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Remove msg from the head of the queue, recording how long it
+     * took, whether it stalled and (periodically) how full the queue
+     * was.
+     *
+     * @throws TimeoutException and InterruptedException
+     */
+    public E take() throws InterruptedException, TimeoutException {
+        long start = System.nanoTime();
+        E rValue = tryTake();
+        if (rValue == null) {
+            mConsumerStalls.incrementAndGet();
+            try {
+                rValue = super.take();
+            } finally {
+                mConsumerStallNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+        mTakeLatency.record(System.nanoTime() - start);
+
+        if ((mTakeLatency.getCount() & (OCCUPANCY_SAMPLE_INTERVAL - 1)) == 0)
+            mOccupancy.record(size());
+        return rValue;
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public void reset() {
+        mPutLatency.reset();
+        mTakeLatency.reset();
+        mOccupancy.reset();
+        mProducerStalls.set(0);
+        mProducerStallNanos.set(0);
+        mConsumerStalls.set(0);
+        mConsumerStallNanos.set(0);
+    }
+
+    /**
+     * Returns the histogram of put() latencies.
+     */
+    public LatencyHistogram getPutLatency() {
+        return mPutLatency;
+    }
+
+    /**
+     * Returns the histogram of take() latencies.
+     */
+    public LatencyHistogram getTakeLatency() {
+        return mTakeLatency;
+    }
+
+    /**
+     * Returns the histogram of sampled queue occupancy.
+     */
+    public LatencyHistogram getOccupancy() {
+        return mOccupancy;
+    }
+
+    /**
+     * Returns the number of put()s that found the queue full.
+     */
+    public long getProducerStalls() {
+        return mProducerStalls.get();
+    }
+
+    /**
+     * Returns the total time put()s spent waiting for space.
+     */
+    public long getProducerStallNanos() {
+        return mProducerStallNanos.get();
+    }
+
+    /**
+     * Returns the number of take()s that found the queue empty.
+     */
+    public long getConsumerStalls() {
+        return mConsumerStalls.get();
+    }
+
+    /**
+     * Returns the total time take()s spent waiting for elements.
+     */
+    public long getConsumerStallNanos() {
+        return mConsumerStallNanos.get();
+    }
+}
@@ -0,0 +1,255 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @class IntBlockingQueue
+ *
+ * @brief A bounded blocking queue of primitive ints that's backed by
+ *        an int[] ring buffer.  It's modeled on
+ *        java.util.concurrent.ArrayBlockingQueue (one ReentrantLock
+ *        with notFull and notEmpty Conditions), but since elements
+ *        are never boxed into Integers, inserting and removing an
+ *        element doesn't allocate any memory.
+ *
+ *        Since there's no null int to signal that poll() timed out,
+ *        the timed poll() throws TimeoutException instead.
+ */
+public class IntBlockingQueue {
+    /**
+     * The ring buffer that holds the elements.
+     */
+    private final int[] mItems;
+
+    /**
+     * Index of the next element to take.
+     */
+    private int mTakeIndex;
+
+    /**
+     * Index of the next slot to put into.
+     */
+    private int mPutIndex;
+
+    /**
+     * Number of elements in the queue.
+     */
+    private int mCount;
+
+    /**
+     * Lock that guards all the fields above.
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /**
+     * Condition that waiting takers wait on.
+     */
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    /**
+     * Condition that waiting putters wait on.
+     */
+    private final Condition mNotFull = mLock.newCondition();
+
+    /**
+     * Constructor allocates a ring buffer of the given capacity.
+     */
+    public IntBlockingQueue(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity = " + capacity);
+        mItems = new int[capacity];
+    }
+
+    /**
+     * Returns the number of elements the queue can hold.
+     */
+    public int capacity() {
+        return mItems.length;
+    }
+
+    /**
+     * Returns the number of elements in this queue.
+     */
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if there are no elements in this queue.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the number of additional elements this queue can
+     * accept without blocking.
+     */
+    public int remainingCapacity() {
+        mLock.lock();
+        try {
+            return mItems.length - mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Insert e at the tail of the queue if there's room, returning
+     * false if the queue is full.
+     */
+    public boolean offer(int e) {
+        mLock.lock();
+        try {
+            if (mCount == mItems.length)
+                return false;
+            enqueue(e);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Insert e at the tail of the queue, waiting up to timeout for
+     * space to become available.
+     */
+    public boolean offer(int e, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == mItems.length) {
+                if (nanos <= 0)
+                    return false;
+                nanos = mNotFull.awaitNanos(nanos);
+            }
+            enqueue(e);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Insert e at the tail of the queue, waiting as long as
+     * necessary for space to become available.
+     */
+    public void put(int e) throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == mItems.length)
+                mNotFull.await();
+            enqueue(e);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting up to
+     * timeout for one to become available.
+     *
+     * @throws TimeoutException if the queue is still empty when
+     *         timeout elapses
+     */
+    public int poll(long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0) {
+                if (nanos <= 0)
+                    throw new TimeoutException();
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting as long
+     * as necessary for one to become available.
+     */
+    public int take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0)
+                mNotEmpty.await();
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes at most maxElements available elements and copies them
+     * into dst starting at offset, returning how many were removed.
+     * Nothing is removed if maxElements isn't positive.
+     */
+    public int drainTo(int[] dst, int offset, int maxElements) {
+        if (offset < 0 || offset > dst.length)
+            throw new IndexOutOfBoundsException("offset = " + offset);
+        if (maxElements <= 0)
+            return 0;
+
+        mLock.lock();
+        try {
+            int n = Math.min(Math.min(maxElements, mCount),
+                             dst.length - offset);
+            for (int i = 0; i < n; i++)
+                dst[offset + i] = dequeue();
+            return n;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all the elements from the queue.
+     */
+    public void clear() {
+        mLock.lock();
+        try {
+            mTakeIndex = mPutIndex = mCount = 0;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Store e at the put index and signal a waiting taker.  Must be
+     * called with mLock held.
+     */
+    private void enqueue(int e) {
+        mItems[mPutIndex] = e;
+        if (++mPutIndex == mItems.length)
+            mPutIndex = 0;
+        mCount++;
+        mNotEmpty.signal();
+    }
+
+    /**
+     * Remove the element at the take index and signal a waiting
+     * putter.  Must be called with mLock held.
+     */
+    private int dequeue() {
+        int e = mItems[mTakeIndex];
+        if (++mTakeIndex == mItems.length)
+            mTakeIndex = 0;
+        mCount--;
+        mNotFull.signal();
+        return e;
+    }
+}
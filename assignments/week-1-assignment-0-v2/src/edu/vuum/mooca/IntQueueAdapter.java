@@ -0,0 +1,60 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * @class IntQueueAdapter
+ *
+ * @brief A QueueAdapter specialized for IntBlockingQueue, which
+ *        passes primitive ints rather than Integers so that
+ *        putting and taking elements doesn't allocate memory.
+ */
+public class IntQueueAdapter {
+    /**
+     * Stores the queue that we're adapting.
+     */
+    private IntBlockingQueue mQueue;
+
+    /**
+     * Store the queue that we're adapting.
+     */
+    public IntQueueAdapter(IntBlockingQueue queue) {
+        mQueue = queue;
+    }
+
+    /**
+     * Returns the number of elements in this queue.
+     */
+    int size() {
+        return mQueue.size();
+    }
+
+    /**
+     * Insert msg at the tail of the queue.
+     *
+     * @throws TimeoutException and InterruptedException
+     */
+    public void put(int msg) throws InterruptedException, TimeoutException {
+        if (!mQueue.offer(msg,
+                          SynchronizedQueue.TIMEOUT_SECONDS,
+                          TimeUnit.SECONDS))
+            throw new TimeoutException();
+
+        SynchronizedQueue.mProducerCounter++;
+    }
+
+    /**
+     * Remove msg from the head of the queue.
+     *
+     * @throws TimeoutException and InterruptedException
+     */
+    public int take() throws InterruptedException, TimeoutException {
+        int rValue = mQueue.poll(SynchronizedQueue.TIMEOUT_SECONDS,
+                                 TimeUnit.SECONDS);
+
+        SynchronizedQueue.mConsumerCounter++;
+
+        return rValue;
+    }
+}
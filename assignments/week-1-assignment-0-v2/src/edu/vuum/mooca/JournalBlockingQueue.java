@@ -0,0 +1,741 @@
+package edu.vuum.mooca;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @class JournalBlockingQueue
+ *
+ * @brief Defines an unbounded, durable implementation of the
+ *        BlockingQueue interface whose elements live in an
+ *        append-only journal of memory-mapped segment files, so they
+ *        survive the process dying and are still there when the
+ *        queue is reopened on the same directory.
+ *
+ *        Each segment file holds segmentSize bytes of records, and
+ *        each record is an int header (the length of the encoded
+ *        element plus one) followed by the bytes that the Codec
+ *        wrote.  A header of zero marks the end of what's been
+ *        written and END_OF_SEGMENT marks a segment the next record
+ *        didn't fit in.  Every record has a position in a single
+ *        logical stream of bytes, so segment i holds positions
+ *        [i * segmentSize, (i + 1) * segmentSize).  The position of
+ *        the next record to take is stored as a single long in a
+ *        memory-mapped cursor file, and a segment file is deleted
+ *        once every record in it has been taken.
+ *
+ *        put() and take() only copy bytes to and from the mapped
+ *        segments, so (apart from mapping a new segment every
+ *        segmentSize bytes) they don't make any system calls.  Since
+ *        the mapped pages belong to the operating system, a record
+ *        survives the process crashing as soon as put() returns.  To
+ *        survive the operating system crashing too, the segments and
+ *        the cursor have to be flushed to disk, which the queue does
+ *        once every syncInterval put()s and take()s (and whenever
+ *        sync() or close() is called).
+ *
+ *        All operations hold a single lock, like ArrayBlockingQueue.
+ */
+public class JournalBlockingQueue<E> extends AbstractQueue<E>
+                                     implements BlockingQueue<E> {
+    /**
+     * @class Codec
+     *
+     * @brief Converts the elements of a JournalBlockingQueue to and
+     *        from the bytes stored in its journal.
+     */
+    public interface Codec<E> {
+        /**
+         * Returns the number of bytes e encodes to.
+         */
+        int size(E e);
+
+        /**
+         * Write the size(e) bytes that e encodes to at the position
+         * of buffer.
+         */
+        void write(E e, ByteBuffer buffer);
+
+        /**
+         * Read the element that was encoded as the size bytes at the
+         * position of buffer.
+         */
+        E read(ByteBuffer buffer, int size);
+    }
+
+    /**
+     * A Codec that encodes an Integer as 4 bytes.
+     */
+    public static final Codec<Integer> INTEGER_CODEC = new Codec<Integer>() {
+        public int size(Integer e) {
+            return 4;
+        }
+
+        public void write(Integer e, ByteBuffer buffer) {
+            buffer.putInt(e);
+        }
+
+        public Integer read(ByteBuffer buffer, int size) {
+            return buffer.getInt();
+        }
+    };
+
+    /**
+     * Default size of each segment file in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Default number of put()s and take()s between flushes to disk.
+     */
+    public static final int DEFAULT_SYNC_INTERVAL = 1024;
+
+    /**
+     * The header that marks a segment whose remaining space was too
+     * small for the next record.
+     */
+    static final int END_OF_SEGMENT = -1;
+
+    /**
+     * Size of a record header in bytes.
+     */
+    static final int HEADER_SIZE = 4;
+
+    /**
+     * Suffix of the segment file names.
+     */
+    static final String SEGMENT_SUFFIX = ".segment";
+
+    /**
+     * Name of the file that holds the cursor.
+     */
+    static final String CURSOR_FILE = "cursor";
+
+    /**
+     * The directory that holds the journal.
+     */
+    private final File mDirectory;
+
+    /**
+     * Converts elements to and from bytes.
+     */
+    private final Codec<E> mCodec;
+
+    /**
+     * Size of each segment file in bytes.
+     */
+    private final int mSegmentSize;
+
+    /**
+     * Number of put()s and take()s between flushes to disk, or 0 to
+     * leave flushing up to the operating system.
+     */
+    private final int mSyncInterval;
+
+    /**
+     * Guards all access to the journal.
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /**
+     * Signalled when an element is put in the queue.
+     */
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    /**
+     * The mapped cursor file, which holds mReadPosition.
+     */
+    private MappedByteBuffer mCursor;
+
+    /**
+     * Position of the next record to take.
+     */
+    private long mReadPosition;
+
+    /**
+     * The mapped segment that holds mReadPosition, or null if it
+     * hasn't been mapped yet.
+     */
+    private MappedByteBuffer mReadSegment;
+
+    /**
+     * Position at which the next record will be put.
+     */
+    private long mWritePosition;
+
+    /**
+     * The mapped segment that holds mWritePosition, or null if it
+     * hasn't been mapped yet.
+     */
+    private MappedByteBuffer mWriteSegment;
+
+    /**
+     * Number of elements in the queue.
+     */
+    private int mCount;
+
+    /**
+     * Number of put()s and take()s since the last flush to disk.
+     */
+    private int mUnsynced;
+
+    /**
+     * Open the journal in directory (creating it if necessary) with
+     * the default segment size and sync interval.
+     */
+    public JournalBlockingQueue(File directory, Codec<E> codec)
+        throws IOException {
+        this(directory, codec, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * Open the journal in directory (creating it if necessary),
+     * recovering whatever elements it already holds.  If directory
+     * already holds a journal, segmentSize must be the same as when
+     * it was created.
+     *
+     * @param syncInterval the number of put()s and take()s between
+     *        flushes to disk, or 0 to leave flushing up to the
+     *        operating system
+     */
+    public JournalBlockingQueue(File directory,
+                                Codec<E> codec,
+                                int segmentSize,
+                                int syncInterval) throws IOException {
+        if (segmentSize < 2 * HEADER_SIZE)
+            throw new IllegalArgumentException("segmentSize = " + segmentSize);
+        if (syncInterval < 0)
+            throw new IllegalArgumentException("syncInterval = " + syncInterval);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("can't create " + directory);
+
+        mDirectory = directory;
+        mCodec = codec;
+        mSegmentSize = segmentSize;
+        mSyncInterval = syncInterval;
+
+        mCursor = map(new File(directory, CURSOR_FILE), 8);
+        mReadPosition = mCursor.getLong(0);
+        recover();
+    }
+
+    /**
+     * Returns the number of elements in this queue.
+     */
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns Integer.MAX_VALUE, since the queue is only bounded by
+     * the space on the disk.
+     */
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Append e to the journal, which always succeeds unless the
+     * journal can't be written.
+     *
+     * @throws IllegalStateException if a new segment can't be
+     *         created or the queue has been closed
+     * @throws IllegalArgumentException if e doesn't fit in a segment
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+
+        int size = mCodec.size(e);
+        if (size > mSegmentSize - 2 * HEADER_SIZE)
+            throw new IllegalArgumentException("element of " + size
+                                               + " bytes doesn't fit in a segment");
+
+        mLock.lock();
+        try {
+            checkOpen();
+            int offset = offset(mWritePosition);
+            if (offset + HEADER_SIZE + size > mSegmentSize - HEADER_SIZE) {
+                // Mark the rest of this segment as unused and start a
+                // new one.  There's always room for the marker since
+                // every segment ends with HEADER_SIZE spare bytes.
+                writeSegment().putInt(offset, END_OF_SEGMENT);
+                if (mSyncInterval > 0)
+                    sync();
+                mWritePosition = segmentStart(segment(mWritePosition) + 1);
+                mWriteSegment = null;
+                offset = 0;
+            }
+
+            MappedByteBuffer segment = writeSegment();
+            ByteBuffer record = segment.duplicate();
+            record.position(offset + HEADER_SIZE);
+            mCodec.write(e, record);
+            // Write the header last, so a record is never visible
+            // before all of it has been written.
+            segment.putInt(offset, size + 1);
+            mWritePosition += HEADER_SIZE + size;
+
+            mCount++;
+            mNotEmpty.signal();
+            maybeSync();
+            return true;
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Append e to the journal, which never has to wait.
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    /**
+     * Append e to the journal, which never has to wait.
+     */
+    public void put(E e) {
+        offer(e);
+    }
+
+    /**
+     * Remove the element at the head of the queue, returning null if
+     * the queue is empty.
+     *
+     * @throws IllegalStateException if the queue has been closed
+     */
+    public E poll() {
+        mLock.lock();
+        try {
+            checkOpen();
+            return mCount == 0
+                ? null
+                : dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting up to
+     * timeout for one to become available.
+     *
+     * @throws IllegalStateException if the queue has been closed,
+     *         including while waiting
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            checkOpen();
+            while (mCount == 0) {
+                if (nanos <= 0)
+                    return null;
+                nanos = mNotEmpty.awaitNanos(nanos);
+                checkOpen();
+            }
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting as long
+     * as necessary for one to become available.
+     *
+     * @throws IllegalStateException if the queue has been closed,
+     *         including while waiting
+     */
+    public E take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            checkOpen();
+            while (mCount == 0) {
+                mNotEmpty.await();
+                checkOpen();
+            }
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the element at the head of the queue without removing
+     * it, or null if the queue is empty.
+     *
+     * @throws IllegalStateException if the queue has been closed
+     */
+    public E peek() {
+        mLock.lock();
+        try {
+            checkOpen();
+            if (mCount == 0)
+                return null;
+            skipEndOfSegment();
+            return read(readSegment(), offset(mReadPosition));
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all available elements and adds them to c.
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes at most maxElements available elements and adds them
+     * to c.
+     *
+     * @throws IllegalStateException if the queue has been closed
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+
+        mLock.lock();
+        try {
+            checkOpen();
+            int count = 0;
+            while (count < maxElements && mCount > 0) {
+                c.add(dequeue());
+                count++;
+            }
+            return count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the elements that were
+     * in the queue when it was called.  The iterator doesn't
+     * support remove(), since records can't be removed from the
+     * middle of the journal, so neither does remove(Object).
+     *
+     * @throws IllegalStateException if the queue has been closed
+     */
+    public Iterator<E> iterator() {
+        mLock.lock();
+        try {
+            checkOpen();
+            List<E> snapshot = new ArrayList<E>(mCount);
+            long position = mReadPosition;
+            long segmentIndex = -1;
+            MappedByteBuffer segment = null;
+            while (snapshot.size() < mCount) {
+                if (segment(position) != segmentIndex) {
+                    segmentIndex = segment(position);
+                    segment = mapSegment(segmentIndex);
+                }
+                int offset = offset(position);
+                int header = segment.getInt(offset);
+                if (header == END_OF_SEGMENT)
+                    position = segmentStart(segmentIndex + 1);
+                else {
+                    snapshot.add(read(segment, offset));
+                    position += HEADER_SIZE + header - 1;
+                }
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Flush the segment being written and the cursor to disk.
+     *
+     * @throws IllegalStateException if the queue has been closed
+     */
+    public void sync() {
+        mLock.lock();
+        try {
+            checkOpen();
+            if (mWriteSegment != null)
+                mWriteSegment.force();
+            mCursor.force();
+            mUnsynced = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Flush the journal to disk and release it.  The queue can't be
+     * used after it has been closed, but the journal can be reopened
+     * by constructing a new JournalBlockingQueue on its directory.
+     * Threads waiting in take() or poll() are woken and throw
+     * IllegalStateException.
+     */
+    public void close() {
+        mLock.lock();
+        try {
+            if (mCursor == null)
+                return;
+            sync();
+            // The mappings themselves are released when the buffers
+            // are garbage collected.
+            mCursor = null;
+            mReadSegment = null;
+            mWriteSegment = null;
+            mNotEmpty.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Throws IllegalStateException if the queue has been closed.
+     * Must be called with mLock held.
+     */
+    private void checkOpen() {
+        if (mCursor == null)
+            throw new IllegalStateException("queue has been closed");
+    }
+
+    /**
+     * Remove the record at mReadPosition, which must exist, and
+     * return its element.  Must be called with mLock held.
+     */
+    private E dequeue() {
+        try {
+            skipEndOfSegment();
+            MappedByteBuffer segment = readSegment();
+            int offset = offset(mReadPosition);
+            int size = segment.getInt(offset) - 1;
+            E e = read(segment, offset);
+            mReadPosition += HEADER_SIZE + size;
+            mCursor.putLong(0, mReadPosition);
+
+            mCount--;
+            maybeSync();
+            return e;
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * If mReadPosition is at the end of a segment, move it to the
+     * start of the next segment and delete the one it was in.  Must
+     * be called with mLock held.
+     */
+    private void skipEndOfSegment() throws IOException {
+        if (readSegment().getInt(offset(mReadPosition)) != END_OF_SEGMENT)
+            return;
+
+        long finished = segment(mReadPosition);
+        mReadPosition = segmentStart(finished + 1);
+        mCursor.putLong(0, mReadPosition);
+        mReadSegment = null;
+        // The cursor has to be on disk before the segment goes, or a
+        // crash could leave it pointing into a deleted segment.
+        mCursor.force();
+        segmentFile(finished).delete();
+    }
+
+    /**
+     * Decode the element of the record at offset in segment.
+     */
+    private E read(MappedByteBuffer segment, int offset) {
+        int size = segment.getInt(offset) - 1;
+        ByteBuffer record = segment.duplicate();
+        record.position(offset + HEADER_SIZE);
+        record.limit(offset + HEADER_SIZE + size);
+        return mCodec.read(record, size);
+    }
+
+    /**
+     * Flush to disk if mSyncInterval put()s and take()s have
+     * happened since the last flush.  Must be called with mLock
+     * held.
+     */
+    private void maybeSync() {
+        if (mSyncInterval > 0 && ++mUnsynced >= mSyncInterval)
+            sync();
+    }
+
+    /**
+     * Find the end of the journal and count the records between the
+     * cursor and there, and delete any segments that precede the
+     * cursor.
+     */
+    private void recover() throws IOException {
+        long last = segment(mReadPosition);
+        for (long index : segmentIndexes())
+            if (index < segment(mReadPosition))
+                segmentFile(index).delete();
+            else
+                last = Math.max(last, index);
+
+        long position = mReadPosition;
+        for (;;) {
+            MappedByteBuffer segment = mapSegment(segment(position));
+            int offset = offset(position);
+            int header = segment.getInt(offset);
+            if (header == 0)
+                break;
+            else if (header == END_OF_SEGMENT) {
+                position = segmentStart(segment(position) + 1);
+                if (segment(position) > last)
+                    break;
+            } else {
+                mCount++;
+                position += HEADER_SIZE + header - 1;
+            }
+        }
+        mWritePosition = position;
+    }
+
+    /**
+     * Returns the indexes of the segment files in the directory.
+     */
+    private List<Long> segmentIndexes() {
+        List<Long> indexes = new ArrayList<Long>();
+        String[] names = mDirectory.list(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(SEGMENT_SUFFIX);
+                }
+            });
+        if (names != null)
+            for (String name : names)
+                try {
+                    indexes.add(Long.parseLong(name.substring(0,
+                                                              name.length()
+                                                              - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // It's not one of ours, so leave it alone.
+                }
+        return indexes;
+    }
+
+    /**
+     * Returns the mapped segment that holds mReadPosition.
+     */
+    private MappedByteBuffer readSegment() throws IOException {
+        if (mReadSegment == null)
+            mReadSegment = mapSegment(segment(mReadPosition));
+        return mReadSegment;
+    }
+
+    /**
+     * Returns the mapped segment that holds mWritePosition, creating
+     * it if necessary.
+     */
+    private MappedByteBuffer writeSegment() throws IOException {
+        if (mWriteSegment == null)
+            mWriteSegment = mapSegment(segment(mWritePosition));
+        return mWriteSegment;
+    }
+
+    /**
+     * Returns the index of the segment that holds position.
+     */
+    private long segment(long position) {
+        return position / mSegmentSize;
+    }
+
+    /**
+     * Returns the offset of position in its segment.
+     */
+    private int offset(long position) {
+        return (int) (position % mSegmentSize);
+    }
+
+    /**
+     * Returns the position of the start of segment index.
+     */
+    private long segmentStart(long index) {
+        return index * mSegmentSize;
+    }
+
+    /**
+     * Returns the file that holds segment index.
+     */
+    private File segmentFile(long index) {
+        return new File(mDirectory,
+                        String.format("%019d%s", index, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Map segment index into memory, creating it if necessary.
+     */
+    private MappedByteBuffer mapSegment(long index) throws IOException {
+        return map(segmentFile(index), mSegmentSize);
+    }
+
+    /**
+     * Map the first size bytes of file into memory, creating it (full
+     * of zeros) if necessary.  FileChannels are interruptible, so an
+     * interrupt would close the channel and fail the put() or take()
+     * that rolled over to a new segment.  Since each attempt opens
+     * the file afresh, we instead retry with the interrupt status
+     * cleared and set it again afterwards, leaving the caller to
+     * notice it at its next blocking call.
+     */
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            for (;;)
+                try {
+                    return mapOnce(file, size);
+                } catch (ClosedByInterruptException e) {
+                    Thread.interrupted();
+                    interrupted = true;
+                }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Make a single attempt at map().
+     */
+    private static MappedByteBuffer mapOnce(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size)
+                raf.setLength(size);
+            // The mapping stays valid after the file is closed.
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+}
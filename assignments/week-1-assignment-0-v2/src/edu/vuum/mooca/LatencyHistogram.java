@@ -0,0 +1,204 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @class LatencyHistogram
+ *
+ * @brief A thread-safe histogram of latencies (in nanoseconds) whose
+ *        buckets grow logarithmically.  Every power of two is split
+ *        into SUB_BUCKETS linear sub-buckets, so a recorded value is
+ *        never reported with more than 1 / SUB_BUCKETS (12.5%)
+ *        relative error, yet the whole range of a long fits into a
+ *        few hundred buckets.  Recording a value is just a couple of
+ *        bit operations and an atomic increment, so it's cheap enough
+ *        to do on the hot path of a queue.
+ */
+public class LatencyHistogram {
+    /**
+     * log2 of the number of sub-buckets per power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * Number of sub-buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Total number of buckets, which covers every non-negative long.
+     */
+    private static final int BUCKETS =
+        (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * The number of values recorded in each bucket.
+     */
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * The total number of values recorded.
+     */
+    private final AtomicLong mCount = new AtomicLong();
+
+    /**
+     * The sum of all the values recorded, used to compute the mean.
+     */
+    private final AtomicLong mSum = new AtomicLong();
+
+    /**
+     * The largest value recorded.
+     */
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Record a latency of nanos nanoseconds.  Negative values (which
+     * System.nanoTime() can produce across cores on some platforms)
+     * are recorded as 0.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        mCounts.incrementAndGet(bucketOf(nanos));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+
+        long max;
+        while (nanos > (max = mMax.get())
+               && !mMax.compareAndSet(max, nanos))
+            continue;
+    }
+
+    /**
+     * Add all the values recorded in other to this histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.mCounts.get(i);
+            if (count != 0)
+                mCounts.addAndGet(i, count);
+        }
+        mCount.addAndGet(other.mCount.get());
+        mSum.addAndGet(other.mSum.get());
+
+        long max;
+        long otherMax = other.mMax.get();
+        while (otherMax > (max = mMax.get())
+               && !mMax.compareAndSet(max, otherMax))
+            continue;
+    }
+
+    /**
+     * Forget all the values recorded so far.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            mCounts.set(i, 0);
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * Returns the number of values recorded.
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns the sum of the values recorded.
+     */
+    public long getTotal() {
+        return mSum.get();
+    }
+
+    /**
+     * Returns the mean of the values recorded.
+     */
+    public double getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * Returns the largest value recorded.
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns the value below which percentile percent of the
+     * recorded values fall, e.g., getValueAtPercentile(99.9).  The
+     * result is the largest value that falls in the same bucket.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        if (rank < 1)
+            rank = 1;
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValueIn(i), mMax.get());
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Returns a one-line summary of the histogram in microseconds.
+     */
+    public String toString() {
+        return String.format("count=%d mean=%.2fus p50=%.2fus p99=%.2fus "
+                             + "p99.9=%.2fus max=%.2fus",
+                             getCount(),
+                             getMean() / 1000.0,
+                             micros(getValueAtPercentile(50)),
+                             micros(getValueAtPercentile(99)),
+                             micros(getValueAtPercentile(99.9)),
+                             micros(getMax()));
+    }
+
+    /**
+     * Convert nanos to (fractional) microseconds.
+     */
+    static double micros(long nanos) {
+        return (double) nanos / TimeUnit.MICROSECONDS.toNanos(1);
+    }
+
+    /**
+     * Returns the index of the bucket that value falls into.
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket =
+            (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value that falls into bucket index.
+     */
+    static long highestValueIn(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return lowest + width - 1;
+    }
+}
@@ -0,0 +1,419 @@
+package edu.vuum.mooca;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * @class LinkedMPMCBlockingQueue
+ *
+ * @brief Defines an unbounded, lock-free implementation of the
+ *        BlockingQueue interface that any number of producer and
+ *        consumer Threads can use concurrently.  It's the linked
+ *        queue of Michael and Scott ("Simple, Fast, and Practical
+ *        Non-Blocking and Blocking Concurrent Queue Algorithms").
+ *
+ *        The queue always starts with a dummy node.  A producer
+ *        links its node after the last node with a CAS on that
+ *        node's next field and then swings the tail to it with a
+ *        second CAS, which any other Thread that finds the tail
+ *        lagging may also do on its behalf.  A consumer swings the
+ *        head from the dummy node to its successor, which becomes
+ *        the new dummy node once its element has been taken.
+ *
+ *        Since the queue is unbounded, producers never block.
+ *        Consumers only park (individually, on a ParkingWaiters) when
+ *        the queue is empty.
+ *
+ *        Nodes aren't recycled, since handing a node back out while
+ *        another Thread may still hold a reference to it would
+ *        reintroduce the ABA problem that the garbage collector
+ *        otherwise solves.  Instead each node a consumer removes is
+ *        linked to itself, so it doesn't keep the rest of the queue
+ *        reachable if it survives into an older generation of the
+ *        heap.
+ */
+public class LinkedMPMCBlockingQueue<E> extends AbstractQueue<E>
+                                        implements BatchBlockingQueue<E> {
+    /**
+     * @class Node
+     *
+     * @brief A node in the linked list of elements.
+     */
+    static class Node<E> {
+        /**
+         * The element, or null once it's been taken.
+         */
+        volatile E mItem;
+
+        /**
+         * The next node, null if this is the last node or this node
+         * itself if it has been removed from the queue.
+         */
+        volatile Node<E> mNext;
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Node, Object> sItemUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Object.class, "mItem");
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Node, Node> sNextUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "mNext");
+
+        /**
+         * Constructor stores item without a full fence, since the
+         * node is published by the CAS that links it into the queue.
+         */
+        Node(E item) {
+            sItemUpdater.lazySet(this, item);
+        }
+
+        /**
+         * Atomically sets mNext to update if it's currently expect.
+         */
+        boolean casNext(Node<E> expect, Node<E> update) {
+            return sNextUpdater.compareAndSet(this, expect, update);
+        }
+
+        /**
+         * Sets mNext without a full fence.
+         */
+        void lazySetNext(Node<E> next) {
+            sNextUpdater.lazySet(this, next);
+        }
+
+        /**
+         * Clears mItem without a full fence.
+         */
+        void lazyClearItem() {
+            sItemUpdater.lazySet(this, null);
+        }
+    }
+
+    /**
+     * The dummy node that precedes the first element.
+     */
+    private volatile Node<E> mHead;
+
+    /**
+     * The last node, or (briefly) a node that precedes it.
+     */
+    private volatile Node<E> mTail;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<LinkedMPMCBlockingQueue, Node> sHeadUpdater =
+        AtomicReferenceFieldUpdater.newUpdater(LinkedMPMCBlockingQueue.class, Node.class, "mHead");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<LinkedMPMCBlockingQueue, Node> sTailUpdater =
+        AtomicReferenceFieldUpdater.newUpdater(LinkedMPMCBlockingQueue.class, Node.class, "mTail");
+
+    /**
+     * Consumers waiting for the queue to become non-empty.
+     */
+    private final ParkingWaiters mNotEmpty = new ParkingWaiters();
+
+    /**
+     * Constructor creates an empty queue.
+     */
+    public LinkedMPMCBlockingQueue() {
+        mHead = mTail = new Node<E>(null);
+    }
+
+    /**
+     * Returns the number of elements in this queue.  It has to walk
+     * the whole list, so it's only accurate if no other Thread is
+     * changing the queue at the same time.
+     */
+    public int size() {
+        int count = 0;
+        for (Node<E> p = first(); p != null; p = successor(p))
+            if (p.mItem != null && ++count == Integer.MAX_VALUE)
+                break;
+        return count;
+    }
+
+    /**
+     * Returns true if there are no elements in this queue.
+     */
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * Returns Integer.MAX_VALUE, since the queue is unbounded.
+     */
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Insert e at the tail of the queue, which always succeeds.
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+
+        Node<E> node = new Node<E>(e);
+        append(node, node);
+        mNotEmpty.signal();
+        return true;
+    }
+
+    /**
+     * Insert e at the tail of the queue, which never has to wait.
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    /**
+     * Insert e at the tail of the queue, which never has to wait.
+     */
+    public void put(E e) {
+        offer(e);
+    }
+
+    /**
+     * Insert the elements of c at the tail of the queue by linking
+     * them together first and then appending the whole chain with a
+     * single CAS, which never has to wait.
+     */
+    public int offerAll(Collection<? extends E> c, long timeout, TimeUnit unit) {
+        Node<E> first = null;
+        Node<E> last = null;
+        int count = 0;
+        try {
+            for (E e : c) {
+                if (e == null)
+                    throw new NullPointerException();
+
+                Node<E> node = new Node<E>(e);
+                if (first == null)
+                    first = node;
+                else
+                    last.lazySetNext(node);
+                last = node;
+                count++;
+            }
+        } finally {
+            // Insert the elements that preceded a null one, too.
+            if (first != null) {
+                append(first, last);
+                for (int i = 0; i < count; i++)
+                    mNotEmpty.signal();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Remove the element at the head of the queue, returning null if
+     * the queue is empty.
+     */
+    public E poll() {
+        for (;;) {
+            Node<E> head = mHead;
+            Node<E> tail = mTail;
+            Node<E> next = head.mNext;
+            if (head != mHead)
+                continue;
+
+            if (head == tail) {
+                if (next == null)
+                    return null;
+                // The tail is lagging behind a producer, so help it
+                // along before we move the head past it.
+                casTail(tail, next);
+            } else if (casHead(head, next)) {
+                // next is now the dummy node, so its element is ours.
+                E e = next.mItem;
+                next.lazyClearItem();
+                head.lazySetNext(head);
+                return e;
+            }
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting up to
+     * timeout for one to become available.
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return poll(true, unit.toNanos(timeout));
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting as long
+     * as necessary for one to become available.
+     */
+    public E take() throws InterruptedException {
+        return poll(false, 0);
+    }
+
+    /**
+     * Returns the element at the head of the queue without removing
+     * it, or null if the queue is empty.
+     */
+    public E peek() {
+        for (;;) {
+            Node<E> head = mHead;
+            Node<E> next = head.mNext;
+            if (next == null)
+                return null;
+            E e = next.mItem;
+            // Only trust e if no consumer took it while we were
+            // reading it.
+            if (head == mHead)
+                return e;
+        }
+    }
+
+    /**
+     * Removes all available elements and adds them to c.
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes at most maxElements available elements and adds them
+     * to c.
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+
+        int count = 0;
+        E e;
+        while (count < maxElements
+               && (e = poll()) != null) {
+            c.add(e);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the elements that were
+     * in the queue when it was called.  The iterator doesn't
+     * support remove(), since elements can't be removed from the
+     * middle of the list, so neither does remove(Object).
+     */
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<E>();
+        for (Node<E> p = first(); p != null; p = successor(p)) {
+            E e = p.mItem;
+            if (e != null)
+                snapshot.add(e);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /**
+     * Returns the node holding the first element, or null if the
+     * queue is empty.
+     */
+    private Node<E> first() {
+        return mHead.mNext;
+    }
+
+    /**
+     * Returns the node after p, or the first node if p has been
+     * removed from the queue while we were walking past it.
+     */
+    private Node<E> successor(Node<E> p) {
+        Node<E> next = p.mNext;
+        return next == p
+            ? first()
+            : next;
+    }
+
+    /**
+     * Link the chain of nodes from first to last after the last node
+     * in the queue and then try to swing the tail to last.
+     */
+    private void append(Node<E> first, Node<E> last) {
+        for (;;) {
+            Node<E> tail = mTail;
+            Node<E> next = tail.mNext;
+            if (tail != mTail)
+                continue;
+
+            if (next == null) {
+                if (tail.casNext(null, first)) {
+                    // It's fine if this fails, since it means another
+                    // Thread has already moved the tail on.
+                    casTail(tail, last);
+                    return;
+                }
+            } else
+                // The tail is lagging behind another producer, so
+                // help it along.
+                casTail(tail, next);
+        }
+    }
+
+    /**
+     * Atomically sets mHead to update if it's currently expect.
+     */
+    private boolean casHead(Node<E> expect, Node<E> update) {
+        return sHeadUpdater.compareAndSet(this, expect, update);
+    }
+
+    /**
+     * Atomically sets mTail to update if it's currently expect.
+     */
+    private boolean casTail(Node<E> expect, Node<E> update) {
+        return sTailUpdater.compareAndSet(this, expect, update);
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting if the
+     * queue is empty until an element becomes available or (if
+     * timed is true) nanos have elapsed.
+     */
+    private E poll(boolean timed, long nanos) throws InterruptedException {
+        E e = poll();
+        if (e != null)
+            return e;
+
+        if (Thread.interrupted())
+            throw new InterruptedException();
+
+        long deadline = System.nanoTime() + nanos;
+        Thread me = Thread.currentThread();
+        for (;;) {
+            // Register before re-checking, so a producer that links
+            // a node after our check is guaranteed to see us.
+            mNotEmpty.add(me);
+            if ((e = poll()) != null) {
+                mNotEmpty.remove(me);
+                return e;
+            }
+
+            if (timed) {
+                nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    mNotEmpty.cancel(me);
+                    return null;
+                }
+                mNotEmpty.park(this, nanos);
+            } else
+                mNotEmpty.park(this, Long.MAX_VALUE);
+
+            if (Thread.interrupted()) {
+                mNotEmpty.cancel(me);
+                throw new InterruptedException();
+            }
+            mNotEmpty.remove(me);
+        }
+    }
+}
@@ -0,0 +1,521 @@
+package edu.vuum.mooca;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @class MPMCBlockingQueue
+ *
+ * @brief Defines a bounded, lock-free implementation of the
+ *        BlockingQueue interface that any number of producer and
+ *        consumer Threads can use concurrently.  It's a variant of
+ *        Dmitry Vyukov's bounded MPMC queue.
+ *
+ *        Every slot in the ring buffer has a sequence number that
+ *        says whose turn it is to use the slot.  A producer claims
+ *        slot pos by CAS'ing the tail from pos to pos + 1 once the
+ *        slot's sequence equals pos, stores its element and then
+ *        sets the sequence to pos + 1 to hand the slot to the
+ *        consumers.  A consumer does the mirror image on the head and
+ *        sets the sequence to pos + capacity to hand the slot back to
+ *        the producer of the next lap around the ring.
+ *
+ *        By default, Threads that have to block park individually
+ *        and are unparked one at a time by the Thread that makes
+ *        progress possible, rather than all sharing a single
+ *        Condition.  Alternatively, blocked Threads can wait
+ *        according to a WaitStrategy that's passed to the
+ *        constructor.
+ */
+public class MPMCBlockingQueue<E> extends AbstractQueue<E>
+                                  implements BatchBlockingQueue<E> {
+    /**
+     * The ring buffer that holds the elements.
+     */
+    private final AtomicReferenceArray<E> mBuffer;
+
+    /**
+     * The sequence number of each slot in mBuffer.
+     */
+    private final AtomicLongArray mSequences;
+
+    /**
+     * Maps a sequence number to an index in mBuffer.
+     */
+    private final int mMask;
+
+    /**
+     * Sequence number of the next slot a producer will claim.
+     */
+    private final Sequence mTail = new Sequence(0);
+
+    /**
+     * Sequence number of the next slot a consumer will claim.
+     */
+    private final Sequence mHead = new Sequence(0);
+
+    /**
+     * Producers waiting for the queue to become non-full.
+     */
+    private final ParkingWaiters mNotFull = new ParkingWaiters();
+
+    /**
+     * Consumers waiting for the queue to become non-empty.
+     */
+    private final ParkingWaiters mNotEmpty = new ParkingWaiters();
+
+    /**
+     * Decides how blocked Threads wait, or null if they park on
+     * mNotFull and mNotEmpty.
+     */
+    private final WaitStrategy mWaitStrategy;
+
+    /**
+     * Constructor rounds capacity up to the next power of two and
+     * allocates the ring buffer.
+     */
+    public MPMCBlockingQueue(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Constructor rounds capacity up to the next power of two,
+     * allocates the ring buffer and makes blocked Threads wait
+     * according to waitStrategy (or park individually if it's null).
+     */
+    public MPMCBlockingQueue(int capacity, WaitStrategy waitStrategy) {
+        mWaitStrategy = waitStrategy;
+        if (capacity < 2 || capacity > (1 << 30))
+            throw new IllegalArgumentException("capacity = " + capacity);
+
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+
+        mBuffer = new AtomicReferenceArray<E>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            mSequences.set(i, i);
+        mMask = size - 1;
+    }
+
+    /**
+     * Returns the number of elements the queue can hold, which is
+     * the requested capacity rounded up to a power of two.
+     */
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Returns the number of elements in this queue.
+     */
+    public int size() {
+        long after = mHead.get();
+        for (;;) {
+            long before = after;
+            long tail = mTail.get();
+            after = mHead.get();
+            if (before == after) {
+                long size = tail - after;
+                if (size < 0)
+                    return 0;
+                else if (size > capacity())
+                    return capacity();
+                else
+                    return (int) size;
+            }
+        }
+    }
+
+    /**
+     * Returns true if there are no elements in this queue.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the number of additional elements this queue can
+     * accept without blocking.
+     */
+    public int remainingCapacity() {
+        return capacity() - size();
+    }
+
+    /**
+     * Insert e at the tail of the queue if there's room, returning
+     * false if the queue is full.
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+
+        if (!enqueue(e))
+            return false;
+
+        signalNotEmpty(1);
+        return true;
+    }
+
+    /**
+     * Insert e at the tail of the queue, waiting up to timeout for
+     * space to become available.
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return offer(e, true, unit.toNanos(timeout));
+    }
+
+    /**
+     * Insert e at the tail of the queue, waiting as long as
+     * necessary for space to become available.
+     */
+    public void put(E e) throws InterruptedException {
+        offer(e, false, 0);
+    }
+
+    /**
+     * Insert the elements of c at the tail of the queue, signalling
+     * waiting consumers once per run of elements that fit without
+     * waiting rather than once per element.
+     */
+    public int offerAll(Collection<? extends E> c, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int count = 0;
+        int unsignalled = 0;
+        try {
+            for (E e : c) {
+                if (e == null)
+                    throw new NullPointerException();
+
+                if (enqueue(e))
+                    unsignalled++;
+                else {
+                    // Let the consumers know about what we've inserted
+                    // so far before we block waiting for them.
+                    signalNotEmpty(unsignalled);
+                    unsignalled = 0;
+                    try {
+                        if (!offer(e, true, deadline - System.nanoTime()))
+                            return count;
+                    } catch (InterruptedException ex) {
+                        if (count == 0)
+                            throw ex;
+                        // Report the partial batch to the caller.
+                        Thread.currentThread().interrupt();
+                        return count;
+                    }
+                }
+                count++;
+            }
+        } finally {
+            signalNotEmpty(unsignalled);
+        }
+        return count;
+    }
+
+    /**
+     * Remove the element at the head of the queue, returning null if
+     * the queue is empty.
+     */
+    public E poll() {
+        E e = dequeue();
+        if (e != null)
+            signalNotFull(1);
+        return e;
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting up to
+     * timeout for one to become available.
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return poll(true, unit.toNanos(timeout));
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting as long
+     * as necessary for one to become available.
+     */
+    public E take() throws InterruptedException {
+        return poll(false, 0);
+    }
+
+    /**
+     * Returns the element at the head of the queue without removing
+     * it, or null if the queue is empty.
+     */
+    public E peek() {
+        for (;;) {
+            long head = mHead.get();
+            int index = (int) head & mMask;
+            long sequence = mSequences.get(index);
+            E e = mBuffer.get(index);
+            if (sequence - (head + 1) < 0)
+                return null;
+            // Only trust e if no consumer claimed the slot while we
+            // were reading it.
+            else if (sequence == head + 1 && mHead.get() == head)
+                return e;
+        }
+    }
+
+    /**
+     * Removes all available elements and adds them to c.
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes at most maxElements available elements and adds them
+     * to c.
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+
+        int count = 0;
+        E e;
+        while (count < maxElements
+               && (e = dequeue()) != null) {
+            c.add(e);
+            count++;
+        }
+
+        // Wake up as many blocked producers as we made room for.
+        signalNotFull(count);
+        return count;
+    }
+
+    /**
+     * Wake up to count consumers that are waiting for elements.
+     */
+    private void signalNotEmpty(int count) {
+        if (mWaitStrategy != null) {
+            if (count > 0)
+                mWaitStrategy.signalAll();
+        } else
+            for (int i = 0; i < count; i++)
+                mNotEmpty.signal();
+    }
+
+    /**
+     * Wake up to count producers that are waiting for space.
+     */
+    private void signalNotFull(int count) {
+        if (mWaitStrategy != null) {
+            if (count > 0)
+                mWaitStrategy.signalAll();
+        } else
+            for (int i = 0; i < count; i++)
+                mNotFull.signal();
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the elements that were
+     * in the queue when it was called.  The iterator doesn't
+     * support remove(), since elements can't be removed from the
+     * middle of the ring, so neither does remove(Object).
+     */
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<E>();
+        long tail = mTail.get();
+        for (long pos = mHead.get(); pos < tail; pos++) {
+            int index = (int) pos & mMask;
+            E e = mBuffer.get(index);
+            if (e != null && mSequences.get(index) == pos + 1)
+                snapshot.add(e);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /**
+     * Try to claim the slot at the tail and store e in it, returning
+     * false if the queue is full.
+     */
+    private boolean enqueue(E e) {
+        long pos = mTail.get();
+        for (;;) {
+            int index = (int) pos & mMask;
+            long difference = mSequences.get(index) - pos;
+            if (difference == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    mBuffer.lazySet(index, e);
+                    // Hand the slot over to the consumers.  This must
+                    // be a volatile write rather than a lazySet(), so
+                    // it can't be reordered with the check for
+                    // parked consumers that follows it.
+                    mSequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = mTail.get();
+            } else if (difference < 0)
+                // The slot still holds the element from the previous
+                // lap, so the queue is full.
+                return false;
+            else
+                // Another producer claimed the slot first.
+                pos = mTail.get();
+        }
+    }
+
+    /**
+     * Try to claim the slot at the head and remove its element,
+     * returning null if the queue is empty.
+     */
+    private E dequeue() {
+        long pos = mHead.get();
+        for (;;) {
+            int index = (int) pos & mMask;
+            long difference = mSequences.get(index) - (pos + 1);
+            if (difference == 0) {
+                if (mHead.compareAndSet(pos, pos + 1)) {
+                    E e = mBuffer.get(index);
+                    mBuffer.lazySet(index, null);
+                    // Hand the slot over to the producers of the next
+                    // lap (again with a volatile write, for the sake
+                    // of parked producers).
+                    mSequences.set(index, pos + mMask + 1);
+                    return e;
+                }
+                pos = mHead.get();
+            } else if (difference < 0)
+                // No producer has filled this slot yet, so the queue
+                // is empty.
+                return null;
+            else
+                // Another consumer claimed the slot first.
+                pos = mHead.get();
+        }
+    }
+
+    /**
+     * Insert e at the tail of the queue, waiting if the queue is
+     * full until space becomes available or (if timed is true) nanos
+     * have elapsed.
+     */
+    private boolean offer(E e, boolean timed, long nanos)
+        throws InterruptedException {
+        if (offer(e))
+            return true;
+
+        if (Thread.interrupted())
+            throw new InterruptedException();
+
+        long deadline = System.nanoTime() + nanos;
+        if (mWaitStrategy != null)
+            for (int attempt = 0; ; attempt++) {
+                long token = mWaitStrategy.prepare();
+                if (offer(e))
+                    return true;
+                if (timed) {
+                    nanos = deadline - System.nanoTime();
+                    if (nanos <= 0)
+                        return false;
+                } else
+                    nanos = Long.MAX_VALUE;
+                mWaitStrategy.await(attempt, token, nanos);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+
+        Thread me = Thread.currentThread();
+        for (;;) {
+            // Register before re-checking, so a consumer that frees
+            // a slot after our check is guaranteed to see us.
+            mNotFull.add(me);
+            if (enqueue(e)) {
+                mNotFull.remove(me);
+                mNotEmpty.signal();
+                return true;
+            }
+
+            if (timed) {
+                nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    mNotFull.cancel(me);
+                    return false;
+                }
+                mNotFull.park(this, nanos);
+            } else
+                mNotFull.park(this, Long.MAX_VALUE);
+
+            if (Thread.interrupted()) {
+                mNotFull.cancel(me);
+                throw new InterruptedException();
+            }
+            mNotFull.remove(me);
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting if the
+     * queue is empty until an element becomes available or (if
+     * timed is true) nanos have elapsed.
+     */
+    private E poll(boolean timed, long nanos) throws InterruptedException {
+        E e = poll();
+        if (e != null)
+            return e;
+
+        if (Thread.interrupted())
+            throw new InterruptedException();
+
+        long deadline = System.nanoTime() + nanos;
+        if (mWaitStrategy != null)
+            for (int attempt = 0; ; attempt++) {
+                long token = mWaitStrategy.prepare();
+                if ((e = poll()) != null)
+                    return e;
+                if (timed) {
+                    nanos = deadline - System.nanoTime();
+                    if (nanos <= 0)
+                        return null;
+                } else
+                    nanos = Long.MAX_VALUE;
+                mWaitStrategy.await(attempt, token, nanos);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+
+        Thread me = Thread.currentThread();
+        for (;;) {
+            // Register before re-checking, so a producer that fills
+            // a slot after our check is guaranteed to see us.
+            mNotEmpty.add(me);
+            if ((e = dequeue()) != null) {
+                mNotEmpty.remove(me);
+                mNotFull.signal();
+                return e;
+            }
+
+            if (timed) {
+                nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    mNotEmpty.cancel(me);
+                    return null;
+                }
+                mNotEmpty.park(this, nanos);
+            } else
+                mNotEmpty.park(this, Long.MAX_VALUE);
+
+            if (Thread.interrupted()) {
+                mNotEmpty.cancel(me);
+                throw new InterruptedException();
+            }
+            mNotEmpty.remove(me);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package edu.vuum.mooca;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+
+/**
+ * @class MemoryProbes
+ *
+ * @brief Measures how much memory this process is using, so that
+ *        PairsDriver.testPairs() and QueueBenchmark can report what
+ *        their Threads and queues cost.
+ */
+public class MemoryProbes {
+    /**
+     * Returned by residentBytes() when the resident memory can't be
+     * measured.  It can't be -1 since a difference between two
+     * measurements can legitimately be negative.
+     */
+    static final long UNMEASURED = Long.MIN_VALUE;
+
+    /**
+     * The page size assumed when converting /proc/self/statm to bytes.
+     */
+    private static final long RESIDENT_PAGE_SIZE = 4096;
+
+    /**
+     * Returns the number of bytes of heap in use after a garbage
+     * collection.
+     */
+    static long usedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Returns the resident memory of this process in bytes, or
+     * UNMEASURED if it can't be determined (it's read from /proc/self/statm, so
+     * it's only available on Linux).
+     */
+    static long residentBytes() {
+        try {
+            BufferedReader reader =
+                new BufferedReader(new FileReader("/proc/self/statm"));
+            try {
+                // The second field is the resident set size in pages.
+                String[] fields = reader.readLine().trim().split("\\s+");
+                return Long.parseLong(fields[1]) * RESIDENT_PAGE_SIZE;
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            return UNMEASURED;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package edu.vuum.mooca;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.vuum.mooca.SynchronizedQueue.QueueAdapter;
+import edu.vuum.mooca.SynchronizedQueue.SynchronizedQueueResult;
+
+/**
+ * @class PairsDriver
+ *
+ * @brief Runs many producer/consumer pairs at once, to measure
+ *        what each pair of Threads costs in memory and
+ *        throughput.
+ */
+public class PairsDriver {
+    /**
+     * This method runs pairs producer/consumer pairs, each on two new
+     * Threads made by threadFactory.  Pair i uses queue i % queues,
+     * so passing queues == pairs gives each pair a queue of its own,
+     * while fewer queues are shared by several pairs (and so need
+     * to support multiple producers and consumers).  Each queue holds
+     * capacity elements and is made by factory.
+     *
+     * Once every Thread has started it measures how much memory they
+     * use and how many elements they pass in mScalingMillis, then
+     * interrupts and joins them all and checks each queue's size
+     * against the number of elements put into and taken from it.
+     */
+    public static PairsResult testPairs(QueueFactory factory,
+                                        String testName,
+                                        int capacity,
+                                        int pairs,
+                                        int queues,
+                                        ThreadFactory threadFactory) {
+        Diagnostics.startTest(testName, SynchronizedQueue.diagnosticsEnabled);
+        StripedCounter produced = new StripedCounter(pairs);
+        StripedCounter consumed = new StripedCounter(pairs);
+        AtomicReference<SynchronizedQueueResult> failure =
+            new AtomicReference<SynchronizedQueueResult>();
+        // Don't let any pair start until every Thread has been
+        // started, which can take a while with thousands of them.
+        CyclicBarrier startBarrier = new CyclicBarrier(2 * pairs + 1);
+
+        List<Thread> threads = new ArrayList<Thread>(2 * pairs);
+        try {
+            long heapBefore = MemoryProbes.usedHeapBytes();
+            long residentBefore = MemoryProbes.residentBytes();
+
+            List<QueueAdapter<Integer>> adapters =
+                new ArrayList<QueueAdapter<Integer>>(queues);
+            for (int q = 0; q < queues; q++)
+                adapters.add(new QueueAdapter<Integer>(factory.<Integer>newQueue(capacity)));
+
+            for (int i = 0; i < pairs; i++) {
+                QueueAdapter<Integer> queue = adapters.get(i % queues);
+                threads.add(threadFactory.newThread(
+                    QueueRunnables.newCountingConsumer(queue,
+                                                       consumed,
+                                                       i,
+                                                       failure,
+                                                       startBarrier)));
+                threads.add(threadFactory.newThread(
+                    QueueRunnables.newCountingProducer(queue,
+                                                       produced,
+                                                       i,
+                                                       failure,
+                                                       startBarrier)));
+            }
+
+            for (Thread thread : threads)
+                thread.start();
+
+            // Measure the memory once every Thread is running, and
+            // only time the period after that.
+            try {
+                startBarrier.await(SynchronizedQueue.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                // The barrier is now broken, so every Thread that
+                // did start will give up.
+                failure.compareAndSet(null,
+                                      SynchronizedQueueResult.THREADS_NEVER_RAN);
+            }
+            long heapBytes = MemoryProbes.usedHeapBytes() - heapBefore;
+            long residentBytes = residentBefore == MemoryProbes.UNMEASURED
+                ? MemoryProbes.UNMEASURED
+                : MemoryProbes.residentBytes() - residentBefore;
+
+            long consumedBefore = consumed.sum();
+            long startTime = System.nanoTime();
+            Thread.sleep(SynchronizedQueue.mScalingMillis);
+            long consumedCount = consumed.sum() - consumedBefore;
+            long elapsed = System.nanoTime() - startTime;
+
+            interruptAndJoin(threads);
+            Diagnostics.flush();
+
+            SynchronizedQueueResult result = failure.get();
+            if (result == null) {
+                result = SynchronizedQueueResult.RAN_PROPERLY;
+                for (Thread thread : threads)
+                    if (thread.isAlive())
+                        result = SynchronizedQueueResult.THREADS_TIMEDOUT;
+            }
+
+            if (result == SynchronizedQueueResult.RAN_PROPERLY) {
+                if (produced.sum() == 0 || consumed.sum() == 0)
+                    result = SynchronizedQueueResult.THREADS_NEVER_RAN;
+
+                // Check every queue against the pairs that used it.
+                long[] remaining = new long[queues];
+                for (int i = 0; i < pairs; i++)
+                    remaining[i % queues] += produced.get(i) - consumed.get(i);
+                for (int q = 0; q < queues; q++)
+                    if (adapters.get(q).size() != remaining[q])
+                        result = SynchronizedQueueResult.INCORRECT_COUNT;
+            }
+
+            return new PairsResult(result,
+                                   pairs,
+                                   queues,
+                                   consumedCount,
+                                   elapsed,
+                                   heapBytes,
+                                   residentBytes);
+        } catch (Throwable t) {
+            // Catch Errors too, since with thousands of platform
+            // Threads the likeliest failure is an OutOfMemoryError
+            // from Thread.start().
+            return new PairsResult(SynchronizedQueueResult.TESTING_LOGIC_THREW_EXCEPTION,
+                                   pairs,
+                                   queues,
+                                   0,
+                                   0,
+                                   0,
+                                   MemoryProbes.UNMEASURED);
+        } finally {
+            // However the run ended, don't leave any Thread that did
+            // start behind, e.g., waiting at startBarrier for Threads
+            // that never will.
+            try {
+                interruptAndJoin(threads);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Interrupt every Thread in threads and wait up to
+     * TIMEOUT_SECONDS in all for them to finish.  Threads that were
+     * never started or have already finished are skipped over.
+     */
+    private static void interruptAndJoin(List<Thread> threads)
+        throws InterruptedException {
+        for (Thread thread : threads)
+            thread.interrupt();
+        long deadline = System.nanoTime()
+            + TimeUnit.SECONDS.toNanos(SynchronizedQueue.TIMEOUT_SECONDS);
+        for (Thread thread : threads)
+            thread.join(Math.max(1,
+                                 TimeUnit.NANOSECONDS.toMillis(deadline
+                                                               - System.nanoTime())));
+    }
+}
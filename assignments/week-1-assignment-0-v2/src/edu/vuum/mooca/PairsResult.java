@@ -0,0 +1,87 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.vuum.mooca.SynchronizedQueue.SynchronizedQueueResult;
+
+/**
+ * @class PairsResult
+ *
+ * @brief The outcome of running many producer/consumer pairs via
+ *        PairsDriver.testPairs(), including how much memory the
+ *        Threads used.
+ */
+public class PairsResult {
+    /**
+     * Whether the run worked.
+     */
+    public final SynchronizedQueueResult mResult;
+
+    /**
+     * The number of producer/consumer pairs and of queues they
+     * shared.
+     */
+    public final int mPairs;
+    public final int mQueues;
+
+    /**
+     * The number of elements taken while every Thread was running
+     * and how long that took.
+     */
+    public final long mConsumed;
+    public final long mElapsedNanos;
+
+    /**
+     * How much the used heap grew once every Thread had started.
+     */
+    public final long mHeapBytes;
+
+    /**
+     * How much the resident memory of the process grew once every
+     * Thread had started (which includes platform Thread stacks),
+     * or UNMEASURED if it couldn't be measured.
+     */
+    public final long mResidentBytes;
+
+    PairsResult(SynchronizedQueueResult result,
+                int pairs,
+                int queues,
+                long consumed,
+                long elapsedNanos,
+                long heapBytes,
+                long residentBytes) {
+        mResult = result;
+        mPairs = pairs;
+        mQueues = queues;
+        mConsumed = consumed;
+        mElapsedNanos = elapsedNanos;
+        mHeapBytes = heapBytes;
+        mResidentBytes = residentBytes;
+    }
+
+    /**
+     * Returns the number of elements taken per second.
+     */
+    public double opsPerSecond() {
+        return mElapsedNanos == 0
+            ? 0
+            : mConsumed * (double) TimeUnit.SECONDS.toNanos(1)
+              / mElapsedNanos;
+    }
+
+    /**
+     * Returns a one line summary of the run.
+     */
+    public String toString() {
+        return String.format("%6d pairs %6d queues %14.0f ops/sec %8.1fMB heap %8s resident %s",
+                             mPairs,
+                             mQueues,
+                             opsPerSecond(),
+                             mHeapBytes / (1024.0 * 1024.0),
+                             mResidentBytes == MemoryProbes.UNMEASURED
+                             ? "?"
+                             : String.format("%.1fMB",
+                                             mResidentBytes / (1024.0 * 1024.0)),
+                             mResult.getString());
+    }
+}
@@ -0,0 +1,74 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @class ParkingWaiters
+ *
+ * @brief Keeps track of the Threads that are blocked waiting for a
+ *        lock-free queue to become non-full (or non-empty) and wakes
+ *        them up one at a time via LockSupport.unpark().  Unlike a
+ *        Condition shared by all waiters, signal() only disturbs a
+ *        single Thread, which avoids "thundering herd" wakeups.
+ *
+ *        A waiting Thread must add() itself and then re-check the
+ *        state of the queue before it parks.  Since both add() and
+ *        the queue's own updates are volatile operations, either the
+ *        waiter sees the update or the updating Thread sees the
+ *        waiter, so no wakeup is ever lost.
+ */
+class ParkingWaiters {
+    /**
+     * The Threads that are currently waiting, in FIFO order.
+     */
+    private final ConcurrentLinkedQueue<Thread> mWaiters =
+        new ConcurrentLinkedQueue<Thread>();
+
+    /**
+     * Register thread as a waiter.
+     */
+    void add(Thread thread) {
+        mWaiters.add(thread);
+    }
+
+    /**
+     * Deregister thread, returning false if it had already been
+     * removed by signal().
+     */
+    boolean remove(Thread thread) {
+        return mWaiters.remove(thread);
+    }
+
+    /**
+     * Deregister thread when it gives up waiting (because it timed
+     * out or was interrupted).  If a signal() was already directed
+     * at it, pass the signal on to the next waiter so it isn't lost.
+     */
+    void cancel(Thread thread) {
+        if (!mWaiters.remove(thread))
+            signal();
+    }
+
+    /**
+     * Park the calling Thread for at most nanos, or until it's
+     * signalled or interrupted.
+     */
+    void park(Object blocker, long nanos) {
+        LockSupport.parkNanos(blocker, nanos);
+    }
+
+    /**
+     * Wake up the longest waiting Thread, if there is one.
+     */
+    void signal() {
+        // The common case is that nobody is waiting, so make that
+        // as cheap as possible.
+        if (mWaiters.isEmpty())
+            return;
+
+        Thread thread = mWaiters.poll();
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+}
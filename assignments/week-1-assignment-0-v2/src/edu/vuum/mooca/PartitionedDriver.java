@@ -0,0 +1,143 @@
+package edu.vuum.mooca;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.vuum.mooca.SynchronizedQueue.SynchronizedQueueResult;
+
+/**
+ * @class PartitionedDriver
+ *
+ * @brief Runs a PartitionedQueue while rebalancing it across
+ *        different numbers of consumers, checking that elements
+ *        with the same key stay in order.
+ */
+public class PartitionedDriver {
+    /**
+     * This method runs producers Threads that put elements with keys
+     * of their own into a PartitionedQueue with the given number of
+     * partitions of capacity elements made by factory, and rebalances
+     * it to each of consumerCounts consumers in turn for
+     * mScalingMillis apiece.  Each producer numbers the elements of
+     * each key consecutively and the Handler checks that it sees
+     * them in that order, even across rebalances.  Finally it stops
+     * the producers, lets the consumers handle whatever is left and
+     * checks that every element put was handled.
+     *
+     * @return a ScalingResult for each entry in consumerCounts, all
+     *         with the result of the whole run
+     */
+    public static List<ScalingResult> testPartitioned(QueueFactory factory,
+                                                      String testName,
+                                                      int capacity,
+                                                      int partitions,
+                                                      final int producers,
+                                                      int[] consumerCounts) {
+        Diagnostics.startTest(testName, SynchronizedQueue.diagnosticsEnabled);
+        final int keysPerProducer = partitions;
+        final int keys = producers * keysPerProducer;
+        final AtomicLongArray lastSeen = new AtomicLongArray(keys);
+        final AtomicReference<SynchronizedQueueResult> failure =
+            new AtomicReference<SynchronizedQueueResult>();
+
+        final PartitionedQueue<Integer, Long> queue =
+            new PartitionedQueue<Integer, Long>(partitions,
+                                                capacity,
+                                                factory,
+                                                new PartitionedQueue.Handler<Integer, Long>() {
+                                                    public void process(Integer key, Long sequence) {
+                                                        // Only this partition's consumer
+                                                        // touches the key's slot.
+                                                        if (sequence != lastSeen.get(key) + 1)
+                                                            failure.compareAndSet(null,
+                                                                                  SynchronizedQueueResult.OUT_OF_ORDER);
+                                                        lastSeen.set(key, sequence);
+                                                    }
+                                                },
+                                                ThreadFactories.platform());
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            threads.add(new Thread(new Runnable() {
+                    public void run() {
+                        // Key producer + j * producers is only ever
+                        // put by this producer.
+                        long[] sequences = new long[keysPerProducer];
+                        try {
+                            for (int j = 0; !Thread.currentThread().isInterrupted();
+                                 j = (j + 1) % keysPerProducer)
+                                queue.put(producer + j * producers, ++sequences[j]);
+                        } catch (InterruptedException e) {
+                            // We've been stopped.
+                        }
+                    }
+                }));
+        }
+
+        long[] consumed = new long[consumerCounts.length];
+        long[] produced = new long[consumerCounts.length];
+        long[] elapsed = new long[consumerCounts.length];
+        List<ScalingResult> curve = new ArrayList<ScalingResult>();
+        try {
+            for (Thread thread : threads)
+                thread.start();
+            for (int i = 0; i < consumerCounts.length; i++) {
+                queue.setConsumers(consumerCounts[i]);
+                long startTime = System.nanoTime();
+                long producedBefore = queue.getPut();
+                long consumedBefore = queue.getProcessed();
+                Thread.sleep(SynchronizedQueue.mScalingMillis);
+                produced[i] = queue.getPut() - producedBefore;
+                consumed[i] = queue.getProcessed() - consumedBefore;
+                elapsed[i] = System.nanoTime() - startTime;
+            }
+
+            for (Thread thread : threads)
+                thread.interrupt();
+            for (Thread thread : threads)
+                thread.join(TimeUnit.SECONDS.toMillis(SynchronizedQueue.TIMEOUT_SECONDS));
+            boolean drained =
+                queue.awaitDrained(TimeUnit.SECONDS.toMillis(SynchronizedQueue.TIMEOUT_SECONDS));
+            queue.shutdown();
+            Diagnostics.flush();
+
+            SynchronizedQueueResult result;
+            if (failure.get() != null)
+                result = failure.get();
+            else {
+                result = SynchronizedQueueResult.RAN_PROPERLY;
+                for (Thread thread : threads)
+                    if (thread.isAlive() || !drained)
+                        result = SynchronizedQueueResult.THREADS_TIMEDOUT;
+            }
+            if (result == SynchronizedQueueResult.RAN_PROPERLY) {
+                if (queue.getPut() == 0)
+                    result = SynchronizedQueueResult.THREADS_NEVER_RAN;
+                else if (queue.getProcessed() != queue.getPut())
+                    result = SynchronizedQueueResult.INCORRECT_COUNT;
+            }
+
+            for (int i = 0; i < consumerCounts.length; i++)
+                curve.add(new ScalingResult(result,
+                                            producers,
+                                            consumerCounts[i],
+                                            produced[i],
+                                            consumed[i],
+                                            elapsed[i]));
+        } catch (Exception e) {
+            curve.clear();
+            for (int i = 0; i < consumerCounts.length; i++)
+                curve.add(new ScalingResult(SynchronizedQueueResult.TESTING_LOGIC_THREW_EXCEPTION,
+                                            producers,
+                                            consumerCounts[i],
+                                            0,
+                                            0,
+                                            1));
+        }
+        return curve;
+    }
+}
@@ -0,0 +1,414 @@
+package edu.vuum.mooca;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @class PartitionedQueue
+ *
+ * @brief Processes elements in order per key but in parallel across
+ *        keys.  Each element is put with a key, whose hash picks one
+ *        of a fixed number of partitions, each of which is a
+ *        BlockingQueue of its own.  Every partition is owned by
+ *        exactly one consumer Thread, which passes its elements to a
+ *        Handler one at a time, so elements with the same key are
+ *        handled in the order they were put, while partitions owned
+ *        by different consumers are handled concurrently.
+ *
+ *        The number of consumers can be changed while elements are
+ *        flowing, which rebalances the partitions between them.
+ *        Rebalancing stops every consumer once it has finished the
+ *        element it's handling and only then starts the new ones, so
+ *        a partition is never handled by two Threads at once and
+ *        per-key order is preserved.  Elements put during a
+ *        rebalance simply wait in their partition.
+ */
+public class PartitionedQueue<K, E> {
+    /**
+     * @class Handler
+     *
+     * @brief The work done on each element, which is called by the
+     *        consumer that owns the element's partition.
+     */
+    public interface Handler<K, E> {
+        void process(K key, E element);
+    }
+
+    /**
+     * @class Entry
+     *
+     * @brief An element together with its key.
+     */
+    static class Entry<K, E> {
+        final K mKey;
+        final E mElement;
+
+        Entry(K key, E element) {
+            mKey = key;
+            mElement = element;
+        }
+    }
+
+    /**
+     * @class Consumer
+     *
+     * @brief Handles the elements of the partitions it owns, taking
+     *        one from each in turn, until a rebalance replaces it.
+     */
+    class Consumer implements Runnable {
+        /**
+         * The partitions this consumer owns.
+         */
+        private final int[] mPartitions;
+
+        /**
+         * The value of mGeneration when this consumer was started.
+         */
+        private final int mGeneration;
+
+        /**
+         * Set while this consumer is about to park, so that
+         * producers know they need to unpark it.
+         */
+        private volatile boolean mIdle;
+
+        /**
+         * The Thread this consumer runs on, which is set before it's
+         * started.
+         */
+        private volatile Thread mThread;
+
+        Consumer(int[] partitions, int generation) {
+            mPartitions = partitions;
+            mGeneration = generation;
+        }
+
+        /**
+         * Handle elements until a rebalance starts a new generation.
+         */
+        public void run() {
+            while (mGeneration == PartitionedQueue.this.mGeneration) {
+                if (handleAvailable())
+                    continue;
+
+                // Tell producers we're about to park and then look
+                // again, so an element put in between isn't missed.
+                mIdle = true;
+                if (!handleAvailable()
+                    && mGeneration == PartitionedQueue.this.mGeneration)
+                    LockSupport.park(this);
+                mIdle = false;
+            }
+        }
+
+        /**
+         * Handle at most one element from each owned partition.
+         *
+         * @return true if there were any
+         */
+        private boolean handleAvailable() {
+            boolean handled = false;
+            for (int partition : mPartitions) {
+                Entry<K, E> entry = mQueues.get(partition).poll();
+                if (entry == null)
+                    continue;
+                try {
+                    mHandler.process(entry.mKey, entry.mElement);
+                } catch (RuntimeException e) {
+                    // Don't let one bad element stop the partition.
+                    Diagnostics.print("PartitionedQueue", e);
+                }
+                mProcessed.incrementAndGet(partition);
+                handled = true;
+            }
+            return handled;
+        }
+
+        /**
+         * Unpark this consumer if it's waiting for elements.
+         */
+        void wakeIfIdle() {
+            if (mIdle)
+                LockSupport.unpark(mThread);
+        }
+    }
+
+    /**
+     * The queue of each partition.
+     */
+    private final List<BlockingQueue<Entry<K, E>>> mQueues;
+
+    /**
+     * The work done on each element.
+     */
+    private final Handler<K, E> mHandler;
+
+    /**
+     * Makes the Thread of each consumer.
+     */
+    private final ThreadFactory mThreadFactory;
+
+    /**
+     * The number of elements put into each partition.
+     */
+    private final AtomicLongArray mPut;
+
+    /**
+     * The number of elements handled from each partition.
+     */
+    private final AtomicLongArray mProcessed;
+
+    /**
+     * The consumer that owns each partition, or null while there are
+     * no consumers.  A rebalance replaces the whole List rather than
+     * changing it.
+     */
+    private volatile List<Consumer> mOwners;
+
+    /**
+     * The current consumers.
+     */
+    private final List<Consumer> mConsumers = new ArrayList<Consumer>();
+
+    /**
+     * Incremented by every rebalance, which tells the consumers of
+     * the previous generation to stop.
+     */
+    private volatile int mGeneration;
+
+    /**
+     * Constructor creates partitions queues of the given capacity
+     * via factory, whose elements are passed to handler by consumers
+     * made by threadFactory.  There are no consumers until
+     * setConsumers() is called.
+     */
+    public PartitionedQueue(int partitions,
+                            int capacity,
+                            QueueFactory factory,
+                            Handler<K, E> handler,
+                            ThreadFactory threadFactory) {
+        if (partitions < 1)
+            throw new IllegalArgumentException("partitions = " + partitions);
+        // Any number of producers may put into the same partition.
+        if (factory.isSingleProducerSingleConsumer())
+            throw new IllegalArgumentException("partitions need a multi-producer queue");
+
+        mQueues = new ArrayList<BlockingQueue<Entry<K, E>>>(partitions);
+        for (int i = 0; i < partitions; i++)
+            mQueues.add(factory.<Entry<K, E>>newQueue(capacity));
+        mHandler = handler;
+        mThreadFactory = threadFactory;
+        mPut = new AtomicLongArray(partitions);
+        mProcessed = new AtomicLongArray(partitions);
+        mOwners = new ArrayList<Consumer>();
+        for (int i = 0; i < partitions; i++)
+            mOwners.add(null);
+    }
+
+    /**
+     * Returns the number of partitions.
+     */
+    public int partitions() {
+        return mQueues.size();
+    }
+
+    /**
+     * Returns the partition that elements with the given key go to.
+     */
+    public int partitionOf(K key) {
+        int h = key.hashCode();
+        // Spread the high bits down, since keys that differ only in
+        // their high bits would otherwise share a partition.
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % mQueues.size();
+    }
+
+    /**
+     * Insert element into the partition of key, waiting as long as
+     * necessary for space to become available.
+     */
+    public void put(K key, E element) throws InterruptedException {
+        int partition = partitionOf(key);
+        mQueues.get(partition).put(new Entry<K, E>(key, element));
+        mPut.incrementAndGet(partition);
+        wakeOwner(partition);
+    }
+
+    /**
+     * Insert element into the partition of key, waiting up to
+     * timeout for space to become available.
+     *
+     * @return false if timeout elapsed first
+     */
+    public boolean offer(K key, E element, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        int partition = partitionOf(key);
+        if (!mQueues.get(partition).offer(new Entry<K, E>(key, element),
+                                          timeout,
+                                          unit))
+            return false;
+        mPut.incrementAndGet(partition);
+        wakeOwner(partition);
+        return true;
+    }
+
+    /**
+     * Returns the number of elements waiting in partition.
+     */
+    public int depth(int partition) {
+        return mQueues.get(partition).size();
+    }
+
+    /**
+     * Returns the number of elements waiting in each partition.
+     */
+    public int[] depths() {
+        int[] depths = new int[mQueues.size()];
+        for (int i = 0; i < depths.length; i++)
+            depths[i] = depth(i);
+        return depths;
+    }
+
+    /**
+     * Returns the number of elements handled from partition.
+     */
+    public long getProcessed(int partition) {
+        return mProcessed.get(partition);
+    }
+
+    /**
+     * Returns the number of elements put into every partition.
+     */
+    public long getPut() {
+        long put = 0;
+        for (int i = 0; i < mPut.length(); i++)
+            put += mPut.get(i);
+        return put;
+    }
+
+    /**
+     * Returns the number of elements handled from every partition.
+     */
+    public long getProcessed() {
+        long processed = 0;
+        for (int i = 0; i < mProcessed.length(); i++)
+            processed += mProcessed.get(i);
+        return processed;
+    }
+
+    /**
+     * Returns the index of the consumer that owns partition, or -1
+     * if there are no consumers.
+     */
+    public synchronized int ownerOf(int partition) {
+        return mConsumers.isEmpty()
+            ? -1
+            : mConsumers.indexOf(mOwners.get(partition));
+    }
+
+    /**
+     * Returns the number of consumers.
+     */
+    public synchronized int getConsumers() {
+        return mConsumers.size();
+    }
+
+    /**
+     * Rebalance the partitions between consumers consumer Threads,
+     * which is capped at the number of partitions since a consumer
+     * without a partition would have nothing to do.  Setting it to
+     * zero stops consuming altogether.  The consumers are stopped
+     * after the element each is handling and waited for before the
+     * new ones start, so this blocks for as long as the slowest
+     * Handler call in progress.
+     */
+    public synchronized void setConsumers(int consumers)
+        throws InterruptedException {
+        if (consumers < 0)
+            throw new IllegalArgumentException("consumers = " + consumers);
+        consumers = Math.min(consumers, mQueues.size());
+
+        // Stop the current generation.
+        int generation = ++mGeneration;
+        for (Consumer consumer : mConsumers)
+            LockSupport.unpark(consumer.mThread);
+        for (Consumer consumer : mConsumers)
+            consumer.mThread.join();
+        mConsumers.clear();
+        if (consumers == 0)
+            return;
+
+        // Deal the partitions out round-robin.
+        List<Consumer> owners = new ArrayList<Consumer>(mOwners);
+        for (int i = 0; i < consumers; i++) {
+            int[] partitions = new int[(mQueues.size() - i + consumers - 1) / consumers];
+            for (int j = 0; j < partitions.length; j++)
+                partitions[j] = i + j * consumers;
+            Consumer consumer = new Consumer(partitions, generation);
+            consumer.mThread = mThreadFactory.newThread(consumer);
+            mConsumers.add(consumer);
+            for (int partition : partitions)
+                owners.set(partition, consumer);
+        }
+        mOwners = owners;
+        for (Consumer consumer : mConsumers)
+            consumer.mThread.start();
+    }
+
+    /**
+     * Add a consumer and rebalance.
+     */
+    public synchronized void addConsumer() throws InterruptedException {
+        setConsumers(mConsumers.size() + 1);
+    }
+
+    /**
+     * Remove a consumer, if there are any, and rebalance.
+     */
+    public synchronized void removeConsumer() throws InterruptedException {
+        if (!mConsumers.isEmpty())
+            setConsumers(mConsumers.size() - 1);
+    }
+
+    /**
+     * Wait up to timeoutMillis for every element that has been put
+     * to be handled.
+     *
+     * @return true if they were
+     */
+    public boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (;;) {
+            boolean drained = true;
+            for (int i = 0; i < mPut.length(); i++)
+                if (mProcessed.get(i) < mPut.get(i))
+                    drained = false;
+            if (drained)
+                return true;
+            if (System.currentTimeMillis() >= deadline)
+                return false;
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Stop every consumer, leaving any elements in their partitions.
+     */
+    public void shutdown() throws InterruptedException {
+        setConsumers(0);
+    }
+
+    /**
+     * Unpark the consumer that owns partition if it's waiting.
+     */
+    private void wakeOwner(int partition) {
+        Consumer owner = mOwners.get(partition);
+        if (owner != null)
+            owner.wakeIfIdle();
+    }
+}
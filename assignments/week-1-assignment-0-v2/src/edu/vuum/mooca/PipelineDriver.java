@@ -0,0 +1,142 @@
+package edu.vuum.mooca;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.vuum.mooca.SynchronizedQueue.SynchronizedQueueResult;
+
+/**
+ * @class PipelineDriver
+ *
+ * @brief Runs a RingPipeline of three dependent stages, to
+ *        measure its throughput and how far each stage lags
+ *        behind the producer.
+ */
+public class PipelineDriver {
+    /**
+     * Run a producer Thread that publishes events into a RingPipeline
+     * of the given capacity with "decode", "enrich" and "sink" stages
+     * for mScalingMillis, sampling how far each stage lags behind the
+     * producer.  Then stop the producer, let the stages finish and
+     * check that every stage processed every event and that the sink
+     * saw the result of the other two stages.
+     */
+    public static PipelineResult testPipeline(String testName,
+                                              int capacity,
+                                              WaitStrategy waitStrategy) {
+        Diagnostics.startTest(testName, SynchronizedQueue.diagnosticsEnabled);
+        final RingPipeline<PipelineEvent> pipeline =
+            new RingPipeline<PipelineEvent>(capacity,
+                                            new RingPipeline.EventFactory<PipelineEvent>() {
+                                                public PipelineEvent newInstance() {
+                                                    return new PipelineEvent();
+                                                }
+                                            },
+                                            waitStrategy);
+        RingPipeline<PipelineEvent>.Stage decode =
+            pipeline.addStage("decode",
+                              new RingPipeline.Handler<PipelineEvent>() {
+                                  public void onEvent(PipelineEvent event, long sequence) {
+                                      event.mDecoded = event.mRaw * 2;
+                                  }
+                              });
+        RingPipeline<PipelineEvent>.Stage enrich =
+            pipeline.addStage("enrich",
+                              new RingPipeline.Handler<PipelineEvent>() {
+                                  public void onEvent(PipelineEvent event, long sequence) {
+                                      event.mEnriched = event.mDecoded + 1;
+                                  }
+                              },
+                              decode);
+        final AtomicLong mismatches = new AtomicLong();
+        pipeline.addStage("sink",
+                          new RingPipeline.Handler<PipelineEvent>() {
+                              public void onEvent(PipelineEvent event, long sequence) {
+                                  if (event.mRaw != sequence
+                                      || event.mEnriched != sequence * 2 + 1)
+                                      mismatches.incrementAndGet();
+                              }
+                          },
+                          enrich);
+
+        Thread producer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            long sequence = pipeline.next();
+                            pipeline.get(sequence).mRaw = sequence;
+                            pipeline.publish(sequence);
+                        }
+                    } catch (InterruptedException e) {
+                        Diagnostics.print("pipelineProducerRunnable", e);
+                    }
+                }
+            });
+
+        List<RingPipeline<PipelineEvent>.Stage> stages = pipeline.getStages();
+        String[] names = new String[stages.size()];
+        long[] processed = new long[stages.size()];
+        long[] maxLag = new long[stages.size()];
+        double[] meanLag = new double[stages.size()];
+
+        try {
+            long startTime = System.nanoTime();
+            pipeline.start(ThreadFactories.platform());
+            producer.start();
+
+            long samples = 0;
+            long endTime = startTime
+                + TimeUnit.MILLISECONDS.toNanos(SynchronizedQueue.mScalingMillis);
+            while (System.nanoTime() < endTime) {
+                Thread.sleep(1);
+                for (int i = 0; i < stages.size(); i++) {
+                    long lag = stages.get(i).getLag();
+                    maxLag[i] = Math.max(maxLag[i], lag);
+                    meanLag[i] += lag;
+                }
+                samples++;
+            }
+
+            producer.interrupt();
+            producer.join(TimeUnit.SECONDS.toMillis(SynchronizedQueue.TIMEOUT_SECONDS));
+            boolean drained =
+                pipeline.awaitDrained(TimeUnit.SECONDS.toMillis(SynchronizedQueue.TIMEOUT_SECONDS));
+            long elapsed = System.nanoTime() - startTime;
+            pipeline.halt();
+            Diagnostics.flush();
+
+            SynchronizedQueueResult result = SynchronizedQueueResult.RAN_PROPERLY;
+            for (int i = 0; i < stages.size(); i++) {
+                names[i] = stages.get(i).getName();
+                processed[i] = stages.get(i).getProcessed();
+                if (samples > 0)
+                    meanLag[i] /= samples;
+                if (processed[i] != pipeline.getPublished())
+                    result = SynchronizedQueueResult.INCORRECT_COUNT;
+            }
+            if (mismatches.get() > 0)
+                result = SynchronizedQueueResult.INCORRECT_COUNT;
+            if (producer.isAlive() || !drained)
+                result = SynchronizedQueueResult.THREADS_TIMEDOUT;
+            else if (pipeline.getPublished() == 0)
+                result = SynchronizedQueueResult.THREADS_NEVER_RAN;
+
+            return new PipelineResult(result,
+                                      pipeline.getPublished(),
+                                      elapsed,
+                                      names,
+                                      processed,
+                                      maxLag,
+                                      meanLag);
+        } catch (Exception e) {
+            return new PipelineResult(SynchronizedQueueResult.TESTING_LOGIC_THREW_EXCEPTION,
+                                      0,
+                                      0,
+                                      names,
+                                      processed,
+                                      maxLag,
+                                      meanLag);
+        }
+    }
+}
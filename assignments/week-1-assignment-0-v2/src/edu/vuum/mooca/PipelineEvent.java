@@ -0,0 +1,14 @@
+package edu.vuum.mooca;
+
+/**
+ * @class PipelineEvent
+ *
+ * @brief The event that PipelineDriver.testPipeline() passes
+ *        through its stages, each of which fills in the field that
+ *        the next one reads.
+ */
+class PipelineEvent {
+    long mRaw;
+    long mDecoded;
+    long mEnriched;
+}
@@ -0,0 +1,90 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.vuum.mooca.SynchronizedQueue.SynchronizedQueueResult;
+
+/**
+ * @class PipelineResult
+ *
+ * @brief The outcome of running a RingPipeline via
+ *        PipelineDriver.testPipeline(), with the throughput and lag
+ *        of each stage.
+ */
+public class PipelineResult {
+    /**
+     * Whether the run worked.
+     */
+    public final SynchronizedQueueResult mResult;
+
+    /**
+     * The number of events the producer published.
+     */
+    public final long mPublished;
+
+    /**
+     * How long it took to publish the events and for every stage
+     * to process them.
+     */
+    public final long mElapsedNanos;
+
+    /**
+     * The name of each stage, in dependency order.
+     */
+    public final String[] mStages;
+
+    /**
+     * The number of events each stage processed.
+     */
+    public final long[] mProcessed;
+
+    /**
+     * The largest and mean number of published events each stage
+     * hadn't yet processed, sampled while the producer ran.
+     */
+    public final long[] mMaxLag;
+    public final double[] mMeanLag;
+
+    PipelineResult(SynchronizedQueueResult result,
+                   long published,
+                   long elapsedNanos,
+                   String[] stages,
+                   long[] processed,
+                   long[] maxLag,
+                   double[] meanLag) {
+        mResult = result;
+        mPublished = published;
+        mElapsedNanos = elapsedNanos;
+        mStages = stages;
+        mProcessed = processed;
+        mMaxLag = maxLag;
+        mMeanLag = meanLag;
+    }
+
+    /**
+     * Returns the number of events stage processed per second.
+     */
+    public double opsPerSecond(int stage) {
+        return mElapsedNanos == 0
+            ? 0
+            : mProcessed[stage] * (double) TimeUnit.SECONDS.toNanos(1)
+              / mElapsedNanos;
+    }
+
+    /**
+     * Returns a summary of the run with a line per stage.
+     */
+    public String toString() {
+        StringBuilder builder =
+            new StringBuilder(String.format("%d events published %s",
+                                            mPublished,
+                                            mResult.getString()));
+        for (int i = 0; i < mStages.length; i++)
+            builder.append(String.format("%n    %-10s %14.0f ops/sec %10d max lag %12.1f mean lag",
+                                         mStages[i],
+                                         opsPerSecond(i),
+                                         mMaxLag[i],
+                                         mMeanLag[i]));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,496 @@
+package edu.vuum.mooca;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @class PrioritySkipListBlockingQueue
+ *
+ * @brief Defines a bounded, priority-ordered implementation of the
+ *        BlockingQueue interface that any number of producer and
+ *        consumer Threads can use concurrently.  Unlike
+ *        PriorityBlockingQueue, whose binary heap is guarded by a
+ *        single lock, the elements are kept in a lock-free
+ *        ConcurrentSkipListSet, so producers inserting at different
+ *        priorities don't contend at all.
+ *
+ *        Consumers delete elements in two steps.  First a consumer
+ *        claims a node by CAS'ing its claimed flag, which removes it
+ *        logically, and then it unlinks the node from the skip list.
+ *        If every consumer went for the very first node they would
+ *        all contend for it, so the queue is relaxed: each consumer
+ *        skips a random number (less than the relaxation) of
+ *        unclaimed nodes before it tries to claim one.  Elements may
+ *        thus be taken slightly out of order, by at most relaxation
+ *        - 1 places.  A relaxation of 1 gives strict priority order.
+ *
+ *        A Prioritizer gives each element a priority, where smaller
+ *        is more urgent.  To stop a steady stream of urgent elements
+ *        from starving the rest, elements age: each is ranked by the
+ *        time it was inserted plus its priority times agingNanos, so
+ *        an element overtakes any element one priority more urgent
+ *        that's inserted more than agingNanos after it.  An
+ *        agingNanos of 0 disables aging, so elements are ranked by
+ *        priority alone, and FIFO within a priority.
+ *
+ *        Threads that have to block park individually via
+ *        ParkingWaiters, as in MPMCBlockingQueue.
+ */
+public class PrioritySkipListBlockingQueue<E> extends AbstractQueue<E>
+                                              implements BlockingQueue<E> {
+    /**
+     * @class Prioritizer
+     *
+     * @brief Gives each element a priority, where smaller values are
+     *        more urgent.
+     */
+    public interface Prioritizer<E> {
+        int priorityOf(E e);
+    }
+
+    /**
+     * @class Node
+     *
+     * @brief An element in the skip list, ordered by rank and then by
+     *        the order in which it was inserted.
+     */
+    static final class Node<E> implements Comparable<Node<E>> {
+        final long mRank;
+        final long mSequence;
+        final E mItem;
+
+        /**
+         * Set to 1 by the consumer that claims this node.
+         */
+        volatile int mClaimed;
+
+        Node(long rank, long sequence, E item) {
+            mRank = rank;
+            mSequence = sequence;
+            mItem = item;
+        }
+
+        public int compareTo(Node<E> other) {
+            if (mRank != other.mRank)
+                return mRank < other.mRank ? -1 : 1;
+            else if (mSequence != other.mSequence)
+                return mSequence < other.mSequence ? -1 : 1;
+            else
+                return 0;
+        }
+    }
+
+    /**
+     * Atomically claims a Node.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Node> CLAIMED =
+        AtomicIntegerFieldUpdater.newUpdater(Node.class, "mClaimed");
+
+    /**
+     * The random number generator of each consumer Thread, which
+     * picks how many nodes to skip.
+     */
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+            protected Random initialValue() {
+                return new Random();
+            }
+        };
+
+    /**
+     * The nodes, most urgent first.
+     */
+    private final ConcurrentSkipListSet<Node<E>> mNodes =
+        new ConcurrentSkipListSet<Node<E>>();
+
+    /**
+     * Gives each element its priority.
+     */
+    private final Prioritizer<? super E> mPrioritizer;
+
+    /**
+     * The maximum number of elements.
+     */
+    private final int mCapacity;
+
+    /**
+     * Each consumer skips fewer than this many unclaimed nodes.
+     */
+    private final int mRelaxation;
+
+    /**
+     * How long an element waits before it ranks with elements one
+     * priority more urgent, or 0 to disable aging.
+     */
+    private final long mAgingNanos;
+
+    /**
+     * The time from which insertion times are measured.
+     */
+    private final long mEpoch = System.nanoTime();
+
+    /**
+     * Breaks ties between elements of the same rank.
+     */
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * The number of elements inserted (or about to be) and not yet
+     * claimed, which producers increment before inserting so the
+     * capacity is never exceeded.
+     */
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    /**
+     * Producers waiting for space.
+     */
+    private final ParkingWaiters mNotFull = new ParkingWaiters();
+
+    /**
+     * Consumers waiting for elements.
+     */
+    private final ParkingWaiters mNotEmpty = new ParkingWaiters();
+
+    /**
+     * Constructor creates a queue of capacity elements in strict
+     * priority order without aging.
+     */
+    public PrioritySkipListBlockingQueue(int capacity,
+                                         Prioritizer<? super E> prioritizer) {
+        this(capacity, prioritizer, 1, 0);
+    }
+
+    /**
+     * Constructor creates a queue of capacity elements whose
+     * consumers skip fewer than relaxation elements and whose
+     * elements age by one priority every agingNanos.
+     */
+    public PrioritySkipListBlockingQueue(int capacity,
+                                         Prioritizer<? super E> prioritizer,
+                                         int relaxation,
+                                         long agingNanos) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity = " + capacity);
+        if (relaxation < 1)
+            throw new IllegalArgumentException("relaxation = " + relaxation);
+        if (agingNanos < 0)
+            throw new IllegalArgumentException("agingNanos = " + agingNanos);
+        mCapacity = capacity;
+        mPrioritizer = prioritizer;
+        mRelaxation = relaxation;
+        mAgingNanos = agingNanos;
+    }
+
+    /**
+     * Returns the number of elements the queue can hold.
+     */
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of elements in this queue.
+     */
+    public int size() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns the number of additional elements this queue can
+     * accept without blocking.
+     */
+    public int remainingCapacity() {
+        return mCapacity - size();
+    }
+
+    /**
+     * Insert e if there's room, returning false if the queue is
+     * full.
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+
+        if (!enqueue(e))
+            return false;
+
+        mNotEmpty.signal();
+        return true;
+    }
+
+    /**
+     * Insert e, waiting up to timeout for space to become available.
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return offer(e, true, unit.toNanos(timeout));
+    }
+
+    /**
+     * Insert e, waiting as long as necessary for space to become
+     * available.
+     */
+    public void put(E e) throws InterruptedException {
+        offer(e, false, 0);
+    }
+
+    /**
+     * Remove one of the most urgent elements, returning null if the
+     * queue is empty.
+     */
+    public E poll() {
+        E e = dequeue();
+        if (e != null)
+            mNotFull.signal();
+        return e;
+    }
+
+    /**
+     * Remove one of the most urgent elements, waiting up to timeout
+     * for one to become available.
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return poll(true, unit.toNanos(timeout));
+    }
+
+    /**
+     * Remove one of the most urgent elements, waiting as long as
+     * necessary for one to become available.
+     */
+    public E take() throws InterruptedException {
+        return poll(false, 0);
+    }
+
+    /**
+     * Returns the most urgent element without removing it, or null
+     * if the queue is empty.
+     */
+    public E peek() {
+        for (Node<E> node : mNodes)
+            if (node.mClaimed == 0)
+                return node.mItem;
+        return null;
+    }
+
+    /**
+     * Remove an element equal to o, if there is one.
+     */
+    public boolean remove(Object o) {
+        if (o == null)
+            return false;
+
+        for (Node<E> node : mNodes)
+            if (node.mClaimed == 0
+                && o.equals(node.mItem)
+                && claim(node)) {
+                mNotFull.signal();
+                return true;
+            }
+        return false;
+    }
+
+    /**
+     * Removes all available elements and adds them to c.
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes at most maxElements available elements, most urgent
+     * first, and adds them to c.
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+
+        int count = 0;
+        for (Node<E> node : mNodes) {
+            if (count >= maxElements)
+                break;
+            if (node.mClaimed == 0 && claim(node)) {
+                c.add(node.mItem);
+                count++;
+            }
+        }
+
+        // Wake up as many blocked producers as we made room for.
+        for (int i = 0; i < count; i++)
+            mNotFull.signal();
+        return count;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the elements that were
+     * in the queue when it was called, most urgent first.  The
+     * iterator doesn't support remove().
+     */
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<E>();
+        for (Node<E> node : mNodes)
+            if (node.mClaimed == 0)
+                snapshot.add(node.mItem);
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /**
+     * Reserve room for e and insert it, returning false if the queue
+     * is full.
+     */
+    private boolean enqueue(E e) {
+        for (;;) {
+            int count = mCount.get();
+            if (count >= mCapacity)
+                return false;
+            if (mCount.compareAndSet(count, count + 1))
+                break;
+        }
+
+        long priority = mPrioritizer.priorityOf(e);
+        long rank = mAgingNanos == 0
+            ? priority
+            : System.nanoTime() - mEpoch + priority * mAgingNanos;
+        mNodes.add(new Node<E>(rank, mSequence.getAndIncrement(), e));
+        return true;
+    }
+
+    /**
+     * Claim and remove one of the first mRelaxation unclaimed nodes,
+     * returning its element, or null if there are none.
+     */
+    private E dequeue() {
+        while (mCount.get() > 0) {
+            int skip = mRelaxation == 1
+                ? 0
+                : RANDOM.get().nextInt(mRelaxation);
+            Node<E> candidate = null;
+            for (Node<E> node : mNodes) {
+                if (node.mClaimed != 0)
+                    continue;
+                candidate = node;
+                if (skip-- == 0)
+                    break;
+            }
+
+            // If there were fewer unclaimed nodes than we meant to
+            // skip, candidate is the last of them.
+            if (candidate == null)
+                // A producer has reserved room but not yet inserted.
+                Thread.yield();
+            else if (claim(candidate))
+                return candidate.mItem;
+        }
+        return null;
+    }
+
+    /**
+     * Claim node and unlink it, returning false if another Thread
+     * claimed it first.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean claim(Node<E> node) {
+        if (!CLAIMED.compareAndSet(node, 0, 1))
+            return false;
+        mCount.decrementAndGet();
+        mNodes.remove(node);
+        return true;
+    }
+
+    /**
+     * Insert e, waiting if the queue is full until space becomes
+     * available or (if timed is true) nanos have elapsed.
+     */
+    private boolean offer(E e, boolean timed, long nanos)
+        throws InterruptedException {
+        if (offer(e))
+            return true;
+
+        if (Thread.interrupted())
+            throw new InterruptedException();
+
+        long deadline = System.nanoTime() + nanos;
+        Thread me = Thread.currentThread();
+        for (;;) {
+            // Register before re-checking, so a consumer that frees
+            // room after our check is guaranteed to see us.
+            mNotFull.add(me);
+            if (enqueue(e)) {
+                mNotFull.remove(me);
+                mNotEmpty.signal();
+                return true;
+            }
+
+            if (timed) {
+                nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    mNotFull.cancel(me);
+                    return false;
+                }
+                mNotFull.park(this, nanos);
+            } else
+                mNotFull.park(this, Long.MAX_VALUE);
+
+            if (Thread.interrupted()) {
+                mNotFull.cancel(me);
+                throw new InterruptedException();
+            }
+            mNotFull.remove(me);
+        }
+    }
+
+    /**
+     * Remove one of the most urgent elements, waiting if the queue is
+     * empty until an element becomes available or (if timed is true)
+     * nanos have elapsed.
+     */
+    private E poll(boolean timed, long nanos) throws InterruptedException {
+        E e = poll();
+        if (e != null)
+            return e;
+
+        if (Thread.interrupted())
+            throw new InterruptedException();
+
+        long deadline = System.nanoTime() + nanos;
+        Thread me = Thread.currentThread();
+        for (;;) {
+            // Register before re-checking, so a producer that inserts
+            // after our check is guaranteed to see us.
+            mNotEmpty.add(me);
+            if ((e = dequeue()) != null) {
+                mNotEmpty.remove(me);
+                mNotFull.signal();
+                return e;
+            }
+
+            if (timed) {
+                nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    mNotEmpty.cancel(me);
+                    return null;
+                }
+                mNotEmpty.park(this, nanos);
+            } else
+                mNotEmpty.park(this, Long.MAX_VALUE);
+
+            if (Thread.interrupted()) {
+                mNotEmpty.cancel(me);
+                throw new InterruptedException();
+            }
+            mNotEmpty.remove(me);
+        }
+    }
+}
@@ -0,0 +1,1324 @@
+package edu.vuum.mooca;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.vuum.mooca.SynchronizedQueue.QueueAdapter;
+
+/**
+ * @class QueueBenchmark
+ *
+ * @brief Measures the throughput and put-to-take latency of the
+ *        BlockingQueue implementations when they're driven through a
+ *        SynchronizedQueue.QueueAdapter by several producer and
+ *        consumer Threads.  Every combination of queue, producer
+ *        count, consumer count, capacity, payload size and batch
+ *        size is warmed up and then measured for a fixed period, and
+ *        the results are printed as one line per combination, e.g.:
+ *
+ *        java edu.vuum.mooca.QueueBenchmark [seconds-per-run [wait-strategy]]
+ *        java edu.vuum.mooca.QueueBenchmark scaling
+ *        java edu.vuum.mooca.QueueBenchmark pairs [number-of-pairs]
+ *        java edu.vuum.mooca.QueueBenchmark ipc [round-trips]
+ *        java edu.vuum.mooca.QueueBenchmark flow [seconds]
+ *        java edu.vuum.mooca.QueueBenchmark pipeline
+ *        java edu.vuum.mooca.QueueBenchmark partitioned
+ *        java edu.vuum.mooca.QueueBenchmark elastic
+ *        java edu.vuum.mooca.QueueBenchmark priority
+ *
+ *        where wait-strategy is one of the names accepted by
+ *        WaitStrategy.forName().  If it's given, every QueueAdapter
+ *        waits according to a new instance of that strategy rather
+ *        than inside the queue.  The "scaling" form instead prints a
+ *        throughput-versus-threads curve for each multi-producer,
+ *        multi-consumer queue via ScalingDriver.testScaling().
+ *        The "pairs" form compares the throughput and memory
+ *        footprint of many producer/consumer pairs on platform
+ *        Threads and (on Java 21 or later) virtual Threads via
+ *        PairsDriver.testPairs().  The "ipc" form measures
+ *        the one-way hand-off latency between this process and a
+ *        child JVM through a pair of SharedMemorySPSCBlockingQueues.
+ *        The "flow" form shows how memory use evolves when a fast
+ *        producer feeds a slow consumer, with and without the
+ *        demand-driven backpressure of QueuePublisher and
+ *        QueueSubscriber.  The "pipeline" form prints the
+ *        per-stage throughput and lag of a three-stage RingPipeline
+ *        with each WaitStrategy, and the throughput of the same
+ *        stages chained together by ArrayBlockingQueues.  The
+ *        "partitioned" form prints how the throughput of a
+ *        PartitionedQueue scales as it's rebalanced to more
+ *        consumers.  The "elastic" form shows an
+ *        ElasticConsumerGroup growing to absorb a burst and then
+ *        shrinking again.  The "priority" form compares the
+ *        throughput and per-priority latency of
+ *        PrioritySkipListBlockingQueue with PriorityBlockingQueue.
+ *
+ *        Each message carries the System.nanoTime() at which it was
+ *        put(), so the consumer that take()s it can record the time
+ *        the message spent in the queue in a LatencyHistogram.
+ */
+public class QueueBenchmark {
+    /**
+     * The numbers of producer Threads to measure.
+     */
+    static final int[] PRODUCERS = { 1, 2, 4 };
+
+    /**
+     * The numbers of consumer Threads to measure.
+     */
+    static final int[] CONSUMERS = { 1, 2, 4 };
+
+    /**
+     * The queue capacities to measure.
+     */
+    static final int[] CAPACITIES = { 1024, 65536 };
+
+    /**
+     * The sizes (in bytes) of the payload carried by each message.
+     */
+    static final int[] PAYLOAD_SIZES = { 0, 64, 1024 };
+
+    /**
+     * The numbers of messages to put and take at once.  A batch size
+     * of one uses put() and take(), anything larger uses putAll()
+     * and drainTo().
+     */
+    static final int[] BATCH_SIZES = { 1, 64 };
+
+    /**
+     * The numbers of producer (and consumer) Threads on the scaling
+     * curves.
+     */
+    static final int[] SCALING_THREADS = { 1, 2, 4, 8, 16 };
+
+    /**
+     * Default number of producer/consumer pairs in the "pairs" form.
+     */
+    static final int DEFAULT_PAIRS = 1000;
+
+    /**
+     * Capacity of each queue in the "pairs" form.
+     */
+    static final int PAIRS_CAPACITY = 64;
+
+    /**
+     * Number of pairs that share each queue when the "pairs" form
+     * measures shared queues.
+     */
+    static final int PAIRS_PER_SHARED_QUEUE = 64;
+
+    /**
+     * Default number of round trips the "ipc" form measures.
+     */
+    static final int DEFAULT_ROUND_TRIPS = 1000000;
+
+    /**
+     * Capacity of each queue in the "ipc" form.
+     */
+    static final int IPC_CAPACITY = 1024;
+
+    /**
+     * Default number of seconds each run of the "flow" form lasts.
+     */
+    static final int DEFAULT_FLOW_SECONDS = 10;
+
+    /**
+     * Capacity of the queue in the "flow" form.
+     */
+    static final int FLOW_CAPACITY = 1024;
+
+    /**
+     * Number of elements the subscribers in the "flow" form request
+     * at once.
+     */
+    static final int FLOW_REQUEST_BATCH = 64;
+
+    /**
+     * How long the slow consumer in the "flow" form spends on each
+     * element.
+     */
+    static final long SLOW_CONSUMER_NANOS = TimeUnit.MICROSECONDS.toNanos(2);
+
+    /**
+     * Capacity of the ring, and of each queue in the chain, in the
+     * "pipeline" form.
+     */
+    static final int PIPELINE_CAPACITY = 1024;
+
+    /**
+     * Number of partitions in the "partitioned" form.
+     */
+    static final int PARTITIONS = 16;
+
+    /**
+     * Capacity of the queue in the "elastic" form.
+     */
+    static final int ELASTIC_CAPACITY = 1024;
+
+    /**
+     * The rates (in elements per second) at which the "elastic" form
+     * offers elements, for ELASTIC_PHASE_MILLIS each.
+     */
+    static final int[] ELASTIC_RATES = { 2000, 20000, 2000, 2000 };
+
+    /**
+     * How long each rate in ELASTIC_RATES lasts.
+     */
+    static final long ELASTIC_PHASE_MILLIS = 1000;
+
+    /**
+     * How long the consumers in the "elastic" form spend on each
+     * element, as if waiting for I/O.
+     */
+    static final long ELASTIC_WORK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /**
+     * Number of elements that circulate through the queue in the
+     * "priority" form.
+     */
+    static final int PRIORITY_POPULATION = 256;
+
+    /**
+     * Fraction of the elements in the "priority" form that are
+     * urgent rather than bulk.
+     */
+    static final double URGENT_FRACTION = 0.1;
+
+    /**
+     * How long a bulk element waits in the aging queue of the
+     * "priority" form before it ranks with urgent ones.
+     */
+    static final long PRIORITY_AGING_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * The relaxation of the relaxed queue in the "priority" form.
+     */
+    static final int PRIORITY_RELAXATION = 4;
+
+    /**
+     * Default number of seconds to measure each combination for.
+     */
+    static final int DEFAULT_SECONDS = 2;
+
+    /**
+     * @class Message
+     *
+     * @brief The element that's passed from producers to consumers.
+     */
+    static class Message {
+        /**
+         * The System.nanoTime() at which the message was put().
+         */
+        final long mTimestamp;
+
+        /**
+         * The payload, which is allocated afresh for every message
+         * to model the cost of producing real work items.
+         */
+        final byte[] mPayload;
+
+        Message(long timestamp, byte[] payload) {
+            mTimestamp = timestamp;
+            mPayload = payload;
+        }
+    }
+
+    /**
+     * Sent by the last producer to finish, one per consumer, to tell
+     * the consumers to exit.
+     */
+    static final Message POISON_PILL = new Message(0, null);
+
+    /**
+     * @class QueueType
+     *
+     * @brief The queues that are measured by default.
+     */
+    enum QueueType implements QueueFactory {
+        ARRAY_BLOCKING_QUEUE {
+            public <E> BlockingQueue<E> newQueue(int capacity) {
+                return new ArrayBlockingQueue<E>(capacity);
+            }
+        },
+        LINKED_BLOCKING_QUEUE {
+            public <E> BlockingQueue<E> newQueue(int capacity) {
+                return new LinkedBlockingQueue<E>(capacity);
+            }
+        },
+        CIRCULAR_BLOCKING_QUEUE {
+            public <E> BlockingQueue<E> newQueue(int capacity) {
+                return new CircularBlockingQueue<E>(capacity);
+            }
+        },
+        LINKED_TRANSFER_QUEUE {
+            @SuppressWarnings("unchecked")
+            public <E> BlockingQueue<E> newQueue(int capacity) {
+                // LinkedTransferQueue is unbounded and was only added
+                // in Java 7, so look it up reflectively to keep this
+                // project compiling on Java 6.
+                try {
+                    return (BlockingQueue<E>)
+                        Class.forName("java.util.concurrent.LinkedTransferQueue")
+                             .getDeclaredConstructor()
+                             .newInstance();
+                } catch (Exception e) {
+                    return null;
+                }
+            }
+        },
+        SPSC_BLOCKING_QUEUE {
+            public <E> BlockingQueue<E> newQueue(int capacity) {
+                return new SPSCBlockingQueue<E>(capacity);
+            }
+            public boolean isSingleProducerSingleConsumer() {
+                return true;
+            }
+        },
+        MPMC_BLOCKING_QUEUE {
+            public <E> BlockingQueue<E> newQueue(int capacity) {
+                return new MPMCBlockingQueue<E>(capacity);
+            }
+        },
+        LINKED_MPMC_BLOCKING_QUEUE {
+            public <E> BlockingQueue<E> newQueue(int capacity) {
+                // The queue is unbounded, so ignore capacity.
+                return new LinkedMPMCBlockingQueue<E>();
+            }
+        },
+        PRIORITY_SKIP_LIST_BLOCKING_QUEUE {
+            public <E> BlockingQueue<E> newQueue(int capacity) {
+                // The elements have no priority of their own, so
+                // spread them over a few priorities by hash code.
+                return new PrioritySkipListBlockingQueue<E>(capacity,
+                                                            new PrioritySkipListBlockingQueue.Prioritizer<Object>() {
+                                                                public int priorityOf(Object e) {
+                                                                    return e.hashCode() & 3;
+                                                                }
+                                                            },
+                                                            PRIORITY_RELAXATION,
+                                                            PRIORITY_AGING_NANOS);
+            }
+            public boolean isFifo() {
+                return false;
+            }
+        };
+
+        public boolean isSingleProducerSingleConsumer() {
+            return false;
+        }
+
+        /**
+         * Returns true if the queue hands elements out in the order
+         * they were put().  The default run relies on this, since
+         * otherwise POISON_PILL can overtake real messages and stop
+         * the consumers early; the other queues are measured by the
+         * "priority" form instead.
+         */
+        public boolean isFifo() {
+            return true;
+        }
+    }
+
+    /**
+     * @class Result
+     *
+     * @brief The outcome of measuring one combination.
+     */
+    static class Result {
+        final long mMessages;
+        final long mElapsedNanos;
+        final LatencyHistogram mLatency;
+
+        Result(long messages, long elapsedNanos, LatencyHistogram latency) {
+            mMessages = messages;
+            mElapsedNanos = elapsedNanos;
+            mLatency = latency;
+        }
+
+        /**
+         * Returns the number of messages passed per second.
+         */
+        double opsPerSecond() {
+            return mMessages * (double) TimeUnit.SECONDS.toNanos(1)
+                / mElapsedNanos;
+        }
+    }
+
+    /**
+     * Main entry point that runs every combination.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("scaling")) {
+            printScalingCurves();
+            return;
+        } else if (args.length > 0 && args[0].equals("pairs")) {
+            printPairs(args.length > 1
+                       ? Integer.parseInt(args[1])
+                       : DEFAULT_PAIRS);
+            return;
+        } else if (args.length > 0 && args[0].equals("ipc")) {
+            printInterProcessLatency(args.length > 1
+                                     ? Integer.parseInt(args[1])
+                                     : DEFAULT_ROUND_TRIPS);
+            return;
+        } else if (args.length > 0 && args[0].equals("flow")) {
+            printFlow(args.length > 1
+                      ? Integer.parseInt(args[1])
+                      : DEFAULT_FLOW_SECONDS);
+            return;
+        } else if (args.length > 0 && args[0].equals("priority")) {
+            printPriority();
+            return;
+        } else if (args.length > 0 && args[0].equals("elastic")) {
+            printElastic();
+            return;
+        } else if (args.length > 0 && args[0].equals("partitioned")) {
+            printPartitioned();
+            return;
+        } else if (args.length > 0 && args[0].equals("pipeline")) {
+            printPipelines();
+            return;
+        } else if (args.length > 2 && args[0].equals("ipc-echo")) {
+            // Run by the "ipc" form in the child JVM.
+            echo(new File(args[1]), new File(args[2]));
+            return;
+        }
+
+        int seconds = args.length > 0
+            ? Integer.parseInt(args[0])
+            : DEFAULT_SECONDS;
+        String waitStrategyName = args.length > 1
+            ? args[1]
+            : null;
+
+        System.out.println(String.format("%-24s %3s %3s %8s %7s %5s %14s %10s %10s %10s",
+                                         "queue", "P", "C", "capacity",
+                                         "payload", "batch", "ops/sec",
+                                         "p50(us)", "p99(us)", "p99.9(us)"));
+
+        for (QueueType type : QueueType.values()) {
+            if (!type.isFifo())
+                continue;
+            if (type.newQueue(CAPACITIES[0]) == null) {
+                System.out.println(type + " isn't available on this JVM");
+                continue;
+            }
+
+            for (int producers : PRODUCERS)
+                for (int consumers : CONSUMERS) {
+                    if (type.isSingleProducerSingleConsumer()
+                        && (producers != 1 || consumers != 1))
+                        continue;
+
+                    for (int capacity : CAPACITIES)
+                        for (int payloadSize : PAYLOAD_SIZES)
+                            for (int batchSize : BATCH_SIZES) {
+                                // Warm up the JIT compiler before measuring.
+                                run(type, producers, consumers, capacity,
+                                    payloadSize, batchSize,
+                                    newWaitStrategy(waitStrategyName),
+                                    TimeUnit.SECONDS.toNanos(1) / 2);
+                                Result result =
+                                    run(type, producers, consumers, capacity,
+                                        payloadSize, batchSize,
+                                        newWaitStrategy(waitStrategyName),
+                                        TimeUnit.SECONDS.toNanos(seconds));
+
+                                LatencyHistogram latency = result.mLatency;
+                                System.out.println(String.format("%-24s %3d %3d %8d %7d %5d %14.0f %10.2f %10.2f %10.2f",
+                                                                 type,
+                                                                 producers,
+                                                                 consumers,
+                                                                 capacity,
+                                                                 payloadSize,
+                                                                 batchSize,
+                                                                 result.opsPerSecond(),
+                                                                 LatencyHistogram.micros(latency.getValueAtPercentile(50)),
+                                                                 LatencyHistogram.micros(latency.getValueAtPercentile(99)),
+                                                                 LatencyHistogram.micros(latency.getValueAtPercentile(99.9))));
+                            }
+                }
+        }
+    }
+
+    /**
+     * Print a throughput-versus-threads scaling curve for each queue
+     * that supports multiple producers and consumers.
+     */
+    static void printScalingCurves() {
+        for (QueueType type : QueueType.values()) {
+            if (type.isSingleProducerSingleConsumer()
+                || type.newQueue(CAPACITIES[0]) == null)
+                continue;
+
+            // Warm up the JIT compiler before measuring.
+            ScalingDriver.testScaling(type, type.toString(), CAPACITIES[0],
+                                      SCALING_THREADS);
+            System.out.println(type);
+            for (ScalingResult point
+                     : ScalingDriver.testScaling(type, type.toString(),
+                                                 CAPACITIES[0], SCALING_THREADS))
+                System.out.println("    " + point);
+        }
+    }
+
+    /**
+     * Print the throughput and memory footprint of pairs
+     * producer/consumer pairs, with a queue per pair and with shared
+     * queues, on platform Threads and (if available) virtual
+     * Threads.
+     */
+    static void printPairs(int pairs) {
+        ThreadFactory[] threadFactories = {
+            ThreadFactories.platform(),
+            ThreadFactories.virtual()
+        };
+        String[] names = { "platform", "virtual" };
+        int sharedQueues = Math.max(1, pairs / PAIRS_PER_SHARED_QUEUE);
+
+        for (int i = 0; i < threadFactories.length; i++) {
+            if (threadFactories[i] == null) {
+                System.out.println(names[i] + " threads aren't available on this JVM");
+                continue;
+            }
+
+            for (int queues : new int[] { pairs, sharedQueues }) {
+                // Warm up the JIT compiler before measuring.
+                PairsDriver.testPairs(QueueType.MPMC_BLOCKING_QUEUE, names[i],
+                                      PAIRS_CAPACITY, pairs, queues,
+                                      threadFactories[i]);
+                System.out.println(String.format("%-8s ", names[i])
+                                   + PairsDriver.testPairs(QueueType.MPMC_BLOCKING_QUEUE,
+                                                           names[i],
+                                                           PAIRS_CAPACITY,
+                                                           pairs,
+                                                           queues,
+                                                           threadFactories[i]));
+            }
+        }
+    }
+
+    /**
+     * @class CountingPublisher
+     *
+     * @brief A QueueFlow.Publisher that sends its Subscriber the
+     *        Integers 0, 1, 2, ... from a Thread of its own, as fast
+     *        as the Subscriber requests them, until it has sent count
+     *        of them or it's stopped.  It only supports a single
+     *        Subscriber.
+     */
+    static class CountingPublisher implements QueueFlow.Publisher<Integer> {
+        /**
+         * The number of Integers to send.
+         */
+        private final long mCount;
+
+        /**
+         * The number of Integers sent so far.
+         */
+        final AtomicLong mPublished = new AtomicLong();
+
+        /**
+         * The number of Integers requested but not yet sent.
+         */
+        private final AtomicLong mDemand = new AtomicLong();
+
+        /**
+         * Set by stop() or when the Subscription is cancelled.
+         */
+        private volatile boolean mStopped;
+
+        /**
+         * The Thread that sends the Integers.
+         */
+        private volatile Thread mThread;
+
+        CountingPublisher(long count) {
+            mCount = count;
+        }
+
+        public void subscribe(final QueueFlow.Subscriber<? super Integer> subscriber) {
+            mThread = new Thread(new Runnable() {
+                    public void run() {
+                        while (!mStopped && mPublished.get() < mCount) {
+                            if (mDemand.get() == 0) {
+                                LockSupport.park(this);
+                                continue;
+                            }
+                            mDemand.decrementAndGet();
+                            subscriber.onNext((int) mPublished.getAndIncrement());
+                        }
+                        subscriber.onComplete();
+                    }
+                });
+            subscriber.onSubscribe(new QueueFlow.Subscription() {
+                    public void request(long n) {
+                        long demand;
+                        do
+                            demand = mDemand.get();
+                        while (!mDemand.compareAndSet(demand,
+                                                      QueueFlow.addDemand(demand, n)));
+                        LockSupport.unpark(mThread);
+                    }
+
+                    public void cancel() {
+                        mStopped = true;
+                        LockSupport.unpark(mThread);
+                    }
+                });
+            mThread.start();
+        }
+
+        /**
+         * Wait until all count Integers have been sent.
+         */
+        void join() throws InterruptedException {
+            mThread.join();
+        }
+
+        /**
+         * Stop sending Integers and wait for the Thread to finish.
+         */
+        void stop() throws InterruptedException {
+            mStopped = true;
+            LockSupport.unpark(mThread);
+            mThread.join();
+        }
+    }
+
+    /**
+     * @class SlowSubscriber
+     *
+     * @brief A QueueFlow.Subscriber that spends SLOW_CONSUMER_NANOS
+     *        on each element and requests FLOW_REQUEST_BATCH of them
+     *        at a time.
+     */
+    static class SlowSubscriber implements QueueFlow.Subscriber<Object> {
+        /**
+         * The number of elements received so far.
+         */
+        final AtomicLong mConsumed = new AtomicLong();
+
+        private QueueFlow.Subscription mSubscription;
+
+        public void onSubscribe(QueueFlow.Subscription subscription) {
+            mSubscription = subscription;
+            subscription.request(FLOW_REQUEST_BATCH);
+        }
+
+        public void onNext(Object item) {
+            long end = System.nanoTime() + SLOW_CONSUMER_NANOS;
+            while (System.nanoTime() < end)
+                continue;
+            if (mConsumed.incrementAndGet() % FLOW_REQUEST_BATCH == 0)
+                mSubscription.request(FLOW_REQUEST_BATCH);
+        }
+
+        public void onError(Throwable throwable) {
+        }
+
+        public void onComplete() {
+        }
+    }
+
+    /**
+     * Print how the heap and queue size evolve, once a second for
+     * seconds, while a fast producer feeds a SlowSubscriber through a
+     * bounded queue with demand-driven backpressure, and then while
+     * a producer Thread puts as fast as it can into an unbounded
+     * queue for the same consumer.
+     */
+    static void printFlow(int seconds) throws Exception {
+        System.out.println("with backpressure (bounded queue of "
+                           + FLOW_CAPACITY + ")");
+        QueueAdapter<Integer> queue =
+            new QueueAdapter<Integer>(new ArrayBlockingQueue<Integer>(FLOW_CAPACITY));
+        CountingPublisher producer = new CountingPublisher(Long.MAX_VALUE);
+        producer.subscribe(new QueueSubscriber<Integer>(queue, FLOW_REQUEST_BATCH));
+        QueuePublisher<Integer> publisher = new QueuePublisher<Integer>(queue);
+        SlowSubscriber consumer = new SlowSubscriber();
+        publisher.subscribe(consumer);
+        printFlowSamples(seconds, producer.mPublished, consumer.mConsumed, queue);
+        producer.stop();
+        publisher.close();
+
+        System.out.println("without backpressure (unbounded queue)");
+        final QueueAdapter<Integer> unbounded =
+            new QueueAdapter<Integer>(new LinkedBlockingQueue<Integer>());
+        final AtomicLong produced = new AtomicLong();
+        Thread producerThread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; ; i++) {
+                            unbounded.put(i);
+                            produced.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        // Interrupted, so we're done.
+                    }
+                }
+            });
+        producerThread.start();
+        publisher = new QueuePublisher<Integer>(unbounded);
+        consumer = new SlowSubscriber();
+        publisher.subscribe(consumer);
+        printFlowSamples(seconds, produced, consumer.mConsumed, unbounded);
+        producerThread.interrupt();
+        producerThread.join();
+        publisher.close();
+    }
+
+    /**
+     * Print the produced and consumed counts, queue size and used
+     * heap once a second for seconds, or until more than half the
+     * heap is in use.
+     */
+    static void printFlowSamples(int seconds,
+                                 AtomicLong produced,
+                                 AtomicLong consumed,
+                                 QueueAdapter<?> queue) throws InterruptedException {
+        System.out.println(String.format("%8s %14s %14s %12s %10s",
+                                         "seconds", "produced", "consumed",
+                                         "queued", "heap(MB)"));
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        for (int second = 1; second <= seconds; second++) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+            long heap = MemoryProbes.usedHeapBytes();
+            System.out.println(String.format("%8d %14d %14d %12d %10.1f",
+                                             second,
+                                             produced.get(),
+                                             consumed.get(),
+                                             queue.size(),
+                                             heap / (1024.0 * 1024.0)));
+            if (heap > maxHeap / 2) {
+                System.out.println("stopping before the heap runs out");
+                break;
+            }
+        }
+    }
+
+    /**
+     * @class PriorityMessage
+     *
+     * @brief The element of the "priority" form, which is either
+     *        urgent (priority 0) or bulk (priority 1).
+     */
+    static class PriorityMessage {
+        final int mPriority;
+        final long mTimestamp;
+
+        PriorityMessage(int priority, long timestamp) {
+            mPriority = priority;
+            mTimestamp = timestamp;
+        }
+    }
+
+    /**
+     * Gives PriorityMessages their priority.
+     */
+    static final PrioritySkipListBlockingQueue.Prioritizer<PriorityMessage> PRIORITIZER =
+        new PrioritySkipListBlockingQueue.Prioritizer<PriorityMessage>() {
+            public int priorityOf(PriorityMessage message) {
+                return message.mPriority;
+            }
+        };
+
+    /**
+     * Print the throughput and the latency of urgent and bulk
+     * elements for PriorityBlockingQueue, a strict
+     * PrioritySkipListBlockingQueue and a relaxed one with aging, as
+     * the number of Threads grows.  Since a starved element is never
+     * taken, and so never recorded, also print the age of the oldest
+     * element left in the queue at the end.
+     */
+    static void printPriority() throws InterruptedException {
+        String[] names = {
+            "PriorityBlockingQueue",
+            "PrioritySkipList",
+            "PrioritySkipList relaxed+aging"
+        };
+        System.out.println(String.format("%-32s %3s %14s %12s %12s %12s %12s",
+                                         "queue", "thr", "ops/sec",
+                                         "urgent p99", "bulk p50",
+                                         "bulk p99", "oldest left"));
+        for (int i = 0; i < names.length; i++)
+            for (int threads : SCALING_THREADS) {
+                // Warm up the JIT compiler before measuring.
+                measurePriority(newPriorityQueue(i), threads);
+                BlockingQueue<PriorityMessage> queue = newPriorityQueue(i);
+                LatencyHistogram[] latency = new LatencyHistogram[2];
+                double opsPerSecond = measurePriority(queue, threads, latency);
+                long now = System.nanoTime();
+                long oldest = 0;
+                for (PriorityMessage message : queue)
+                    oldest = Math.max(oldest, now - message.mTimestamp);
+                System.out.println(String.format("%-32s %3d %14.0f %12.1f %12.1f %12.1f %12.1f",
+                                                 names[i],
+                                                 threads,
+                                                 opsPerSecond,
+                                                 LatencyHistogram.micros(latency[0].getValueAtPercentile(99)),
+                                                 LatencyHistogram.micros(latency[1].getValueAtPercentile(50)),
+                                                 LatencyHistogram.micros(latency[1].getValueAtPercentile(99)),
+                                                 LatencyHistogram.micros(oldest)));
+            }
+    }
+
+    /**
+     * Returns a new queue of the kind printPriority() names with
+     * index.
+     */
+    static BlockingQueue<PriorityMessage> newPriorityQueue(int index) {
+        switch (index) {
+        case 0:
+            return new PriorityBlockingQueue<PriorityMessage>(PRIORITY_POPULATION,
+                                                              new Comparator<PriorityMessage>() {
+                                                                  public int compare(PriorityMessage a,
+                                                                                     PriorityMessage b) {
+                                                                      return a.mPriority - b.mPriority;
+                                                                  }
+                                                              });
+        case 1:
+            return new PrioritySkipListBlockingQueue<PriorityMessage>(PRIORITY_POPULATION,
+                                                                      PRIORITIZER);
+        default:
+            return new PrioritySkipListBlockingQueue<PriorityMessage>(PRIORITY_POPULATION,
+                                                                      PRIORITIZER,
+                                                                      PRIORITY_RELAXATION,
+                                                                      PRIORITY_AGING_NANOS);
+        }
+    }
+
+    /**
+     * Measure queue without recording latencies, e.g., to warm up.
+     */
+    static double measurePriority(BlockingQueue<PriorityMessage> queue,
+                                  int threads) throws InterruptedException {
+        return measurePriority(queue, threads, new LatencyHistogram[2]);
+    }
+
+    /**
+     * Fill queue with PRIORITY_POPULATION PriorityMessages and run
+     * threads Threads that each take a message and put a new one in
+     * its place, so the queue stays full and every Thread is both a
+     * producer and a consumer, for SynchronizedQueue.mScalingMillis.
+     * The latency of urgent and bulk messages is stored in
+     * latency[0] and latency[1].
+     *
+     * @return the number of messages taken per second
+     */
+    static double measurePriority(final BlockingQueue<PriorityMessage> queue,
+                                  int threads,
+                                  LatencyHistogram[] latency) throws InterruptedException {
+        final Random random = new Random();
+        for (int i = 0; i < PRIORITY_POPULATION; i++)
+            queue.put(new PriorityMessage(random.nextDouble() < URGENT_FRACTION ? 0 : 1,
+                                          System.nanoTime()));
+
+        final List<LatencyHistogram[]> histograms = new ArrayList<LatencyHistogram[]>();
+        final AtomicLong taken = new AtomicLong();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final LatencyHistogram[] mine = {
+                new LatencyHistogram(), new LatencyHistogram()
+            };
+            histograms.add(mine);
+            workers.add(new Thread(new Runnable() {
+                    public void run() {
+                        Random random = new Random();
+                        long count = 0;
+                        try {
+                            while (!Thread.currentThread().isInterrupted()) {
+                                PriorityMessage message = queue.take();
+                                long now = System.nanoTime();
+                                mine[message.mPriority].record(now - message.mTimestamp);
+                                queue.put(new PriorityMessage(random.nextDouble() < URGENT_FRACTION ? 0 : 1,
+                                                              now));
+                                count++;
+                            }
+                        } catch (InterruptedException e) {
+                            // We're done.
+                        }
+                        taken.addAndGet(count);
+                    }
+                }));
+        }
+
+        long startTime = System.nanoTime();
+        for (Thread worker : workers)
+            worker.start();
+        Thread.sleep(SynchronizedQueue.mScalingMillis);
+        for (Thread worker : workers)
+            worker.interrupt();
+        for (Thread worker : workers)
+            worker.join();
+        long elapsed = System.nanoTime() - startTime;
+
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LatencyHistogram();
+            for (LatencyHistogram[] mine : histograms)
+                latency[i].add(mine[i]);
+        }
+        return taken.get() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /**
+     * Print the queue depth and number of consumers every 100
+     * milliseconds while a producer offers elements at each of
+     * ELASTIC_RATES in turn to an ElasticConsumerGroup of between 1
+     * and 16 consumers, followed by the ScalingEvents.  Also print
+     * how often the producer found the queue full and had to wait.
+     */
+    static void printElastic() throws InterruptedException {
+        final CircularBlockingQueue<Integer> queue =
+            new CircularBlockingQueue<Integer>(ELASTIC_CAPACITY);
+        ElasticConsumerGroup<Integer> group =
+            new ElasticConsumerGroup<Integer>(queue,
+                                              new ElasticConsumerGroup.Handler<Integer>() {
+                                                  public void process(Integer element) {
+                                                      LockSupport.parkNanos(ELASTIC_WORK_NANOS);
+                                                  }
+                                              },
+                                              1,
+                                              16,
+                                              ThreadFactories.platform());
+        final AtomicLong offered = new AtomicLong();
+        final AtomicLong stalls = new AtomicLong();
+        final AtomicInteger rate = new AtomicInteger(ELASTIC_RATES[0]);
+
+        Thread producer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        // Offer each millisecond's share of the
+                        // current rate, then wait for the next one.
+                        long next = System.nanoTime();
+                        for (int i = 0; ; ) {
+                            for (int n = rate.get() / 1000; n > 0; n--, i++) {
+                                if (!queue.offer(i)) {
+                                    stalls.incrementAndGet();
+                                    if (!queue.offer(i,
+                                                     SynchronizedQueue.TIMEOUT_SECONDS,
+                                                     TimeUnit.SECONDS))
+                                        return;
+                                }
+                                offered.incrementAndGet();
+                            }
+                            next += TimeUnit.MILLISECONDS.toNanos(1);
+                            LockSupport.parkNanos(next - System.nanoTime());
+                            if (Thread.interrupted())
+                                return;
+                        }
+                    } catch (InterruptedException e) {
+                        // We're done.
+                    }
+                }
+            });
+
+        System.out.println(String.format("%8s %10s %12s %12s %8s %10s",
+                                         "millis", "rate/sec", "offered",
+                                         "processed", "queued", "consumers"));
+        group.start();
+        producer.start();
+        long samplesPerPhase = ELASTIC_PHASE_MILLIS / 100;
+        for (int phase = 0; phase < ELASTIC_RATES.length; phase++) {
+            rate.set(ELASTIC_RATES[phase]);
+            for (int i = 1; i <= samplesPerPhase; i++) {
+                Thread.sleep(100);
+                System.out.println(String.format("%8d %10d %12d %12d %8d %10d",
+                                                 phase * ELASTIC_PHASE_MILLIS + i * 100,
+                                                 ELASTIC_RATES[phase],
+                                                 offered.get(),
+                                                 group.getProcessed(),
+                                                 queue.size(),
+                                                 group.getConsumers()));
+            }
+        }
+        producer.interrupt();
+        producer.join();
+        group.shutdown();
+
+        System.out.println("producer found the queue full " + stalls.get()
+                           + " times; at most " + group.getPeakConsumers()
+                           + " consumers");
+        for (ElasticConsumerGroup.ScalingEvent event : group.getEvents())
+            System.out.println("    " + event);
+    }
+
+    /**
+     * Print the throughput of a PartitionedQueue of CircularBlockingQueues
+     * fed by as many producers as there are processors, as it's
+     * rebalanced from one consumer up to one per partition.
+     */
+    static void printPartitioned() {
+        int producers = Runtime.getRuntime().availableProcessors();
+        // Warm up the JIT compiler before measuring.
+        PartitionedDriver.testPartitioned(QueueType.CIRCULAR_BLOCKING_QUEUE,
+                                          "PartitionedQueue", CAPACITIES[0],
+                                          PARTITIONS, producers, SCALING_THREADS);
+        System.out.println("PartitionedQueue of " + PARTITIONS
+                           + " CircularBlockingQueues");
+        for (ScalingResult point
+                 : PartitionedDriver.testPartitioned(QueueType.CIRCULAR_BLOCKING_QUEUE,
+                                                     "PartitionedQueue", CAPACITIES[0],
+                                                     PARTITIONS, producers, SCALING_THREADS))
+            System.out.println("    " + point);
+    }
+
+    /**
+     * Print the per-stage throughput and lag of a decode, enrich and
+     * sink RingPipeline with each WaitStrategy, followed by the
+     * throughput of the same stages passing events along a chain of
+     * ArrayBlockingQueues.
+     */
+    static void printPipelines() throws InterruptedException {
+        String[] waitStrategies = {
+            "busy-spin", "spin-then-yield", "spin-then-park", "blocking"
+        };
+        for (String name : waitStrategies) {
+            // Warm up the JIT compiler before measuring.
+            PipelineDriver.testPipeline(name, PIPELINE_CAPACITY,
+                                        WaitStrategy.forName(name));
+            System.out.println("RingPipeline " + name + ": "
+                               + PipelineDriver.testPipeline(name,
+                                                             PIPELINE_CAPACITY,
+                                                             WaitStrategy.forName(name)));
+        }
+
+        measureQueueChain();
+        System.out.println(String.format("ArrayBlockingQueue chain: %14.0f ops/sec",
+                                         measureQueueChain()));
+    }
+
+    /**
+     * Pass PipelineEvents from a producer through decode, enrich and
+     * sink Threads connected by ArrayBlockingQueues for
+     * SynchronizedQueue.mScalingMillis.
+     *
+     * @return the number of events the sink took per second
+     */
+    static double measureQueueChain() throws InterruptedException {
+        final List<BlockingQueue<PipelineEvent>> queues =
+            new ArrayList<BlockingQueue<PipelineEvent>>();
+        for (int i = 0; i < 3; i++)
+            queues.add(new ArrayBlockingQueue<PipelineEvent>(PIPELINE_CAPACITY));
+        final AtomicLong sunk = new AtomicLong();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (long i = 0; ; i++) {
+                            PipelineEvent event = new PipelineEvent();
+                            event.mRaw = i;
+                            queues.get(0).put(event);
+                        }
+                    } catch (InterruptedException e) {
+                        // We're done.
+                    }
+                }
+            }));
+        threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (;;) {
+                            PipelineEvent event = queues.get(0).take();
+                            event.mDecoded = event.mRaw * 2;
+                            queues.get(1).put(event);
+                        }
+                    } catch (InterruptedException e) {
+                        // We're done.
+                    }
+                }
+            }));
+        threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (;;) {
+                            PipelineEvent event = queues.get(1).take();
+                            event.mEnriched = event.mDecoded + 1;
+                            queues.get(2).put(event);
+                        }
+                    } catch (InterruptedException e) {
+                        // We're done.
+                    }
+                }
+            }));
+        threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (;;) {
+                            queues.get(2).take();
+                            sunk.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        // We're done.
+                    }
+                }
+            }));
+
+        long startTime = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        Thread.sleep(SynchronizedQueue.mScalingMillis);
+        long elapsed = System.nanoTime() - startTime;
+        long count = sunk.get();
+        for (Thread thread : threads)
+            thread.interrupt();
+        for (Thread thread : threads)
+            thread.join();
+
+        return count * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /**
+     * Print the one-way latency of handing an element to a child JVM
+     * and back through SharedMemorySPSCBlockingQueues, measured over
+     * roundTrips round trips after as many again to warm up.
+     */
+    static void printInterProcessLatency(int roundTrips) throws Exception {
+        File requestFile = File.createTempFile("requests", ".shm");
+        File replyFile = File.createTempFile("replies", ".shm");
+        Process child = null;
+        try {
+            // Create both queues before the child opens them.
+            SharedMemorySPSCBlockingQueue<Integer> requests =
+                newInterProcessQueue(requestFile);
+            SharedMemorySPSCBlockingQueue<Integer> replies =
+                newInterProcessQueue(replyFile);
+
+            String java = System.getProperty("java.home")
+                + File.separator + "bin" + File.separator + "java";
+            child = new ProcessBuilder(java,
+                                       "-cp",
+                                       System.getProperty("java.class.path"),
+                                       QueueBenchmark.class.getName(),
+                                       "ipc-echo",
+                                       requestFile.getPath(),
+                                       replyFile.getPath())
+                .redirectErrorStream(true)
+                .start();
+
+            // The first round trip also waits for the child to start.
+            LatencyHistogram latency = new LatencyHistogram();
+            for (int i = 0; i < 2 * roundTrips; i++) {
+                long start = System.nanoTime();
+                requests.put(i);
+                if (replies.take() != i)
+                    throw new IllegalStateException("reply out of order");
+                if (i >= roundTrips)
+                    latency.record((System.nanoTime() - start) / 2);
+            }
+            requests.put(-1);
+            child.waitFor();
+
+            System.out.println("one-way hand-off between processes: " + latency);
+        } finally {
+            if (child != null)
+                child.destroy();
+            requestFile.delete();
+            replyFile.delete();
+        }
+    }
+
+    /**
+     * Take each element from the queue in requestFile and put it in
+     * the queue in replyFile, until a negative one arrives.
+     */
+    static void echo(File requestFile, File replyFile) throws Exception {
+        SharedMemorySPSCBlockingQueue<Integer> requests =
+            newInterProcessQueue(requestFile);
+        SharedMemorySPSCBlockingQueue<Integer> replies =
+            newInterProcessQueue(replyFile);
+        for (;;) {
+            Integer i = requests.take();
+            if (i < 0)
+                return;
+            replies.put(i);
+        }
+    }
+
+    /**
+     * Open the SharedMemorySPSCBlockingQueue in file that the "ipc"
+     * form uses.  It spins before yielding, since parking would
+     * dominate the latency.
+     */
+    static SharedMemorySPSCBlockingQueue<Integer> newInterProcessQueue(File file)
+        throws Exception {
+        return new SharedMemorySPSCBlockingQueue<Integer>(file,
+                                                          JournalBlockingQueue.INTEGER_CODEC,
+                                                          IPC_CAPACITY,
+                                                          4,
+                                                          WaitStrategy.spinThenYield());
+    }
+
+    /**
+     * Returns a new WaitStrategy called name, or null if name is
+     * null.
+     */
+    static WaitStrategy newWaitStrategy(String name) {
+        return name == null
+            ? null
+            : WaitStrategy.forName(name);
+    }
+
+    /**
+     * Run producers and consumers against a new queue from factory
+     * for durationNanos and return what was measured.  If
+     * waitStrategy isn't null the QueueAdapter waits according to it.
+     * If any producer or consumer throws, the others are interrupted
+     * and the exception is rethrown instead of reporting numbers for
+     * an incomplete run.
+     */
+    static Result run(QueueFactory factory,
+                      int producers,
+                      int consumers,
+                      int capacity,
+                      final int payloadSize,
+                      final int batchSize,
+                      WaitStrategy waitStrategy,
+                      final long durationNanos) throws Exception {
+        final QueueAdapter<Message> queue =
+            new QueueAdapter<Message>(factory.<Message>newQueue(capacity),
+                                      waitStrategy);
+        final int consumerCount = consumers;
+        final CyclicBarrier startBarrier =
+            new CyclicBarrier(producers + consumers + 1);
+        final CountDownLatch stopLatch = new CountDownLatch(consumers);
+        final AtomicInteger producersRunning = new AtomicInteger(producers);
+        final AtomicLong consumed = new AtomicLong();
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicReference<Exception> failure =
+            new AtomicReference<Exception>();
+
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < producers; i++)
+            threads.add(new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            List<Message> batch =
+                                new ArrayList<Message>(batchSize);
+                            startBarrier.await();
+                            long deadline = System.nanoTime() + durationNanos;
+                            long now;
+                            while ((now = System.nanoTime()) < deadline)
+                                if (batchSize == 1)
+                                    queue.put(new Message(now, new byte[payloadSize]));
+                                else {
+                                    batch.clear();
+                                    for (int b = 0; b < batchSize; b++)
+                                        batch.add(new Message(System.nanoTime(),
+                                                              new byte[payloadSize]));
+                                    queue.putAll(batch);
+                                }
+
+                            // The last producer to finish tells every
+                            // consumer to exit, which keeps the number
+                            // of producers of a single-producer queue
+                            // at one.
+                            if (producersRunning.decrementAndGet() == 0)
+                                for (int c = 0; c < consumerCount; c++)
+                                    queue.put(POISON_PILL);
+                        } catch (Exception e) {
+                            fail(e, failure, threads);
+                        }
+                    }
+                }));
+
+        for (int i = 0; i < consumers; i++)
+            threads.add(new Thread(new Runnable() {
+                    public void run() {
+                        // Record into a private histogram to avoid
+                        // contention between consumers.
+                        LatencyHistogram myLatency = new LatencyHistogram();
+                        List<Message> batch = new ArrayList<Message>(batchSize);
+                        long count = 0;
+                        try {
+                            startBarrier.await();
+                            if (batchSize == 1)
+                                for (Message message;
+                                     (message = queue.take()) != POISON_PILL;
+                                     count++)
+                                    myLatency.record(System.nanoTime()
+                                                     - message.mTimestamp);
+                            else
+                                for (int pills = 0; pills == 0; ) {
+                                    batch.clear();
+                                    queue.drainTo(batch, batchSize);
+                                    long now = System.nanoTime();
+                                    for (Message message : batch)
+                                        if (message == POISON_PILL)
+                                            pills++;
+                                        else {
+                                            myLatency.record(now - message.mTimestamp);
+                                            count++;
+                                        }
+
+                                    // Hand back any pills that were
+                                    // meant for the other consumers.
+                                    if (pills > 1)
+                                        queue.putAll(Collections.nCopies(pills - 1,
+                                                                         POISON_PILL));
+                                }
+                        } catch (Exception e) {
+                            fail(e, failure, threads);
+                        } finally {
+                            latency.add(myLatency);
+                            consumed.addAndGet(count);
+                            stopLatch.countDown();
+                        }
+                    }
+                }));
+
+        for (Thread thread : threads)
+            thread.start();
+
+        startBarrier.await();
+        long startTime = System.nanoTime();
+        stopLatch.await();
+        long elapsed = System.nanoTime() - startTime;
+
+        for (Thread thread : threads)
+            thread.join();
+
+        if (failure.get() != null)
+            throw failure.get();
+
+        return new Result(consumed.get(), elapsed, latency);
+    }
+
+    /**
+     * Called by a producer or consumer of run() that threw e.  Only
+     * the first exception is kept in failure; it also interrupts the
+     * other threads so that none of them stays blocked on a queue
+     * that nobody is putting to or taking from any more.
+     */
+    private static void fail(Exception e,
+                             AtomicReference<Exception> failure,
+                             List<Thread> threads) {
+        if (!failure.compareAndSet(null, e))
+            // Most likely the InterruptedException caused by the
+            // first failure.
+            return;
+
+        Diagnostics.print("QueueBenchmark", e);
+        for (Thread thread : threads)
+            if (thread != Thread.currentThread())
+                thread.interrupt();
+    }
+}
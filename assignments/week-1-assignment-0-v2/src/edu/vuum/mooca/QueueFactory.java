@@ -0,0 +1,26 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * @class QueueFactory
+ *
+ * @brief Makes a new, empty BlockingQueue of the given capacity for
+ *        each run.  SynchronizedQueue's scaling, partitioned and
+ *        pairs modes, PartitionedQueue and QueueBenchmark all take
+ *        one, and QueueBenchmark.QueueType implements it for the
+ *        queues in this project.
+ */
+public interface QueueFactory {
+    /**
+     * Returns a new queue that holds at least capacity elements
+     * (unbounded queues may ignore capacity).
+     */
+    <E> BlockingQueue<E> newQueue(int capacity);
+
+    /**
+     * Returns true if the queue only supports one producer and one
+     * consumer Thread.
+     */
+    boolean isSingleProducerSingleConsumer();
+}
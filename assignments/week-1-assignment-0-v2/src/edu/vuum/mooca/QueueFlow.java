@@ -0,0 +1,100 @@
+package edu.vuum.mooca;
+
+/**
+ * @class QueueFlow
+ *
+ * @brief Interfaces for demand-driven ("reactive") streams of
+ *        elements, with the same methods and rules as
+ *        java.util.concurrent.Flow.  Flow was only added in Java 9,
+ *        so this project has its own copy, and wrapping one in the
+ *        other is a one-line delegation per method.
+ *
+ *        A Publisher never sends a Subscriber more elements than the
+ *        Subscriber has asked for via Subscription.request(), so a
+ *        slow Subscriber slows the Publisher down rather than making
+ *        elements pile up in between.  QueuePublisher and
+ *        QueueSubscriber connect these streams to a QueueAdapter.
+ */
+public final class QueueFlow {
+    /**
+     * @class Publisher
+     *
+     * @brief Produces elements for the Subscribers that subscribe to
+     *        it, at the rate they request them.
+     */
+    public interface Publisher<T> {
+        /**
+         * Add subscriber, which is first sent onSubscribe() with the
+         * Subscription it uses to request elements.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * @class Subscriber
+     *
+     * @brief Receives the elements of a Publisher.  Its methods are
+     *        never called concurrently for the same Subscription.
+     */
+    public interface Subscriber<T> {
+        /**
+         * Called before any other method, with the Subscription the
+         * Subscriber uses to request elements.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Called with the next element, but only if it has been
+         * requested.
+         */
+        void onNext(T item);
+
+        /**
+         * Called if the Publisher fails, after which no more
+         * methods are called.
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Called once the Publisher has no more elements, after
+         * which no more methods are called.
+         */
+        void onComplete();
+    }
+
+    /**
+     * @class Subscription
+     *
+     * @brief Links a Publisher to one of its Subscribers.
+     */
+    public interface Subscription {
+        /**
+         * Allow the Publisher to send n (which must be positive) more
+         * elements.
+         */
+        void request(long n);
+
+        /**
+         * Ask the Publisher to stop sending elements, which it
+         * eventually does.
+         */
+        void cancel();
+    }
+
+    /**
+     * Returns the sum of two (non-negative) amounts of demand,
+     * capped at Long.MAX_VALUE, which means "unbounded".
+     */
+    static long addDemand(long demand, long n) {
+        long sum = demand + n;
+        return sum < 0
+            ? Long.MAX_VALUE
+            : sum;
+    }
+
+    /**
+     * The class only holds nested interfaces.
+     */
+    private QueueFlow() {
+    }
+}
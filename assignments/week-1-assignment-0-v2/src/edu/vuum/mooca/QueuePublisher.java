@@ -0,0 +1,231 @@
+package edu.vuum.mooca;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.vuum.mooca.SynchronizedQueue.QueueAdapter;
+
+/**
+ * @class QueuePublisher
+ *
+ * @brief A QueueFlow.Publisher that takes elements from a QueueAdapter
+ *        and sends them to its Subscribers, but only as many as they
+ *        have requested.  Whatever isn't requested stays in the
+ *        queue, so once the queue is full its producers block in
+ *        put() at the pace the Subscribers ask for elements.
+ *
+ *        Each Subscription has a Thread of its own that takes
+ *        elements and sends them to its Subscriber, and parks while
+ *        the Subscriber has no outstanding demand.  If there are
+ *        several Subscribers they share out the elements of the
+ *        queue between them rather than each receiving all of them.
+ *        After close() the Subscribers are sent onComplete() as soon
+ *        as the queue is empty.  close() never interrupts those
+ *        Threads, since they may be running Subscriber code (such
+ *        as a QueueSubscriber waiting to put() the element it was
+ *        just sent), so they wait for elements in slices of
+ *        POLL_MILLIS and check for close() in between.
+ */
+public class QueuePublisher<E> implements QueueFlow.Publisher<E> {
+    /**
+     * The longest a Subscription's Thread waits for an element before
+     * checking whether it's been closed or cancelled.
+     */
+    static final long POLL_MILLIS = 10;
+
+    /**
+     * The queue that elements are taken from.
+     */
+    private final QueueAdapter<E> mQueue;
+
+    /**
+     * Makes the Thread of each Subscription.
+     */
+    private final ThreadFactory mThreadFactory;
+
+    /**
+     * The Threads of the Subscriptions that are still running.
+     */
+    private final List<Thread> mThreads = new CopyOnWriteArrayList<Thread>();
+
+    /**
+     * Set by close().
+     */
+    private volatile boolean mClosed;
+
+    /**
+     * Publish the elements of queue, with a platform Thread per
+     * Subscription.
+     */
+    public QueuePublisher(QueueAdapter<E> queue) {
+        this(queue, ThreadFactories.platform());
+    }
+
+    /**
+     * Publish the elements of queue, with a Thread per Subscription
+     * made by threadFactory.
+     */
+    public QueuePublisher(QueueAdapter<E> queue, ThreadFactory threadFactory) {
+        mQueue = queue;
+        mThreadFactory = threadFactory;
+    }
+
+    /**
+     * Start sending elements to subscriber as it requests them.
+     */
+    public void subscribe(QueueFlow.Subscriber<? super E> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException();
+
+        QueueSubscription subscription = new QueueSubscription(subscriber);
+        Thread thread = mThreadFactory.newThread(subscription);
+        subscription.mThread = thread;
+        mThreads.add(thread);
+        subscriber.onSubscribe(subscription);
+        thread.start();
+    }
+
+    /**
+     * Stop waiting for more elements, so every Subscriber is sent
+     * onComplete() once the queue is empty.  Elements already taken
+     * from the queue are still sent.
+     */
+    public void close() {
+        mClosed = true;
+        for (Thread thread : mThreads)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * @class QueueSubscription
+     *
+     * @brief The Subscription of a single Subscriber, which runs in
+     *        its own Thread.
+     */
+    private class QueueSubscription implements QueueFlow.Subscription, Runnable {
+        /**
+         * The Subscriber that's sent the elements.
+         */
+        private final QueueFlow.Subscriber<? super E> mSubscriber;
+
+        /**
+         * The number of elements the Subscriber has requested but not
+         * yet been sent.
+         */
+        private final AtomicLong mDemand = new AtomicLong();
+
+        /**
+         * The Thread that sends the elements, which is set before
+         * it's started.
+         */
+        private volatile Thread mThread;
+
+        /**
+         * Set by cancel(), or if request() is called with a
+         * non-positive n.
+         */
+        private volatile boolean mCancelled;
+
+        /**
+         * The error the Subscriber is sent once the Thread stops, if
+         * any.
+         */
+        private volatile Throwable mError;
+
+        QueueSubscription(QueueFlow.Subscriber<? super E> subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        /**
+         * Allow n more elements to be sent.
+         */
+        public void request(long n) {
+            if (n <= 0) {
+                mError = new IllegalArgumentException("request(" + n + ")");
+                mCancelled = true;
+            } else {
+                long demand;
+                do
+                    demand = mDemand.get();
+                while (!mDemand.compareAndSet(demand,
+                                              QueueFlow.addDemand(demand, n)));
+            }
+            LockSupport.unpark(mThread);
+        }
+
+        /**
+         * Stop sending elements.  If the Thread is waiting for an
+         * element it notices within POLL_MILLIS.
+         */
+        public void cancel() {
+            mCancelled = true;
+            LockSupport.unpark(mThread);
+        }
+
+        /**
+         * Send elements as they're requested until the Subscription
+         * is cancelled or the QueuePublisher is closed and the queue
+         * is empty.
+         */
+        public void run() {
+            try {
+                while (!mCancelled) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        // Neither close() nor cancel() interrupts us,
+                        // so whoever did wants the Thread to stop.
+                        mError = new InterruptedException();
+                        break;
+                    }
+
+                    if (mClosed && mQueue.size() == 0) {
+                        mSubscriber.onComplete();
+                        return;
+                    }
+
+                    if (mDemand.get() == 0) {
+                        // request() unparks us, and if it already has
+                        // park() returns straight away.
+                        LockSupport.park(this);
+                        continue;
+                    }
+
+                    E e = mQueue.tryTake();
+                    if (e == null) {
+                        try {
+                            e = mQueue.poll(POLL_MILLIS,
+                                            TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException ex) {
+                            // Checked at the top of the loop.
+                            Thread.currentThread().interrupt();
+                            continue;
+                        }
+                        if (e == null)
+                            // Nothing arrived, so check for close()
+                            // and cancel() and then wait again.
+                            continue;
+                    }
+
+                    if (mDemand.get() != Long.MAX_VALUE)
+                        mDemand.decrementAndGet();
+                    try {
+                        mSubscriber.onNext(e);
+                    } catch (RuntimeException ex) {
+                        // A Subscriber mustn't throw, so treat it as
+                        // having cancelled.
+                        mCancelled = true;
+                        Diagnostics.print("QueuePublisher", ex);
+                    }
+                }
+
+                if (mError != null)
+                    mSubscriber.onError(mError);
+            } finally {
+                mThreads.remove(Thread.currentThread());
+            }
+        }
+    }
+}
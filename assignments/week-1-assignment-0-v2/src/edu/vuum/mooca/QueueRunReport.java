@@ -0,0 +1,149 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.vuum.mooca.SynchronizedQueue.SynchronizedQueueResult;
+
+/**
+ * @class QueueRunReport
+ *
+ * @brief What SynchronizedQueue.testInstrumentedQueue() measured
+ *        during a run, returned alongside the SynchronizedQueueResult
+ *        that says whether the run worked.
+ */
+public class QueueRunReport {
+    /**
+     * Whether the run worked.
+     */
+    private final SynchronizedQueueResult mResult;
+
+    /**
+     * How long the run took.
+     */
+    private final long mElapsedNanos;
+
+    /**
+     * The adapter that did the measuring.
+     */
+    private final InstrumentedQueueAdapter<?> mQueue;
+
+    /**
+     * Constructor stores what was measured.
+     */
+    QueueRunReport(SynchronizedQueueResult result,
+                   long elapsedNanos,
+                   InstrumentedQueueAdapter<?> queue) {
+        mResult = result;
+        mElapsedNanos = elapsedNanos;
+        mQueue = queue;
+    }
+
+    /**
+     * Returns whether the run worked.
+     */
+    public SynchronizedQueueResult getResult() {
+        return mResult;
+    }
+
+    /**
+     * Returns how long the run took.
+     */
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    /**
+     * Returns the histogram of put() latencies.
+     */
+    public LatencyHistogram getPutLatency() {
+        return mQueue.getPutLatency();
+    }
+
+    /**
+     * Returns the histogram of take() latencies.
+     */
+    public LatencyHistogram getTakeLatency() {
+        return mQueue.getTakeLatency();
+    }
+
+    /**
+     * Returns the histogram of sampled queue occupancy.
+     */
+    public LatencyHistogram getOccupancy() {
+        return mQueue.getOccupancy();
+    }
+
+    /**
+     * Returns the number of put()s that found the queue full.
+     */
+    public long getProducerStalls() {
+        return mQueue.getProducerStalls();
+    }
+
+    /**
+     * Returns the total time put()s spent waiting for space.
+     */
+    public long getProducerStallNanos() {
+        return mQueue.getProducerStallNanos();
+    }
+
+    /**
+     * Returns the number of take()s that found the queue empty.
+     */
+    public long getConsumerStalls() {
+        return mQueue.getConsumerStalls();
+    }
+
+    /**
+     * Returns the total time take()s spent waiting for elements.
+     */
+    public long getConsumerStallNanos() {
+        return mQueue.getConsumerStallNanos();
+    }
+
+    /**
+     * Returns the percentage of the run spent stalled in waiting for
+     * the queue by a Thread that waited a total of stallNanos.
+     */
+    private double percentOfRun(long stallNanos) {
+        return mElapsedNanos == 0
+            ? 0
+            : 100.0 * stallNanos / mElapsedNanos;
+    }
+
+    /**
+     * Returns a multi-line summary of the report.
+     */
+    public String toString() {
+        LatencyHistogram occupancy = getOccupancy();
+        return String.format("result:    %s%n"
+                             + "elapsed:   %.1fms%n"
+                             + "put:       %s%n"
+                             + "take:      %s%n"
+                             + "producers: %d stalls, %.1fms stalled (%.1f%% of run)%n"
+                             + "consumers: %d stalls, %.1fms stalled (%.1f%% of run)%n"
+                             + "occupancy: samples=%d mean=%.1f p50=%d p99=%d max=%d",
+                             mResult.getString(),
+                             millis(mElapsedNanos),
+                             getPutLatency(),
+                             getTakeLatency(),
+                             getProducerStalls(),
+                             millis(getProducerStallNanos()),
+                             percentOfRun(getProducerStallNanos()),
+                             getConsumerStalls(),
+                             millis(getConsumerStallNanos()),
+                             percentOfRun(getConsumerStallNanos()),
+                             occupancy.getCount(),
+                             occupancy.getMean(),
+                             occupancy.getValueAtPercentile(50),
+                             occupancy.getValueAtPercentile(99),
+                             occupancy.getMax());
+    }
+
+    /**
+     * Convert nanos to (fractional) milliseconds.
+     */
+    private static double millis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
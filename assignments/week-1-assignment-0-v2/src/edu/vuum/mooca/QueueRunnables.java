@@ -0,0 +1,275 @@
+package edu.vuum.mooca;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.vuum.mooca.SynchronizedQueue.QueueAdapter;
+import edu.vuum.mooca.SynchronizedQueue.SynchronizedQueueResult;
+
+/**
+ * @class QueueRunnables
+ *
+ * @brief Makes the producer and consumer Runnables that the tests
+ *        run in place of SynchronizedQueue's mProducerRunnable and
+ *        mConsumerRunnable: ones for IntQueueAdapter and for
+ *        putting and taking batches, which count their elements in
+ *        mProducerCounter and mConsumerCounter like those do, and
+ *        counting ones for the drivers that run several producers
+ *        and consumers at once.
+ */
+public class QueueRunnables {
+    /**
+     * Returns a Runnable that loops for mMaxIterations and calls
+     * put() on queue to insert the iteration number into it.  Unlike
+     * mProducerRunnable it never boxes the iteration number, so it
+     * doesn't allocate any memory per element.
+     */
+    static Runnable newIntProducer(final IntQueueAdapter queue) {
+        return new Runnable() {
+            public void run() {
+                for (int i = 0; i < SynchronizedQueue.mMaxIterations; i++)
+                    try {
+                        queue.put(i);
+                        if (Thread.interrupted())
+                            throw new InterruptedException();
+                    } catch (InterruptedException e) {
+                        Diagnostics.print("intProducerRunnable", e);
+                        // This isn't an error - it just means that
+                        // we've been interrupted by the main Thread.
+                        return;
+                    } catch (TimeoutException e) {
+                        Diagnostics.print("intProducerRunnable", e);
+                        // Indicate a timeout.
+                        SynchronizedQueue.mProducerCounter = SynchronizedQueue.TIMEOUT_OCCURRED;
+                        return;
+                    } catch (Exception e) {
+                        Diagnostics.print("intProducerRunnable", e);
+                        // Indicate a failure.
+                        SynchronizedQueue.mProducerCounter = SynchronizedQueue.FAILURE_OCCURRED;
+                        return;
+                    }
+            }
+        };
+    }
+
+    /**
+     * Returns a Runnable that loops for mMaxIterations and calls
+     * take() on queue to remove the iteration from it without
+     * unboxing (or allocating) anything.
+     */
+    static Runnable newIntConsumer(final IntQueueAdapter queue) {
+        return new Runnable() {
+            public void run() {
+                for (int i = 0; i < SynchronizedQueue.mMaxIterations; i++)
+                    try {
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException();
+                        }
+                        int result = queue.take();
+
+                        if (Diagnostics.isEnabled())
+                            Diagnostics.println("iteration = " + result);
+                    } catch (InterruptedException e) {
+                        Diagnostics.print("intConsumerRunnable", e);
+                        // This isn't an error - it just means that
+                        // we've been interrupted by the main Thread.
+                        return;
+                    } catch (TimeoutException e) {
+                        Diagnostics.print("intConsumerRunnable", e);
+                        // Indicate a timeout.
+                        SynchronizedQueue.mConsumerCounter = SynchronizedQueue.TIMEOUT_OCCURRED;
+                        return;
+                    } catch (Exception e) {
+                        Diagnostics.print("intConsumerRunnable", e);
+                        // Indicate a failure.
+                        SynchronizedQueue.mConsumerCounter = SynchronizedQueue.FAILURE_OCCURRED;
+                        return;
+                    }
+            }
+        };
+    }
+
+    /**
+     * Returns a Runnable that loops for mMaxIterations and calls
+     * putAll() on queue to insert the iteration numbers into it
+     * batchSize at a time.
+     */
+    static Runnable newBatchProducer(final QueueAdapter<Integer> queue,
+                                     final int batchSize) {
+        return new Runnable() {
+            public void run() {
+                List<Integer> batch = new ArrayList<Integer>(batchSize);
+                for (int i = 0; i < SynchronizedQueue.mMaxIterations; i += batch.size())
+                    try {
+                        batch.clear();
+                        for (int j = i;
+                             j < SynchronizedQueue.mMaxIterations && j < i + batchSize;
+                             j++)
+                            batch.add(j);
+
+                        queue.putAll(batch);
+                        if (Thread.interrupted())
+                            throw new InterruptedException();
+                    } catch (InterruptedException e) {
+                        Diagnostics.print("batchProducerRunnable", e);
+                        // This isn't an error - it just means that
+                        // we've been interrupted by the main Thread.
+                        return;
+                    } catch (TimeoutException e) {
+                        Diagnostics.print("batchProducerRunnable", e);
+                        // Indicate a timeout.
+                        SynchronizedQueue.mProducerCounter = SynchronizedQueue.TIMEOUT_OCCURRED;
+                        return;
+                    } catch (Exception e) {
+                        Diagnostics.print("batchProducerRunnable", e);
+                        // Indicate a failure.
+                        SynchronizedQueue.mProducerCounter = SynchronizedQueue.FAILURE_OCCURRED;
+                        return;
+                    }
+            }
+        };
+    }
+
+    /**
+     * Returns a Runnable that loops for mMaxIterations and calls
+     * drainTo() on queue to remove up to batchSize iterations from
+     * it each time it wakes up.
+     */
+    static Runnable newBatchConsumer(final QueueAdapter<Integer> queue,
+                                     final int batchSize) {
+        return new Runnable() {
+            public void run() {
+                List<Integer> batch = new ArrayList<Integer>(batchSize);
+                for (int i = 0; i < SynchronizedQueue.mMaxIterations; i += batch.size())
+                    try {
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException();
+                        }
+                        batch.clear();
+                        queue.drainTo(batch, batchSize);
+
+                        if (Diagnostics.isEnabled())
+                            for (Integer result : batch)
+                                Diagnostics.println("iteration = " + result);
+                    } catch (InterruptedException e) {
+                        Diagnostics.print("batchConsumerRunnable", e);
+                        // This isn't an error - it just means that
+                        // we've been interrupted by the main Thread.
+                        return;
+                    } catch (TimeoutException e) {
+                        Diagnostics.print("batchConsumerRunnable", e);
+                        // Indicate a timeout.
+                        SynchronizedQueue.mConsumerCounter = SynchronizedQueue.TIMEOUT_OCCURRED;
+                        return;
+                    } catch (Exception e) {
+                        Diagnostics.print("batchConsumerRunnable", e);
+                        // Indicate a failure.
+                        SynchronizedQueue.mConsumerCounter = SynchronizedQueue.FAILURE_OCCURRED;
+                        return;
+                    }
+            }
+        };
+    }
+
+    /**
+     * Returns a Runnable that puts ascending numbers into queue until
+     * it's interrupted, counting them in stripe of counter.  If
+     * startBarrier isn't null it waits there before it starts
+     * putting.  It records the first failure in failure.
+     */
+    static Runnable newCountingProducer(final QueueAdapter<Integer> queue,
+                                        final StripedCounter counter,
+                                        final int stripe,
+                                        final AtomicReference<SynchronizedQueueResult> failure,
+                                        final CyclicBarrier startBarrier) {
+        return new Runnable() {
+            public void run() {
+                if (!awaitStart(startBarrier, "countingProducerRunnable"))
+                    return;
+                for (int i = 0; ; i++)
+                    try {
+                        queue.put(i, counter, stripe);
+                        if (Thread.interrupted())
+                            throw new InterruptedException();
+                    } catch (InterruptedException e) {
+                        Diagnostics.print("countingProducerRunnable", e);
+                        // This isn't an error - it just means that
+                        // we've been interrupted by the main Thread.
+                        return;
+                    } catch (TimeoutException e) {
+                        Diagnostics.print("countingProducerRunnable", e);
+                        failure.compareAndSet(null,
+                                              SynchronizedQueueResult.THREADS_TIMEDOUT);
+                        return;
+                    } catch (Exception e) {
+                        Diagnostics.print("countingProducerRunnable", e);
+                        failure.compareAndSet(null,
+                                              SynchronizedQueueResult.THREADS_THREW_EXCEPTION);
+                        return;
+                    }
+            }
+        };
+    }
+
+    /**
+     * Returns a Runnable that takes from queue until it's
+     * interrupted, counting what it takes in stripe of counter.  If
+     * startBarrier isn't null it waits there before it starts
+     * taking.  It records the first failure in failure.
+     */
+    static Runnable newCountingConsumer(final QueueAdapter<Integer> queue,
+                                        final StripedCounter counter,
+                                        final int stripe,
+                                        final AtomicReference<SynchronizedQueueResult> failure,
+                                        final CyclicBarrier startBarrier) {
+        return new Runnable() {
+            public void run() {
+                if (!awaitStart(startBarrier, "countingConsumerRunnable"))
+                    return;
+                for (;;)
+                    try {
+                        if (Thread.interrupted())
+                            throw new InterruptedException();
+                        queue.take(counter, stripe);
+                    } catch (InterruptedException e) {
+                        Diagnostics.print("countingConsumerRunnable", e);
+                        // This isn't an error - it just means that
+                        // we've been interrupted by the main Thread.
+                        return;
+                    } catch (TimeoutException e) {
+                        Diagnostics.print("countingConsumerRunnable", e);
+                        failure.compareAndSet(null,
+                                              SynchronizedQueueResult.THREADS_TIMEDOUT);
+                        return;
+                    } catch (Exception e) {
+                        Diagnostics.print("countingConsumerRunnable", e);
+                        failure.compareAndSet(null,
+                                              SynchronizedQueueResult.THREADS_THREW_EXCEPTION);
+                        return;
+                    }
+            }
+        };
+    }
+
+    /**
+     * Wait at startBarrier (if it isn't null) until every Thread in
+     * the run is ready to start.
+     *
+     * @return false if the run was abandoned or the calling Thread
+     *         was interrupted while it waited
+     */
+    static boolean awaitStart(CyclicBarrier startBarrier, String where) {
+        if (startBarrier == null)
+            return true;
+        try {
+            startBarrier.await();
+            return true;
+        } catch (Exception e) {
+            Diagnostics.print(where, e);
+            return false;
+        }
+    }
+}
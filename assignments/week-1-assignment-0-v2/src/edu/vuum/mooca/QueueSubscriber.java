@@ -0,0 +1,146 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.TimeoutException;
+
+import edu.vuum.mooca.SynchronizedQueue.QueueAdapter;
+
+/**
+ * @class QueueSubscriber
+ *
+ * @brief A QueueFlow.Subscriber that puts the elements it receives
+ *        into a QueueAdapter.  It only requests as many elements as
+ *        there's room for in the queue, so a Publisher that feeds
+ *        it produces elements at the pace the queue's consumers take
+ *        them, rather than filling the queue and then timing out.
+ *
+ *        It tops up its demand once at least requestBatch slots are
+ *        free, to avoid calling request() for every element.  When
+ *        the queue is full and nothing is outstanding it requests a
+ *        single element, which waits in put() until there's room, so
+ *        the stream never stalls for lack of demand and at most one
+ *        element is held outside the queue.
+ */
+public class QueueSubscriber<E> implements QueueFlow.Subscriber<E> {
+    /**
+     * The queue that elements are put into.
+     */
+    private final QueueAdapter<E> mQueue;
+
+    /**
+     * The least number of elements requested at once (unless
+     * nothing is outstanding).
+     */
+    private final int mRequestBatch;
+
+    /**
+     * The Subscription, which is set by onSubscribe().
+     */
+    private QueueFlow.Subscription mSubscription;
+
+    /**
+     * The number of elements requested but not yet received.  The
+     * Subscriber methods are never called concurrently, so this
+     * needn't be atomic.
+     */
+    private long mOutstanding;
+
+    /**
+     * Set once the stream has ended.
+     */
+    private volatile boolean mDone;
+
+    /**
+     * The error the stream ended with, or null.
+     */
+    private volatile Throwable mError;
+
+    /**
+     * Put the elements received into queue, requesting them in
+     * batches of at least requestBatch.
+     */
+    public QueueSubscriber(QueueAdapter<E> queue, int requestBatch) {
+        if (requestBatch < 1)
+            throw new IllegalArgumentException("requestBatch = " + requestBatch);
+        mQueue = queue;
+        mRequestBatch = requestBatch;
+    }
+
+    /**
+     * Request as many elements as there's room for.
+     */
+    public void onSubscribe(QueueFlow.Subscription subscription) {
+        if (mSubscription != null) {
+            // Only one Subscription is allowed at a time.
+            subscription.cancel();
+            return;
+        }
+        mSubscription = subscription;
+        requestMore();
+    }
+
+    /**
+     * Put item into the queue, waiting for room if necessary, and
+     * request more elements if there's room for them.
+     */
+    public void onNext(E item) {
+        mOutstanding--;
+        for (;;)
+            try {
+                mQueue.put(item);
+                break;
+            } catch (TimeoutException e) {
+                // The consumers are slow, which is exactly what we're
+                // pacing the Publisher to, so keep waiting.
+            } catch (InterruptedException e) {
+                mSubscription.cancel();
+                onError(e);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        requestMore();
+    }
+
+    /**
+     * Record that the stream failed.
+     */
+    public void onError(Throwable throwable) {
+        mError = throwable;
+        mDone = true;
+    }
+
+    /**
+     * Record that the stream ended.
+     */
+    public void onComplete() {
+        mDone = true;
+    }
+
+    /**
+     * Returns true once the stream has ended.
+     */
+    public boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Returns the error the stream ended with, or null.
+     */
+    public Throwable getError() {
+        return mError;
+    }
+
+    /**
+     * Request enough elements to fill the room left in the queue,
+     * if that's at least mRequestBatch, or a single element if
+     * nothing is outstanding.
+     */
+    private void requestMore() {
+        long room = mQueue.remainingCapacity() - mOutstanding;
+        if (room >= mRequestBatch
+            || (mOutstanding == 0 && !mDone)) {
+            long n = Math.max(room, 1);
+            mOutstanding += n;
+            mSubscription.request(n);
+        }
+    }
+}
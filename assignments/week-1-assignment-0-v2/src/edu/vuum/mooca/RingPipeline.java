@@ -0,0 +1,373 @@
+package edu.vuum.mooca;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * @class RingPipeline
+ *
+ * @brief A multi-stage pipeline in the style of the LMAX Disruptor.
+ *        Rather than passing elements from stage to stage through a
+ *        BlockingQueue per stage, a single producer fills
+ *        pre-allocated events in a ring and every stage processes
+ *        the same events in place, in dependency order.
+ *
+ *        The producer and each stage have a Sequence that says how
+ *        far through the ring they've got.  A stage may process an
+ *        event once every stage it depends on (or, for the first
+ *        stages, the producer) has moved past it, and the producer
+ *        may reuse a slot once every stage has moved past the event
+ *        in it.  Each stage processes all the events that are
+ *        available in one batch before advancing its Sequence, so
+ *        the cost of a hand-off is shared by the whole batch, and
+ *        events are never copied or allocated once the ring exists.
+ *
+ *        Stages run on Threads of their own and wait according to a
+ *        WaitStrategy.  Only one Thread may produce events, via
+ *        next(), get() and publish().
+ */
+public class RingPipeline<T> {
+    /**
+     * @class EventFactory
+     *
+     * @brief Creates the events that are pre-allocated in the ring.
+     */
+    public interface EventFactory<T> {
+        T newInstance();
+    }
+
+    /**
+     * @class Handler
+     *
+     * @brief The work a stage does on each event.
+     */
+    public interface Handler<T> {
+        void onEvent(T event, long sequence);
+    }
+
+    /**
+     * @class Stage
+     *
+     * @brief A stage of the pipeline, which runs a Handler on every
+     *        event once the stages it depends on have.
+     */
+    public class Stage implements Runnable {
+        /**
+         * The name used in reports.
+         */
+        private final String mName;
+
+        /**
+         * The work done on each event.
+         */
+        private final Handler<T> mHandler;
+
+        /**
+         * The Sequences of the stages this stage depends on (or of
+         * the producer).
+         */
+        private final Sequence[] mDependencies;
+
+        /**
+         * The sequence of the last event this stage has processed.
+         */
+        private final Sequence mSequence = new Sequence(-1);
+
+        Stage(String name, Handler<T> handler, Sequence[] dependencies) {
+            mName = name;
+            mHandler = handler;
+            mDependencies = dependencies;
+        }
+
+        /**
+         * Returns the name used in reports.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the number of events this stage has processed.
+         */
+        public long getProcessed() {
+            return mSequence.get() + 1;
+        }
+
+        /**
+         * Returns the number of published events this stage hasn't
+         * processed yet.
+         */
+        public long getLag() {
+            return mCursor.get() - mSequence.get();
+        }
+
+        /**
+         * Process events as they become available until the pipeline
+         * is halted.
+         */
+        public void run() {
+            long next = mSequence.get() + 1;
+            try {
+                for (;;) {
+                    long available = waitFor(mDependencies, next);
+                    for (long seq = next; seq <= available; seq++)
+                        mHandler.onEvent(get(seq), seq);
+                    mSequence.setOrdered(available);
+                    mWaitStrategy.signalAll();
+                    next = available + 1;
+                }
+            } catch (InterruptedException e) {
+                // We've been halted.
+            }
+        }
+    }
+
+    /**
+     * The pre-allocated events.
+     */
+    private final Object[] mEvents;
+
+    /**
+     * Maps a sequence number to an index in mEvents.
+     */
+    private final int mMask;
+
+    /**
+     * Decides how the producer and the stages wait.
+     */
+    private final WaitStrategy mWaitStrategy;
+
+    /**
+     * The sequence of the last event the producer published.
+     */
+    private final Sequence mCursor = new Sequence(-1);
+
+    /**
+     * The stages, in the order they were added.
+     */
+    private final List<Stage> mStages = new ArrayList<Stage>();
+
+    /**
+     * The Sequences of every stage, which the producer must not
+     * overtake by more than the size of the ring.
+     */
+    private Sequence[] mGatingSequences = new Sequence[0];
+
+    /**
+     * The Threads the stages run on, once start() has been called.
+     */
+    private final List<Thread> mThreads = new ArrayList<Thread>();
+
+    /**
+     * Cleared by halt().
+     */
+    private volatile boolean mRunning = true;
+
+    /**
+     * The last sequence the producer claimed.  Producer only.
+     */
+    private long mClaimed = -1;
+
+    /**
+     * The smallest gating sequence the producer last saw.  Producer
+     * only.
+     */
+    private long mCachedGate = -1;
+
+    /**
+     * Constructor rounds capacity up to the next power of two and
+     * pre-allocates that many events from factory.
+     */
+    public RingPipeline(int capacity,
+                        EventFactory<T> factory,
+                        WaitStrategy waitStrategy) {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("capacity = " + capacity);
+
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+
+        mEvents = new Object[size];
+        for (int i = 0; i < size; i++)
+            mEvents[i] = factory.newInstance();
+        mMask = size - 1;
+        mWaitStrategy = waitStrategy;
+    }
+
+    /**
+     * Add a stage called name that runs handler on each event after
+     * the producer has published it.  Must be called before start().
+     */
+    public Stage addStage(String name, Handler<T> handler) {
+        return addStage(name, handler, new ArrayList<Stage>());
+    }
+
+    /**
+     * Add a stage called name that runs handler on each event after
+     * the stage dependsOn has.  Must be called before start().
+     */
+    public Stage addStage(String name, Handler<T> handler, Stage dependsOn) {
+        List<Stage> dependencies = new ArrayList<Stage>();
+        dependencies.add(dependsOn);
+        return addStage(name, handler, dependencies);
+    }
+
+    /**
+     * Add a stage called name that runs handler on each event after
+     * all the stages in dependsOn have (or after the producer has
+     * published it if dependsOn is empty).  Must be called before
+     * start().
+     */
+    public Stage addStage(String name, Handler<T> handler, List<Stage> dependsOn) {
+        Sequence[] dependencies;
+        if (dependsOn.isEmpty())
+            dependencies = new Sequence[] { mCursor };
+        else {
+            dependencies = new Sequence[dependsOn.size()];
+            for (int i = 0; i < dependencies.length; i++)
+                dependencies[i] = dependsOn.get(i).mSequence;
+        }
+
+        Stage stage = new Stage(name, handler, dependencies);
+        mStages.add(stage);
+
+        Sequence[] gating = new Sequence[mStages.size()];
+        for (int i = 0; i < gating.length; i++)
+            gating[i] = mStages.get(i).mSequence;
+        mGatingSequences = gating;
+        return stage;
+    }
+
+    /**
+     * Returns the stages, in the order they were added.
+     */
+    public List<Stage> getStages() {
+        return mStages;
+    }
+
+    /**
+     * Returns the number of events the ring holds.
+     */
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Returns the number of events the producer has published.
+     */
+    public long getPublished() {
+        return mCursor.get() + 1;
+    }
+
+    /**
+     * Start a Thread made by threadFactory for each stage.
+     */
+    public void start(ThreadFactory threadFactory) {
+        for (Stage stage : mStages) {
+            Thread thread = threadFactory.newThread(stage);
+            mThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Claim the next event for the producer to fill, waiting until
+     * every stage has finished with the event that was in its slot.
+     * Producer only.
+     *
+     * @return the sequence of the claimed event
+     * @throws InterruptedException if the pipeline is halted or the
+     *         producer is interrupted while it waits
+     */
+    public long next() throws InterruptedException {
+        long next = mClaimed + 1;
+        long wrapPoint = next - capacity();
+        if (wrapPoint > mCachedGate)
+            mCachedGate = waitFor(mGatingSequences, wrapPoint);
+        mClaimed = next;
+        return next;
+    }
+
+    /**
+     * Returns the event with the given sequence.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(long sequence) {
+        return (T) mEvents[(int) sequence & mMask];
+    }
+
+    /**
+     * Make the event with the given sequence, which the producer must
+     * have claimed and filled, available to the stages.  Producer
+     * only.
+     */
+    public void publish(long sequence) {
+        mCursor.setOrdered(sequence);
+        mWaitStrategy.signalAll();
+    }
+
+    /**
+     * Wait up to timeoutMillis for every stage to process every
+     * published event.
+     *
+     * @return true if they did
+     */
+    public boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (;;) {
+            boolean drained = true;
+            for (Stage stage : mStages)
+                if (stage.getLag() > 0)
+                    drained = false;
+            if (drained)
+                return true;
+            if (System.currentTimeMillis() >= deadline)
+                return false;
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Stop the stages and wait for their Threads to finish.
+     */
+    public void halt() throws InterruptedException {
+        mRunning = false;
+        mWaitStrategy.signalAll();
+        for (Thread thread : mThreads)
+            thread.interrupt();
+        for (Thread thread : mThreads)
+            thread.join();
+    }
+
+    /**
+     * Returns the smallest of the given sequences.
+     */
+    private static long minimum(Sequence[] sequences) {
+        long minimum = Long.MAX_VALUE;
+        for (Sequence sequence : sequences)
+            minimum = Math.min(minimum, sequence.get());
+        return minimum;
+    }
+
+    /**
+     * Wait until every one of sequences has reached at least target,
+     * returning the smallest of them.
+     *
+     * @throws InterruptedException if the pipeline is halted or the
+     *         calling Thread is interrupted while it waits
+     */
+    private long waitFor(Sequence[] sequences, long target)
+        throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            long token = mWaitStrategy.prepare();
+            long available = minimum(sequences);
+            if (available >= target)
+                return available;
+            if (!mRunning || Thread.interrupted())
+                throw new InterruptedException();
+            mWaitStrategy.await(attempt, token, Long.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package edu.vuum.mooca;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @class SPSCBlockingQueue
+ *
+ * @brief Defines a bounded, lock-free implementation of the
+ *        BlockingQueue interface that's safe to use from exactly one
+ *        producer Thread and exactly one consumer Thread.
+ *
+ *        The elements live in a ring buffer whose capacity is a
+ *        power of two, so a sequence number can be mapped to a slot
+ *        with a mask rather than a division.  An empty slot contains
+ *        null, which lets the producer and consumer decide whether
+ *        the queue is full or empty by looking at a single slot
+ *        rather than at each other's sequence.  The head and tail
+ *        sequences are padded onto cache lines of their own and are
+ *        only needed to compute the size of the queue.
+ *
+ *        Blocking operations wait according to a WaitStrategy, which
+ *        by default spins and then parks with exponential backoff.
+ *
+ *        Methods that insert elements must only be called by the
+ *        producer Thread and methods that remove or inspect elements
+ *        (poll(), take(), peek(), drainTo(), clear()) must only be
+ *        called by the consumer Thread.  size(), isEmpty(),
+ *        remainingCapacity() and iterator() may be called by any
+ *        Thread.
+ */
+public class SPSCBlockingQueue<E> extends AbstractQueue<E>
+                                  implements BatchBlockingQueue<E> {
+    /**
+     * The ring buffer that holds the elements.
+     */
+    private final AtomicReferenceArray<E> mBuffer;
+
+    /**
+     * Maps a sequence number to an index in mBuffer.
+     */
+    private final int mMask;
+
+    /**
+     * Sequence number of the next slot the producer will fill.
+     */
+    private final Sequence mTail = new Sequence(0);
+
+    /**
+     * Sequence number of the next slot the consumer will empty.
+     */
+    private final Sequence mHead = new Sequence(0);
+
+    /**
+     * Decides how blocked operations wait.
+     */
+    private final WaitStrategy mWaitStrategy;
+
+    /**
+     * Constructor rounds capacity up to the next power of two and
+     * allocates the ring buffer.
+     */
+    public SPSCBlockingQueue(int capacity) {
+        this(capacity, WaitStrategy.spinThenPark());
+    }
+
+    /**
+     * Constructor rounds capacity up to the next power of two,
+     * allocates the ring buffer and makes blocked operations wait
+     * according to waitStrategy.
+     */
+    public SPSCBlockingQueue(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("capacity = " + capacity);
+        checkNotNull(waitStrategy);
+        mWaitStrategy = waitStrategy;
+
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+
+        mBuffer = new AtomicReferenceArray<E>(size);
+        mMask = size - 1;
+    }
+
+    /**
+     * Returns the number of elements the queue can hold, which is
+     * the requested capacity rounded up to a power of two.
+     */
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Returns the number of elements in this queue.
+     */
+    public int size() {
+        // The consumer may run ahead of the tail sequence it has
+        // read, so re-read the head until it's stable and then clamp
+        // the result to the legal range.
+        long after = mHead.get();
+        for (;;) {
+            long before = after;
+            long tail = mTail.get();
+            after = mHead.get();
+            if (before == after) {
+                long size = tail - after;
+                if (size < 0)
+                    return 0;
+                else if (size > capacity())
+                    return capacity();
+                else
+                    return (int) size;
+            }
+        }
+    }
+
+    /**
+     * Returns true if there are no elements in this queue.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the number of additional elements this queue can
+     * accept without blocking.
+     */
+    public int remainingCapacity() {
+        return capacity() - size();
+    }
+
+    /**
+     * Insert e at the tail of the queue if there's room, returning
+     * false if the queue is full.  Producer only.
+     */
+    public boolean offer(E e) {
+        checkNotNull(e);
+
+        long tail = mTail.get();
+        int index = (int) tail & mMask;
+        if (mBuffer.get(index) != null)
+            return false;
+
+        // Publish the element before advancing the tail, so the
+        // consumer can never see the slot as full before the
+        // element is visible.
+        mBuffer.lazySet(index, e);
+        mTail.setOrdered(tail + 1);
+        mWaitStrategy.signalAll();
+        return true;
+    }
+
+    /**
+     * Insert e at the tail of the queue, waiting up to timeout for
+     * space to become available.  Producer only.
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        checkNotNull(e);
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int attempt = 0; ; attempt++) {
+            long token = mWaitStrategy.prepare();
+            if (offer(e))
+                return true;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0)
+                return false;
+            mWaitStrategy.await(attempt, token, nanos);
+        }
+    }
+
+    /**
+     * Insert e at the tail of the queue, waiting as long as
+     * necessary for space to become available.  Producer only.
+     */
+    public void put(E e) throws InterruptedException {
+        checkNotNull(e);
+
+        for (int attempt = 0; ; attempt++) {
+            long token = mWaitStrategy.prepare();
+            if (offer(e))
+                return;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            mWaitStrategy.await(attempt, token, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Insert the elements of c at the tail of the queue, advancing
+     * the tail sequence just once for every run of elements that fit
+     * without waiting.  Producer only.
+     */
+    public int offerAll(Collection<? extends E> c, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long tail = mTail.get();
+        int count = 0;
+        try {
+            for (E e : c) {
+                checkNotNull(e);
+
+                int index = (int) tail & mMask;
+                if (mBuffer.get(index) != null) {
+                    // Make the elements inserted so far count towards
+                    // size() and wake the consumer before we wait.
+                    mTail.setOrdered(tail);
+                    mWaitStrategy.signalAll();
+
+                    for (int attempt = 0; ; attempt++) {
+                        long token = mWaitStrategy.prepare();
+                        if (mBuffer.get(index) == null)
+                            break;
+                        if (Thread.interrupted()) {
+                            if (count == 0)
+                                throw new InterruptedException();
+                            // Report the partial batch to the caller.
+                            Thread.currentThread().interrupt();
+                            return count;
+                        }
+                        long nanos = deadline - System.nanoTime();
+                        if (nanos <= 0)
+                            return count;
+                        mWaitStrategy.await(attempt, token, nanos);
+                    }
+                }
+
+                mBuffer.lazySet(index, e);
+                tail++;
+                count++;
+            }
+        } finally {
+            mTail.setOrdered(tail);
+            if (count > 0)
+                mWaitStrategy.signalAll();
+        }
+        return count;
+    }
+
+    /**
+     * Remove the element at the head of the queue, returning null if
+     * the queue is empty.  Consumer only.
+     */
+    public E poll() {
+        long head = mHead.get();
+        int index = (int) head & mMask;
+        E e = mBuffer.get(index);
+        if (e == null)
+            return null;
+
+        // Free the slot before advancing the head, which is the
+        // mirror image of what offer() does.
+        mBuffer.lazySet(index, null);
+        mHead.setOrdered(head + 1);
+        mWaitStrategy.signalAll();
+        return e;
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting up to
+     * timeout for one to become available.  Consumer only.
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int attempt = 0; ; attempt++) {
+            long token = mWaitStrategy.prepare();
+            E e = poll();
+            if (e != null)
+                return e;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0)
+                return null;
+            mWaitStrategy.await(attempt, token, nanos);
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting as long
+     * as necessary for one to become available.  Consumer only.
+     */
+    public E take() throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            long token = mWaitStrategy.prepare();
+            E e = poll();
+            if (e != null)
+                return e;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            mWaitStrategy.await(attempt, token, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Returns the element at the head of the queue without removing
+     * it, or null if the queue is empty.  Consumer only.
+     */
+    public E peek() {
+        return mBuffer.get((int) mHead.get() & mMask);
+    }
+
+    /**
+     * Removes all available elements and adds them to c.  Consumer
+     * only.
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes at most maxElements available elements and adds them
+     * to c, advancing the head sequence just once for the whole
+     * batch.  Consumer only.
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        checkNotNull(c);
+        if (c == this)
+            throw new IllegalArgumentException();
+
+        long head = mHead.get();
+        int count = 0;
+        try {
+            while (count < maxElements) {
+                int index = (int) (head + count) & mMask;
+                E e = mBuffer.get(index);
+                if (e == null)
+                    break;
+                c.add(e);
+                mBuffer.lazySet(index, null);
+                count++;
+            }
+        } finally {
+            // Account for the elements we moved even if c.add()
+            // threw an exception.
+            if (count > 0) {
+                mHead.setOrdered(head + count);
+                mWaitStrategy.signalAll();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the elements that were
+     * in the queue when it was called.  The iterator doesn't
+     * support remove(), since elements can't be removed from the
+     * middle of a single-producer/single-consumer ring, so neither
+     * does remove(Object).
+     */
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<E>();
+        long tail = mTail.get();
+        for (long seq = mHead.get(); seq < tail; seq++) {
+            E e = mBuffer.get((int) seq & mMask);
+            if (e != null)
+                snapshot.add(e);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /**
+     * Throw NullPointerException if o is null, since null is used to
+     * mark empty slots.
+     */
+    private static void checkNotNull(Object o) {
+        if (o == null)
+            throw new NullPointerException();
+    }
+}
@@ -0,0 +1,123 @@
+package edu.vuum.mooca;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.vuum.mooca.SynchronizedQueue.QueueAdapter;
+import edu.vuum.mooca.SynchronizedQueue.SynchronizedQueueResult;
+
+/**
+ * @class ScalingDriver
+ *
+ * @brief Runs a queue with several producer and consumer Threads
+ *        at once, to measure how its throughput scales with the
+ *        number of Threads.
+ */
+public class ScalingDriver {
+    /**
+     * This method runs the test on the queue parameter with the given
+     * numbers of producer and consumer Threads.  Since there may be
+     * more than one of each, it creates, starts, interrupts and joins
+     * the Threads itself rather than via the hook methods, and each
+     * Thread counts its elements in a stripe of its own rather than
+     * in mProducerCounter or mConsumerCounter.
+     */
+    public static ScalingResult testQueue(QueueAdapter<Integer> queue,
+                                          String testName,
+                                          int producers,
+                                          int consumers) {
+        Diagnostics.startTest(testName, SynchronizedQueue.diagnosticsEnabled);
+        StripedCounter produced = new StripedCounter(producers);
+        StripedCounter consumed = new StripedCounter(consumers);
+
+        // The first failure reported by any of the Threads.
+        AtomicReference<SynchronizedQueueResult> failure =
+            new AtomicReference<SynchronizedQueueResult>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < producers; i++)
+            threads.add(new Thread(QueueRunnables.newCountingProducer(queue,
+                                                                      produced,
+                                                                      i,
+                                                                      failure,
+                                                                      null)));
+
+        for (int i = 0; i < consumers; i++)
+            threads.add(new Thread(QueueRunnables.newCountingConsumer(queue,
+                                                                      consumed,
+                                                                      i,
+                                                                      failure,
+                                                                      null)));
+
+        try {
+            long startTime = System.nanoTime();
+            for (Thread thread : threads)
+                thread.start();
+
+            Thread.sleep(SynchronizedQueue.mScalingMillis);
+
+            for (Thread thread : threads)
+                thread.interrupt();
+            for (Thread thread : threads)
+                thread.join(TimeUnit.SECONDS.toMillis(SynchronizedQueue.TIMEOUT_SECONDS));
+            long elapsed = System.nanoTime() - startTime;
+            Diagnostics.flush();
+
+            // Only sum the stripes once every Thread has finished
+            // updating them.
+            SynchronizedQueueResult result;
+            if (failure.get() != null)
+                result = failure.get();
+            else {
+                result = SynchronizedQueueResult.RAN_PROPERLY;
+                for (Thread thread : threads)
+                    if (thread.isAlive())
+                        result = SynchronizedQueueResult.THREADS_TIMEDOUT;
+            }
+
+            long producedCount = produced.sum();
+            long consumedCount = consumed.sum();
+            if (result == SynchronizedQueueResult.RAN_PROPERLY) {
+                if (producedCount == 0 || consumedCount == 0)
+                    result = SynchronizedQueueResult.THREADS_NEVER_RAN;
+                else if (queue.size() != producedCount - consumedCount)
+                    result = SynchronizedQueueResult.INCORRECT_COUNT;
+            }
+
+            return new ScalingResult(result,
+                                     producers,
+                                     consumers,
+                                     producedCount,
+                                     consumedCount,
+                                     elapsed);
+        } catch (Exception e) {
+            return new ScalingResult(SynchronizedQueueResult.TESTING_LOGIC_THREW_EXCEPTION,
+                                     producers,
+                                     consumers,
+                                     0,
+                                     0,
+                                     1);
+        }
+    }
+
+    /**
+     * This method measures a throughput-versus-threads scaling curve
+     * by running testQueue() once for each entry in threadCounts with
+     * that many producers and that many consumers, each time on a
+     * new queue of capacity elements made by factory.
+     */
+    public static List<ScalingResult> testScaling(QueueFactory factory,
+                                                  String testName,
+                                                  int capacity,
+                                                  int[] threadCounts) {
+        List<ScalingResult> curve = new ArrayList<ScalingResult>();
+        for (int threads : threadCounts) {
+            QueueAdapter<Integer> queue =
+                new QueueAdapter<Integer>(factory.<Integer>newQueue(capacity));
+            curve.add(testQueue(queue, testName, threads, threads));
+        }
+        return curve;
+    }
+}
@@ -0,0 +1,69 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.vuum.mooca.SynchronizedQueue.SynchronizedQueueResult;
+
+/**
+ * @class ScalingResult
+ *
+ * @brief The outcome of running a queue with a given number of
+ *        producer and consumer Threads, i.e., one point on a
+ *        throughput-versus-threads scaling curve.
+ */
+public class ScalingResult {
+    /**
+     * Whether the run worked.
+     */
+    public final SynchronizedQueueResult mResult;
+
+    /**
+     * The number of producer and consumer Threads.
+     */
+    public final int mProducers;
+    public final int mConsumers;
+
+    /**
+     * The number of elements put and taken.
+     */
+    public final long mProduced;
+    public final long mConsumed;
+
+    /**
+     * How long the Threads ran for.
+     */
+    public final long mElapsedNanos;
+
+    ScalingResult(SynchronizedQueueResult result,
+                  int producers,
+                  int consumers,
+                  long produced,
+                  long consumed,
+                  long elapsedNanos) {
+        mResult = result;
+        mProducers = producers;
+        mConsumers = consumers;
+        mProduced = produced;
+        mConsumed = consumed;
+        mElapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returns the number of elements taken per second.
+     */
+    public double opsPerSecond() {
+        return mConsumed * (double) TimeUnit.SECONDS.toNanos(1)
+            / mElapsedNanos;
+    }
+
+    /**
+     * Returns a one line summary of the run.
+     */
+    public String toString() {
+        return String.format("%3d producers %3d consumers %14.0f ops/sec %s",
+                             mProducers,
+                             mConsumers,
+                             opsPerSecond(),
+                             mResult.getString());
+    }
+}
@@ -0,0 +1,99 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Padding that precedes the value of a Sequence.  Java lays out the
+ * fields of a superclass before those of its subclasses, so these
+ * longs keep mValue away from whatever object precedes it in memory.
+ */
+abstract class SequenceLeftPadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+/**
+ * The value of a Sequence, sandwiched between the left and right
+ * padding.
+ */
+abstract class SequenceValue extends SequenceLeftPadding {
+    protected volatile long mValue;
+}
+
+/**
+ * @class Sequence
+ *
+ * @brief A long counter that sits on a cache line of its own.  The
+ *        lock-free queues use one Sequence for the producer side and
+ *        one for the consumer side, so the two Threads can update
+ *        their sequences without invalidating each other's cache
+ *        lines (i.e., without "false sharing").
+ */
+class Sequence extends SequenceValue {
+    /**
+     * Padding that follows mValue.
+     */
+    protected long p9, p10, p11, p12, p13, p14, p15;
+
+    /**
+     * Updater used to perform atomic operations on mValue.
+     */
+    private static final AtomicLongFieldUpdater<SequenceValue> sUpdater =
+        AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "mValue");
+
+    /**
+     * Create a Sequence with the given initial value.
+     */
+    Sequence(long initialValue) {
+        mValue = initialValue;
+    }
+
+    /**
+     * Returns the current value with volatile (acquire) semantics.
+     */
+    long get() {
+        return mValue;
+    }
+
+    /**
+     * Sets the value with volatile semantics.
+     */
+    void set(long value) {
+        mValue = value;
+    }
+
+    /**
+     * Sets the value with release semantics, which is cheaper than a
+     * volatile write since it doesn't need a full StoreLoad fence.
+     */
+    void setOrdered(long value) {
+        sUpdater.lazySet(this, value);
+    }
+
+    /**
+     * Atomically sets the value to update if it's currently expect.
+     */
+    boolean compareAndSet(long expect, long update) {
+        return sUpdater.compareAndSet(this, expect, update);
+    }
+
+    /**
+     * Atomically adds delta to the value and returns the result.
+     */
+    long addAndGet(long delta) {
+        return sUpdater.addAndGet(this, delta);
+    }
+
+    /**
+     * Atomically increments the value and returns the result.
+     */
+    long incrementAndGet() {
+        return sUpdater.incrementAndGet(this);
+    }
+
+    /**
+     * Returns the value as a String.
+     */
+    public String toString() {
+        return Long.toString(mValue);
+    }
+}
@@ -0,0 +1,494 @@
+package edu.vuum.mooca;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @class SharedMemorySPSCBlockingQueue
+ *
+ * @brief Defines a bounded implementation of the BlockingQueue
+ *        interface that lives in a memory-mapped file, so its
+ *        producer and consumer can be in different processes.  Each
+ *        process opens its own SharedMemorySPSCBlockingQueue on the
+ *        same file (and can wrap it in a QueueAdapter as usual); one
+ *        of them then only inserts elements and the other only
+ *        removes them.
+ *
+ *        The file starts with a header that holds the layout of the
+ *        queue, followed by the tail and head sequences (each on a
+ *        cache line of its own, like a Sequence) and a ring of
+ *        fixed-size slots.  Each slot holds an int length followed
+ *        by the bytes a JournalBlockingQueue.Codec wrote, so no
+ *        objects are shared between the processes.
+ *
+ *        The producer fills a slot and then advances the tail with a
+ *        release store, and the consumer reads the tail with an
+ *        acquire load before it reads the slot (and the mirror image
+ *        for the head).  Since this has to compile for Java 6, which
+ *        can't make acquire or release accesses to mapped memory,
+ *        both are implemented with a full fence.  Each side keeps
+ *        its own sequence in a field and caches the last value of
+ *        the other side's sequence it read, so it only touches the
+ *        other side's cache line (and usually only fences once per
+ *        operation) when the cached value says the queue is full (or
+ *        empty).
+ *
+ *        A process can't wake up a Thread in another process, so
+ *        blocked operations poll according to a WaitStrategy that
+ *        doesn't need signalAll() (i.e., any but blocking()), which
+ *        by default spins and then parks with exponential backoff.
+ *
+ *        Methods that insert elements must only be called by the
+ *        producer Thread and methods that remove or inspect elements
+ *        (poll(), take(), peek(), drainTo(), clear()) must only be
+ *        called by the consumer Thread.  size(), isEmpty(),
+ *        remainingCapacity() and iterator() may be called by any
+ *        Thread.
+ */
+public class SharedMemorySPSCBlockingQueue<E> extends AbstractQueue<E>
+                                              implements BlockingQueue<E> {
+    /**
+     * Identifies a file that holds a SharedMemorySPSCBlockingQueue.
+     */
+    static final long MAGIC = 0x5350534353484d51L;
+
+    /**
+     * Size of a cache line, assuming (like Sequence) that it's 64
+     * bytes.  The sequences are kept two lines apart so adjacent
+     * line prefetching doesn't make them share a line either.
+     */
+    static final int CACHE_LINE_SIZE = 64;
+
+    /**
+     * Offsets of the header fields, the sequences and the slots in
+     * the file.
+     */
+    static final int MAGIC_OFFSET = 0;
+    static final int CAPACITY_OFFSET = 8;
+    static final int SLOT_SIZE_OFFSET = 12;
+    static final int TAIL_OFFSET = 2 * CACHE_LINE_SIZE;
+    static final int HEAD_OFFSET = 4 * CACHE_LINE_SIZE;
+    static final int SLOTS_OFFSET = 6 * CACHE_LINE_SIZE;
+
+    /**
+     * Size of the length that precedes each element in its slot.
+     */
+    static final int LENGTH_SIZE = 4;
+
+    /**
+     * The mapped file.
+     */
+    private final MappedByteBuffer mMemory;
+
+    /**
+     * Converts elements to and from bytes.
+     */
+    private final JournalBlockingQueue.Codec<E> mCodec;
+
+    /**
+     * Maps a sequence number to a slot.
+     */
+    private final int mMask;
+
+    /**
+     * Size of each slot in bytes.
+     */
+    private final int mSlotSize;
+
+    /**
+     * Decides how blocked operations wait.
+     */
+    private final WaitStrategy mWaitStrategy;
+
+    /**
+     * The tail sequence, which only the producer writes, and the last
+     * head sequence it read.  Producer only.
+     */
+    private long mTail;
+    private long mCachedHead;
+
+    /**
+     * The head sequence, which only the consumer writes, and the last
+     * tail sequence it read.  Consumer only.
+     */
+    private long mHead;
+    private long mCachedTail;
+
+    /**
+     * Open the queue in file, creating it if necessary, with room for
+     * capacity elements (rounded up to a power of two) that each
+     * encode to at most maxElementSize bytes.  Both processes must
+     * pass the same capacity and maxElementSize.
+     */
+    public SharedMemorySPSCBlockingQueue(File file,
+                                         JournalBlockingQueue.Codec<E> codec,
+                                         int capacity,
+                                         int maxElementSize) throws IOException {
+        this(file, codec, capacity, maxElementSize, WaitStrategy.spinThenPark());
+    }
+
+    /**
+     * Open the queue in file, creating it if necessary, and make
+     * blocked operations wait according to waitStrategy.
+     *
+     * @throws IllegalArgumentException if waitStrategy is blocking(),
+     *         which would never be woken by the other process
+     */
+    public SharedMemorySPSCBlockingQueue(File file,
+                                         JournalBlockingQueue.Codec<E> codec,
+                                         int capacity,
+                                         int maxElementSize,
+                                         WaitStrategy waitStrategy) throws IOException {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("capacity = " + capacity);
+        if (maxElementSize < 0)
+            throw new IllegalArgumentException("maxElementSize = " + maxElementSize);
+        if (waitStrategy instanceof WaitStrategy.Blocking)
+            throw new IllegalArgumentException(waitStrategy
+                                               + " can't be used between processes");
+        mCodec = codec;
+        mWaitStrategy = waitStrategy;
+
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        mMask = size - 1;
+        // Keep every slot 8-byte aligned.
+        mSlotSize = (LENGTH_SIZE + maxElementSize + 7) & ~7;
+
+        long fileSize = SLOTS_OFFSET + (long) size * mSlotSize;
+        if (fileSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("queue doesn't fit in a single mapping");
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < fileSize)
+                raf.setLength(fileSize);
+            mMemory = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                           0,
+                                           fileSize);
+        } finally {
+            raf.close();
+        }
+        // Both processes are on the same machine, so its native byte
+        // order is the cheapest one to use.
+        mMemory.order(ByteOrder.nativeOrder());
+
+        if (getLongAcquire(MAGIC_OFFSET) == 0) {
+            // A new file, so write the layout and then publish it.
+            mMemory.putInt(CAPACITY_OFFSET, size);
+            mMemory.putInt(SLOT_SIZE_OFFSET, mSlotSize);
+            putLongRelease(MAGIC_OFFSET, MAGIC);
+        } else if (getLongAcquire(MAGIC_OFFSET) != MAGIC
+                   || mMemory.getInt(CAPACITY_OFFSET) != size
+                   || mMemory.getInt(SLOT_SIZE_OFFSET) != mSlotSize)
+            throw new IOException(file + " holds a different queue");
+
+        mTail = mCachedTail = getLongAcquire(TAIL_OFFSET);
+        mHead = mCachedHead = getLongAcquire(HEAD_OFFSET);
+    }
+
+    /**
+     * Returns the number of elements the queue can hold, which is
+     * the requested capacity rounded up to a power of two.
+     */
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Returns the number of elements in this queue.
+     */
+    public int size() {
+        long after = getLongAcquire(HEAD_OFFSET);
+        for (;;) {
+            long before = after;
+            long tail = getLongAcquire(TAIL_OFFSET);
+            after = getLongAcquire(HEAD_OFFSET);
+            if (before == after) {
+                long size = tail - after;
+                if (size < 0)
+                    return 0;
+                else if (size > capacity())
+                    return capacity();
+                else
+                    return (int) size;
+            }
+        }
+    }
+
+    /**
+     * Returns true if there are no elements in this queue.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the number of additional elements this queue can
+     * accept without blocking.
+     */
+    public int remainingCapacity() {
+        return capacity() - size();
+    }
+
+    /**
+     * Insert e at the tail of the queue if there's room, returning
+     * false if the queue is full.  Producer only.
+     *
+     * @throws IllegalArgumentException if e encodes to more than
+     *         maxElementSize bytes
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        int length = mCodec.size(e);
+        if (length > mSlotSize - LENGTH_SIZE)
+            throw new IllegalArgumentException("element of " + length
+                                               + " bytes doesn't fit in a slot");
+
+        long tail = mTail;
+        if (tail - mCachedHead > mMask) {
+            mCachedHead = getLongAcquire(HEAD_OFFSET);
+            if (tail - mCachedHead > mMask)
+                return false;
+        }
+
+        int offset = slotOffset(tail);
+        mMemory.putInt(offset, length);
+        ByteBuffer slot = mMemory.duplicate().order(mMemory.order());
+        slot.position(offset + LENGTH_SIZE);
+        mCodec.write(e, slot);
+        // Publish the slot before advancing the tail, so the
+        // consumer can never see the tail before the slot's contents.
+        putLongRelease(TAIL_OFFSET, mTail = tail + 1);
+        return true;
+    }
+
+    /**
+     * Insert e at the tail of the queue, waiting up to timeout for
+     * space to become available.  Producer only.
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int attempt = 0; ; attempt++) {
+            if (offer(e))
+                return true;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0)
+                return false;
+            mWaitStrategy.await(attempt, 0, nanos);
+        }
+    }
+
+    /**
+     * Insert e at the tail of the queue, waiting as long as
+     * necessary for space to become available.  Producer only.
+     */
+    public void put(E e) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            if (offer(e))
+                return;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            mWaitStrategy.await(attempt, 0, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue, returning null if
+     * the queue is empty.  Consumer only.
+     */
+    public E poll() {
+        long head = mHead;
+        if (head == mCachedTail) {
+            mCachedTail = getLongAcquire(TAIL_OFFSET);
+            if (head == mCachedTail)
+                return null;
+        }
+
+        E e = read(head);
+        // Finish reading the slot before advancing the head, which is
+        // the mirror image of what offer() does.
+        putLongRelease(HEAD_OFFSET, mHead = head + 1);
+        return e;
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting up to
+     * timeout for one to become available.  Consumer only.
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int attempt = 0; ; attempt++) {
+            E e = poll();
+            if (e != null)
+                return e;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0)
+                return null;
+            mWaitStrategy.await(attempt, 0, nanos);
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue, waiting as long
+     * as necessary for one to become available.  Consumer only.
+     */
+    public E take() throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            E e = poll();
+            if (e != null)
+                return e;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            mWaitStrategy.await(attempt, 0, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Returns the element at the head of the queue without removing
+     * it, or null if the queue is empty.  Consumer only.
+     */
+    public E peek() {
+        if (mHead == mCachedTail) {
+            mCachedTail = getLongAcquire(TAIL_OFFSET);
+            if (mHead == mCachedTail)
+                return null;
+        }
+        return read(mHead);
+    }
+
+    /**
+     * Removes all available elements and adds them to c.  Consumer
+     * only.
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes at most maxElements available elements and adds them
+     * to c, advancing the head sequence just once for the whole
+     * batch.  Consumer only.
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+
+        long head = mHead;
+        long tail = mCachedTail = getLongAcquire(TAIL_OFFSET);
+        int count = 0;
+        try {
+            while (count < maxElements && head + count != tail) {
+                c.add(read(head + count));
+                count++;
+            }
+        } finally {
+            // Account for the elements we moved even if c.add()
+            // threw an exception.
+            if (count > 0)
+                putLongRelease(HEAD_OFFSET, mHead = head + count);
+        }
+        return count;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the elements that were
+     * in the queue when it was called.  The iterator doesn't
+     * support remove(), since elements can't be removed from the
+     * middle of a single-producer/single-consumer ring, so neither
+     * does remove(Object).
+     */
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<E>();
+        long tail = getLongAcquire(TAIL_OFFSET);
+        for (long seq = getLongAcquire(HEAD_OFFSET); seq < tail; seq++) {
+            E e = read(seq);
+            // The consumer may have reused the slot while we were
+            // reading it, in which case the rest are gone too.
+            if (getLongAcquire(HEAD_OFFSET) > seq)
+                break;
+            snapshot.add(e);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /**
+     * Returns the offset of the slot for sequence number seq.
+     */
+    private int slotOffset(long seq) {
+        return SLOTS_OFFSET + ((int) seq & mMask) * mSlotSize;
+    }
+
+    /**
+     * Decode the element in the slot for sequence number seq.
+     */
+    private E read(long seq) {
+        int offset = slotOffset(seq);
+        int length = mMemory.getInt(offset);
+        ByteBuffer slot = mMemory.duplicate().order(mMemory.order());
+        slot.position(offset + LENGTH_SIZE);
+        slot.limit(offset + LENGTH_SIZE + length);
+        return mCodec.read(slot, length);
+    }
+
+    /**
+     * Read the long at offset with (at least) acquire semantics,
+     * i.e., no later read or write can be reordered before it.
+     */
+    private long getLongAcquire(int offset) {
+        long value = mMemory.getLong(offset);
+        fence();
+        return value;
+    }
+
+    /**
+     * Write value to the long at offset with (at least) release
+     * semantics, i.e., no earlier read or write can be reordered
+     * after it.
+     */
+    private void putLongRelease(int offset, long value) {
+        fence();
+        mMemory.putLong(offset, value);
+    }
+
+    /**
+     * Used by fence().
+     */
+    private static volatile int sFence;
+
+    /**
+     * A full memory fence.  Java 6 has no way to make an acquire or
+     * release access to mapped memory (VarHandles only arrived in
+     * Java 9), and the Java memory model doesn't cover memory shared
+     * with another process, but JVMs implement a volatile write
+     * followed by a volatile read with a full hardware fence that
+     * orders every access around it.
+     */
+    private static void fence() {
+        sFence = 0;
+        if (sFence != 0)
+            throw new AssertionError();
+    }
+}
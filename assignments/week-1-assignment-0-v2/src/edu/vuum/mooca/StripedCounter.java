@@ -0,0 +1,113 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @class StripedCounter
+ *
+ * @brief A counter that's split into one cell per stripe, in the
+ *        spirit of java.util.concurrent.atomic.LongAdder.  Each
+ *        stripe is meant to be owned by a single Thread, so updating
+ *        it needs neither a lock nor a CAS, and each cell sits on
+ *        cache lines of its own, so Threads updating different
+ *        stripes never contend.  The total is only computed when
+ *        sum() is called, typically once the Threads have finished.
+ */
+public class StripedCounter {
+    /**
+     * Number of longs from the start of one cell to the start of the
+     * next.  Spacing cells 128 bytes apart keeps them off the same
+     * cache line even on CPUs that prefetch pairs of lines.
+     */
+    private static final int PAD = 16;
+
+    /**
+     * The cells, one every PAD longs starting at index PAD, which
+     * keeps the first cell away from the array's header.
+     */
+    private final AtomicLongArray mCells;
+
+    /**
+     * The number of stripes.
+     */
+    private final int mStripes;
+
+    /**
+     * Constructor creates a counter with the given number of stripes,
+     * all of which start at zero.
+     */
+    public StripedCounter(int stripes) {
+        if (stripes < 1)
+            throw new IllegalArgumentException("stripes = " + stripes);
+        mStripes = stripes;
+        mCells = new AtomicLongArray((stripes + 2) * PAD);
+    }
+
+    /**
+     * Returns the number of stripes.
+     */
+    public int stripes() {
+        return mStripes;
+    }
+
+    /**
+     * Add n to stripe's cell.  Only one Thread at a time may update
+     * a given stripe.
+     */
+    public void add(int stripe, long n) {
+        int index = indexOf(stripe);
+        // We're the only writer, so a plain read followed by an
+        // ordered write is enough to publish the new value.
+        mCells.lazySet(index, mCells.get(index) + n);
+    }
+
+    /**
+     * Add one to stripe's cell.  Only one Thread at a time may update
+     * a given stripe.
+     */
+    public void increment(int stripe) {
+        add(stripe, 1);
+    }
+
+    /**
+     * Returns the value of stripe's cell.
+     */
+    public long get(int stripe) {
+        return mCells.get(indexOf(stripe));
+    }
+
+    /**
+     * Returns the sum of all the cells.  The result is only exact if
+     * no stripe is being updated concurrently.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int stripe = 0; stripe < mStripes; stripe++)
+            sum += get(stripe);
+        return sum;
+    }
+
+    /**
+     * Reset every cell to zero.
+     */
+    public void reset() {
+        for (int stripe = 0; stripe < mStripes; stripe++)
+            mCells.set(indexOf(stripe), 0);
+    }
+
+    /**
+     * Returns the sum of all the cells as a String.
+     */
+    public String toString() {
+        return Long.toString(sum());
+    }
+
+    /**
+     * Returns the index in mCells of stripe's cell.
+     */
+    private int indexOf(int stripe) {
+        if (stripe < 0 || stripe >= mStripes)
+            throw new IndexOutOfBoundsException("stripe = " + stripe);
+        return (stripe + 1) * PAD;
+    }
+}
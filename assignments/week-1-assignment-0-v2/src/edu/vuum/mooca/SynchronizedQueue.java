@@ -1,4 +1,5 @@
 package edu.vuum.mooca;
+import java.util.Collection;
 import java.util.concurrent.*;
 
 /**
@@ -50,7 +51,8 @@ public abstract class SynchronizedQueue {
         THREADS_NEVER_CREATED("Threads never created."),
         TESTING_LOGIC_THREW_EXCEPTION("Testing Logic threw Exception."),
         THREADS_TIMEDOUT("Threads Timed-out, Interupt likely not called."), 
-        INCORRECT_COUNT("The size of mQueue is not consistent with the number of puts() and takes() performed.");
+        INCORRECT_COUNT("The size of mQueue is not consistent with the number of puts() and takes() performed."),
+        OUT_OF_ORDER("Elements with the same key were processed out of order.");
 
         /**
          * String value for the enumerated type.
@@ -77,7 +79,11 @@ public abstract class SynchronizedQueue {
      * 
      * @brief Applies a variant of the GoF Adapter pattern that
      *        enables us to test several implementations of the
-     *        BlockingQueue interface.
+     *        BlockingQueue interface.  By default it waits inside the
+     *        queue's own timed offer() and poll(), but it can instead
+     *        be given a WaitStrategy, in which case it only calls the
+     *        queue's non-blocking offer() and poll() and waits
+     *        between attempts according to the strategy.
      */
     public static class QueueAdapter<E> {
         /**
@@ -85,6 +91,12 @@ public abstract class SynchronizedQueue {
          */
         private BlockingQueue<E> mQueue;
 
+        /**
+         * Decides how put() and take() wait, or null if they wait
+         * inside the queue.
+         */
+        private WaitStrategy mWaitStrategy;
+
         /**
          * Store the queue that we're adapting.
          */
@@ -92,6 +104,16 @@ public abstract class SynchronizedQueue {
             mQueue = queue;
         }
 
+        /**
+         * Store the queue that we're adapting and the WaitStrategy
+         * used to wait for it.
+         */
+        public QueueAdapter(BlockingQueue<E> queue,
+                            WaitStrategy waitStrategy) {
+            mQueue = queue;
+            mWaitStrategy = waitStrategy;
+        }
+
         /**
          * Returns the number of elements in this queue.
          */
@@ -99,6 +121,14 @@ public abstract class SynchronizedQueue {
             return mQueue.size();
         }
 
+        /**
+         * Returns the number of additional elements this queue can
+         * accept without blocking.
+         */
+        int remainingCapacity() {
+            return mQueue.remainingCapacity();
+        }
+
         /**
          * Insert msg at the tail of the queue.
          * 
@@ -106,9 +136,7 @@ public abstract class SynchronizedQueue {
          */
         public void put(E msg) throws InterruptedException, TimeoutException {
             // Keep track of how many times we're called.
-            boolean timeoutValue = mQueue.offer(msg,
-                                                TIMEOUT_SECONDS,
-                                                TimeUnit.SECONDS);
+            boolean timeoutValue = offer(msg);
             if (timeoutValue == false)
                 throw new TimeoutException();
             
@@ -123,8 +151,7 @@ public abstract class SynchronizedQueue {
          */
         public E take() throws InterruptedException, TimeoutException {
             // Keep track of how many times we're called.
-            E rValue = mQueue.poll(TIMEOUT_SECONDS,
-                                   TimeUnit.SECONDS);
+            E rValue = poll();
 
             if (rValue == null)
                 throw new TimeoutException();
@@ -133,6 +160,242 @@ public abstract class SynchronizedQueue {
             
             return rValue;            
         }
+
+        /**
+         * Insert msg at the tail of the queue, counting it in
+         * stripe of counter rather than in mProducerCounter, which
+         * lets several producer Threads count without contending.
+         *
+         * @throws TimeoutException and InterruptedException
+         */
+        public void put(E msg, StripedCounter counter, int stripe)
+            throws InterruptedException, TimeoutException {
+            if (!offer(msg))
+                throw new TimeoutException();
+
+            counter.increment(stripe);
+        }
+
+        /**
+         * Remove msg from the head of the queue, counting it in
+         * stripe of counter rather than in mConsumerCounter, which
+         * lets several consumer Threads count without contending.
+         *
+         * @throws TimeoutException and InterruptedException
+         */
+        public E take(StripedCounter counter, int stripe)
+            throws InterruptedException, TimeoutException {
+            E rValue = poll();
+            if (rValue == null)
+                throw new TimeoutException();
+
+            counter.increment(stripe);
+
+            return rValue;
+        }
+
+        /**
+         * Insert msg at the tail of the queue if there's room without
+         * waiting, which lets subclasses tell an immediate put()
+         * apart from one that stalled.
+         *
+         * @return false if the queue is full
+         */
+        protected boolean tryPut(E msg) {
+            if (!mQueue.offer(msg))
+                return false;
+            if (mWaitStrategy != null)
+                mWaitStrategy.signalAll();
+
+            mProducerCounter++;
+            return true;
+        }
+
+        /**
+         * Remove msg from the head of the queue if there is one
+         * without waiting, which lets subclasses tell an immediate
+         * take() apart from one that stalled.
+         *
+         * @return null if the queue is empty
+         */
+        protected E tryTake() {
+            E rValue = mQueue.poll();
+            if (rValue == null)
+                return null;
+            if (mWaitStrategy != null)
+                mWaitStrategy.signalAll();
+
+            mConsumerCounter++;
+            return rValue;
+        }
+
+        /**
+         * Insert all the msgs at the tail of the queue.  If the queue
+         * is a BatchBlockingQueue the whole batch is inserted with a
+         * single offerAll(), otherwise each msg is offered in turn.
+         * Given a WaitStrategy, offerAll() only inserts what fits
+         * without waiting, and the rest are offered in turn so that
+         * the strategy decides how to wait for space.
+         *
+         * @throws TimeoutException and InterruptedException
+         */
+        public void putAll(Collection<? extends E> msgs)
+            throws InterruptedException, TimeoutException {
+            int count = 0;
+            try {
+                boolean batched = mQueue instanceof BatchBlockingQueue;
+                if (batched)
+                    count = ((BatchBlockingQueue<E>) mQueue).offerAll(msgs,
+                                                                     mWaitStrategy == null ? TIMEOUT_SECONDS : 0,
+                                                                     TimeUnit.SECONDS);
+                if (!batched || mWaitStrategy != null) {
+                    // Skip the msgs that offerAll() inserted.
+                    int skip = count;
+                    for (E msg : msgs) {
+                        if (skip > 0) {
+                            skip--;
+                            continue;
+                        }
+                        if (!offer(msg))
+                            break;
+                        count++;
+                    }
+                }
+            } finally {
+                // Keep track of how many msgs we inserted, even if
+                // we were interrupted part way through the batch.
+                mProducerCounter += count;
+                if (count > 0 && mWaitStrategy != null)
+                    mWaitStrategy.signalAll();
+            }
+
+            if (count < msgs.size()) {
+                // A partial batch means we either timed out or were
+                // interrupted while waiting for space.
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                throw new TimeoutException();
+            }
+        }
+
+        /**
+         * Remove at most maxElements msgs from the head of the queue
+         * and add them to msgs, waiting for at least one to become
+         * available.  When the queue isn't empty this costs a single
+         * drainTo() call on the queue.  If maxElements isn't positive
+         * it removes nothing and returns straight away.
+         *
+         * @return the number of msgs removed
+         * @throws TimeoutException and InterruptedException
+         */
+        public int drainTo(Collection<? super E> msgs, int maxElements)
+            throws InterruptedException, TimeoutException {
+            if (maxElements <= 0)
+                return 0;
+
+            int count = mQueue.drainTo(msgs, maxElements);
+            if (count == 0) {
+                // The queue is empty, so block until something
+                // arrives and then grab whatever came with it.
+                E rValue = poll();
+                if (rValue == null)
+                    throw new TimeoutException();
+
+                msgs.add(rValue);
+                count = 1 + mQueue.drainTo(msgs, maxElements - 1);
+            } else if (mWaitStrategy != null)
+                mWaitStrategy.signalAll();
+
+            // Keep track of how many msgs we removed.
+            mConsumerCounter += count;
+
+            return count;
+        }
+
+        /**
+         * Insert msg at the tail of the queue, waiting up to
+         * TIMEOUT_SECONDS for space to become available.
+         *
+         * @return false if the timeout elapsed
+         */
+        private boolean offer(E msg) throws InterruptedException {
+            if (mWaitStrategy == null)
+                return mQueue.offer(msg,
+                                    TIMEOUT_SECONDS,
+                                    TimeUnit.SECONDS);
+
+            long deadline = System.nanoTime()
+                + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            for (int attempt = 0; ; attempt++) {
+                long token = mWaitStrategy.prepare();
+                if (mQueue.offer(msg)) {
+                    mWaitStrategy.signalAll();
+                    return true;
+                }
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                long nanos = deadline - System.nanoTime();
+                if (nanos <= 0)
+                    return false;
+                mWaitStrategy.await(attempt, token, nanos);
+            }
+        }
+
+        /**
+         * Remove a msg from the head of the queue, waiting up to
+         * timeout for one to become available.  Unlike take() it
+         * doesn't treat the timeout as a failure, so a caller that
+         * must also notice something else, such as QueuePublisher
+         * noticing close(), can wait in short slices.
+         *
+         * @return null if the timeout elapsed
+         * @throws InterruptedException
+         */
+        public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+            E rValue = poll(unit.toNanos(timeout));
+            if (rValue != null)
+                mConsumerCounter++;
+
+            return rValue;
+        }
+
+        /**
+         * Remove a msg from the head of the queue, waiting up to
+         * TIMEOUT_SECONDS for one to become available.
+         *
+         * @return null if the timeout elapsed
+         */
+        private E poll() throws InterruptedException {
+            return poll(TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS));
+        }
+
+        /**
+         * Remove a msg from the head of the queue, waiting up to
+         * timeoutNanos for one to become available.
+         *
+         * @return null if the timeout elapsed
+         */
+        private E poll(long timeoutNanos) throws InterruptedException {
+            if (mWaitStrategy == null)
+                return mQueue.poll(timeoutNanos,
+                                   TimeUnit.NANOSECONDS);
+
+            long deadline = System.nanoTime() + timeoutNanos;
+            for (int attempt = 0; ; attempt++) {
+                long token = mWaitStrategy.prepare();
+                E msg = mQueue.poll();
+                if (msg != null) {
+                    mWaitStrategy.signalAll();
+                    return msg;
+                }
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                long nanos = deadline - System.nanoTime();
+                if (nanos <= 0)
+                    return null;
+                mWaitStrategy.await(attempt, token, nanos);
+            }
+        }
     }
 
     /**
@@ -141,6 +404,12 @@ public abstract class SynchronizedQueue {
      */
     private static QueueAdapter<Integer> mQueue = null;
 
+    /**
+     * Adapter object used to test IntBlockingQueue, which is used
+     * instead of mQueue by testQueue(IntQueueAdapter, String).
+     */
+    private static IntQueueAdapter mIntQueue = null;
+
     /**
      * This runnable loops for mMaxIterations and calls put() on
      * mQueue to insert the iteration number into the queue.
@@ -154,36 +423,36 @@ public abstract class SynchronizedQueue {
                             throw new InterruptedException();
                     } catch (InterruptedException e) {
                     	if (diagnosticsEnabled) 
-                            System.out.println("Thread " 
-                                               + Thread.currentThread().getId()
-                                               + " in test "
-                                               + mTestName 
-                                               + " properly interrupted by "
-                                               + e.toString() + " in producerRunnable");
+                            mConsole.println("Thread " 
+                                             + Thread.currentThread().getId()
+                                             + " in test "
+                                             + mTestName 
+                                             + " properly interrupted by "
+                                             + e.toString() + " in producerRunnable");
                         // This isn't an error - it just means that
                         // we've been interrupted by the main Thread.
                         return;
                     } catch (TimeoutException e) {
                     	if (diagnosticsEnabled) 
-                            System.out.println("Thread "
-                                               + Thread.currentThread().getId()
-                                               + " in test "
-                                               + mTestName 
-                                               + " Exception " 
-                                               + e.toString()
-                                               + " occurred in producerRunnable");
+                            mConsole.println("Thread "
+                                             + Thread.currentThread().getId()
+                                             + " in test "
+                                             + mTestName 
+                                             + " Exception " 
+                                             + e.toString()
+                                             + " occurred in producerRunnable");
                         // Indicate a timeout.
                         mProducerCounter = TIMEOUT_OCCURRED;
                         return;
                     } catch (Exception e) {
                     	if (diagnosticsEnabled) 
-                            System.out.println("Thread "
-                                               + Thread.currentThread().getId()
-                                               + " in test "
-                                               + mTestName 
-                                               + " Exception " 
-                                               + e.toString()
-                                               + " occurred in producerRunnable");
+                            mConsole.println("Thread "
+                                             + Thread.currentThread().getId()
+                                             + " in test "
+                                             + mTestName 
+                                             + " Exception " 
+                                             + e.toString()
+                                             + " occurred in producerRunnable");
                         // Indicate a failure.
                         mProducerCounter = FAILURE_OCCURRED;
                         return;
@@ -205,39 +474,39 @@ public abstract class SynchronizedQueue {
                         Integer result = (Integer) mQueue.take();
 
                         if (diagnosticsEnabled)
-                        	System.out.println("iteration = " + result);
+                        	mConsole.println("iteration = " + result);
                     } catch (InterruptedException e) {
                     	if (diagnosticsEnabled) 
-                    		System.out.println("Thread " 
-                                           + Thread.currentThread().getId()
-                                           + " in test "
-                                           + mTestName 
-                                           + " properly interrupted by "
-                                           + e.toString() + " in consumerRunnable");
+                    		mConsole.println("Thread " 
+                                         + Thread.currentThread().getId()
+                                         + " in test "
+                                         + mTestName 
+                                         + " properly interrupted by "
+                                         + e.toString() + " in consumerRunnable");
                         // This isn't an error - it just means that
                         // we've been interrupted by the main Thread.
                         return;
                     } catch (TimeoutException e) {
                     	if (diagnosticsEnabled) 
-                    		System.out.println("Thread "
-                                           + Thread.currentThread().getId()
-                                           + " in test "
-                                           + mTestName 
-                                           + " Exception " 
-                                           + e.toString()
-                                           + " occurred in consumerRunnable");
+                    		mConsole.println("Thread "
+                                         + Thread.currentThread().getId()
+                                         + " in test "
+                                         + mTestName 
+                                         + " Exception " 
+                                         + e.toString()
+                                         + " occurred in consumerRunnable");
                         // Indicate a timeout.
                         mConsumerCounter = TIMEOUT_OCCURRED;
                         return;
                     } catch (Exception e) {
                     	if (diagnosticsEnabled)  
-                    		System.out.println("Thread "
-                                           + Thread.currentThread().getId()
-                                           + " in test "
-                                           + mTestName 
-                                           + " Exception " 
-                                           + e.toString()
-                                           + " occurred in consumerRunnable");
+                    		mConsole.println("Thread "
+                                         + Thread.currentThread().getId()
+                                         + " in test "
+                                         + mTestName 
+                                         + " Exception " 
+                                         + e.toString()
+                                         + " occurred in consumerRunnable");
                         // Indicate a failure.
                         mConsumerCounter = FAILURE_OCCURRED;
                         return;
@@ -245,6 +514,17 @@ public abstract class SynchronizedQueue {
             }
 	};
 
+    /**
+     * Returns the number of elements in whichever queue is being
+     * tested.
+     */
+    private static int queueSize() {
+        if (mIntQueue != null)
+            return mIntQueue.size();
+        else
+            return mQueue.size();
+    }
+
     protected SynchronizedQueueResult checkResults() {
         int numberOfRemainingItemsInQueue = 
             mProducerCounter - mConsumerCounter;
@@ -269,7 +549,7 @@ public abstract class SynchronizedQueue {
         else if (mConsumerCounter == TIMEOUT_OCCURRED
                  || mProducerCounter == TIMEOUT_OCCURRED) 
             return SynchronizedQueueResult.THREADS_TIMEDOUT;
-        else if (mQueue.size() != numberOfRemainingItemsInQueue)
+        else if (queueSize() != numberOfRemainingItemsInQueue)
             return SynchronizedQueueResult.INCORRECT_COUNT;
         else
             return SynchronizedQueueResult.RAN_PROPERLY;
@@ -300,6 +580,15 @@ public abstract class SynchronizedQueue {
      */
     public static boolean diagnosticsEnabled;
 
+    /**
+     * Prints the diagnostic output in a background Thread, so that
+     * enabling diagnostics doesn't make the producer and consumer
+     * Threads contend for System.out.  SynchronizedQueueImpl.java
+     * should print any diagnostics of its own here too.
+     */
+    protected static final AsyncConsoleSink mConsole =
+        Diagnostics.sConsole;
+
     /**
      * These are hook methods that play the role of "primitive
      * operations" in the Template Method pattern.  They must be
@@ -318,9 +607,86 @@ public abstract class SynchronizedQueue {
      */
     public SynchronizedQueueResult testQueue(QueueAdapter<Integer> queue,
                                              String testName) {
+        mQueue = queue;
+        mIntQueue = null;
+        return runTest(testName);
+    }
+
+    /**
+     * This template method runs the test on the queue parameter just
+     * like testQueue() and returns what queue measured during the
+     * run alongside the SynchronizedQueueResult.
+     */
+    public QueueRunReport testInstrumentedQueue(InstrumentedQueueAdapter<Integer> queue,
+                                                String testName) {
+        queue.reset();
+        long startTime = System.nanoTime();
+        SynchronizedQueueResult result = testQueue(queue, testName);
+        return new QueueRunReport(result,
+                                  System.nanoTime() - startTime,
+                                  queue);
+    }
+
+    /**
+     * This template method runs the test on the IntBlockingQueue
+     * adapted by the queue parameter.  It runs the Runnables made by
+     * QueueRunnables.newIntProducer() and newIntConsumer() in place of
+     * mProducerRunnable and mConsumerRunnable, so createThreads()
+     * needn't change.
+     */
+    public SynchronizedQueueResult testQueue(IntQueueAdapter queue,
+                                             String testName) {
+        mQueue = null;
+        mIntQueue = queue;
+        return runTest(testName,
+                       QueueRunnables.newIntProducer(queue),
+                       QueueRunnables.newIntConsumer(queue));
+    }
+
+    /**
+     * This template method runs the test on the queue parameter,
+     * putting and taking up to batchSize elements at a time via the
+     * Runnables made by QueueRunnables.newBatchProducer() and
+     * newBatchConsumer().
+     */
+    public SynchronizedQueueResult testQueue(QueueAdapter<Integer> queue,
+                                             String testName,
+                                             int batchSize) {
+        mQueue = queue;
+        mIntQueue = null;
+        return runTest(testName,
+                       QueueRunnables.newBatchProducer(queue, batchSize),
+                       QueueRunnables.newBatchConsumer(queue, batchSize));
+    }
+
+    /**
+     * Runs the test with producerRunnable and consumerRunnable in
+     * place of mProducerRunnable and mConsumerRunnable, so that
+     * createThreads() needn't know which variant is being tested.
+     */
+    private SynchronizedQueueResult runTest(String testName,
+                                            Runnable producerRunnable,
+                                            Runnable consumerRunnable) {
+        Runnable savedProducerRunnable = mProducerRunnable;
+        Runnable savedConsumerRunnable = mConsumerRunnable;
+        try {
+            mProducerRunnable = producerRunnable;
+            mConsumerRunnable = consumerRunnable;
+            return runTest(testName);
+        } finally {
+            mProducerRunnable = savedProducerRunnable;
+            mConsumerRunnable = savedConsumerRunnable;
+        }
+    }
+
+    /**
+     * Runs the test on whichever queue has been stored by
+     * testQueue().
+     */
+    private SynchronizedQueueResult runTest(String testName) {
         try {
-            mQueue = queue;
             mTestName = testName;
+            Diagnostics.startTest(testName, diagnosticsEnabled);
             mProducerCounter = 0;
             mConsumerCounter = 0;
             
@@ -330,19 +696,25 @@ public abstract class SynchronizedQueue {
             startThreads();
 
             // Give the Threads a chance to run before interrupting
-            // them. (disabling console output makes them run really
-            // fast).
-            if (diagnosticsEnabled)
-            	Thread.sleep(1000);
-            else
-            	Thread.sleep(100);
+            // them.  (Diagnostics are printed asynchronously by
+            // mConsole, so enabling them no longer slows the Threads
+            // down enough to need a longer sleep).
+            Thread.sleep(100);
             
             interruptThreads();
             joinThreads();
+            Diagnostics.flush();
 
             return checkResults();
         } catch (Exception e) {
             return SynchronizedQueueResult.TESTING_LOGIC_THREW_EXCEPTION;
         }
     }
+
+    /**
+     * Number of milliseconds each run of ScalingDriver,
+     * PartitionedDriver, PairsDriver and PipelineDriver lets its
+     * Threads run before interrupting them.
+     */
+    static int mScalingMillis = 250;
 }
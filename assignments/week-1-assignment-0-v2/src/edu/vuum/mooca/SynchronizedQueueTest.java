@@ -1,7 +1,22 @@
 package edu.vuum.mooca;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -19,6 +34,11 @@ public class SynchronizedQueueTest {
      * Indicates how big the queue should be.
      */
     int mQueueSize;
+
+    /**
+     * Number of elements the batched tests put and take at once.
+     */
+    static final int BATCH_SIZE = 64;
 	
     /**
      * Run the test for the queue parameter.
@@ -60,6 +80,323 @@ public class SynchronizedQueueTest {
             return null;
     }
 	
+    /**
+     * Run the test for the queue parameter and fail if any error
+     * occurred.
+     */
+    static void assertRunsProperly(String qName,
+                                   QueueAdapter<Integer> queue) {
+        SynchronizedQueueResult errors =
+            runQueueTest(qName, queue);
+
+        String errorMessage = "";
+
+        if (errors != null)
+            errorMessage = errors.getString();
+
+        assertNull("Error occurred: " +
+                   errorMessage,
+                   errors);
+    }
+
+    /**
+     * How long the contract tests expect a timed offer() or poll()
+     * to wait before giving up.
+     */
+    static final long SHORT_TIMEOUT_MILLIS = 20;
+
+    /**
+     * Checks that queue, which must be empty, keeps the BlockingQueue
+     * contract when it's driven directly: see assertWrapsAround(),
+     * assertTimedOfferAndPoll(), assertDrainToLimits() and
+     * assertInterruptible().  Then it runs the queue with the given
+     * numbers of producer and consumer Threads via
+     * ScalingDriver.testQueue() and fails if that didn't run
+     * properly.
+     */
+    static void assertKeepsContract(String qName,
+                                    BlockingQueue<Integer> queue,
+                                    int producers,
+                                    int consumers) throws InterruptedException {
+        assertWrapsAround(queue);
+        assertTimedOfferAndPoll(queue);
+        assertDrainToLimits(queue);
+        assertInterruptible(queue);
+
+        ScalingResult result =
+            ScalingDriver.testQueue(new QueueAdapter<Integer>(queue),
+                                    qName,
+                                    producers,
+                                    consumers);
+        assertEquals("Error occurred in " + qName + ": " +
+                     result.mResult.getString(),
+                     SynchronizedQueueResult.RAN_PROPERLY,
+                     result.mResult);
+    }
+
+    /**
+     * Returns how many elements queue, which must be empty, can hold,
+     * or -1 if it's unbounded.
+     */
+    static int boundOf(BlockingQueue<Integer> queue) {
+        int capacity = queue.remainingCapacity();
+        return capacity == Integer.MAX_VALUE ? -1 : capacity;
+    }
+
+    /**
+     * Checks that queue, which must be empty, refuses elements once
+     * it's full and keeps taking them in the order they were put as
+     * its indices wrap around several times, first with one Thread
+     * putting and taking and then with a producer Thread of its own
+     * handing elements to this Thread.
+     */
+    static void assertWrapsAround(final BlockingQueue<Integer> queue)
+        throws InterruptedException {
+        int bound = boundOf(queue);
+        int capacity = bound == -1 ? 16 : bound;
+
+        // Keep the queue full while a few times its capacity passes
+        // through it.
+        int put = 0;
+        int taken = 0;
+        while (put < capacity)
+            assertTrue(queue.offer(put++));
+        if (bound != -1) {
+            assertFalse(queue.offer(-1));
+            assertEquals(0, queue.remainingCapacity());
+        }
+        for (int i = 0; i < 3 * capacity + 1; i++) {
+            assertEquals(Integer.valueOf(taken++), queue.poll());
+            assertTrue(queue.offer(put++));
+        }
+        assertEquals(capacity, queue.size());
+        while (taken < put)
+            assertEquals(Integer.valueOf(taken++), queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+
+        final int count = Math.max(100 * capacity, 10000);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread producer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < count; i++)
+                            if (!queue.offer(i,
+                                             SynchronizedQueue.TIMEOUT_SECONDS,
+                                             TimeUnit.SECONDS)) {
+                                failure.set("offer(" + i + ") timed out");
+                                return;
+                            }
+                    } catch (InterruptedException e) {
+                        failure.set(e.toString());
+                    }
+                }
+            });
+        producer.start();
+        try {
+            for (int i = 0; i < count; i++)
+                assertEquals(Integer.valueOf(i),
+                             queue.poll(SynchronizedQueue.TIMEOUT_SECONDS,
+                                        TimeUnit.SECONDS));
+        } finally {
+            producer.interrupt();
+            producer.join();
+        }
+        assertNull(failure.get());
+        assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * Checks that a timed poll() on queue, which must be empty, waits
+     * out its timeout and then returns null, but returns as soon as
+     * another Thread offers an element.  If queue is bounded it also
+     * checks that a timed offer() on a full queue waits out its
+     * timeout and returns false, but succeeds as soon as another
+     * Thread makes room.
+     */
+    static void assertTimedOfferAndPoll(final BlockingQueue<Integer> queue)
+        throws InterruptedException {
+        long startTime = System.nanoTime();
+        assertNull(queue.poll(SHORT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue("poll() returned before its timeout",
+                   System.nanoTime() - startTime
+                   >= TimeUnit.MILLISECONDS.toNanos(SHORT_TIMEOUT_MILLIS));
+
+        Thread producer = startAfterShortTimeout(new Runnable() {
+                public void run() {
+                    queue.offer(42);
+                }
+            });
+        assertEquals(Integer.valueOf(42),
+                     queue.poll(SynchronizedQueue.TIMEOUT_SECONDS,
+                                TimeUnit.SECONDS));
+        producer.join();
+
+        int bound = boundOf(queue);
+        if (bound == -1)
+            return;
+
+        for (int i = 0; i < bound; i++)
+            assertTrue(queue.offer(i));
+        startTime = System.nanoTime();
+        assertFalse(queue.offer(-1, SHORT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue("offer() returned before its timeout",
+                   System.nanoTime() - startTime
+                   >= TimeUnit.MILLISECONDS.toNanos(SHORT_TIMEOUT_MILLIS));
+
+        Thread consumer = startAfterShortTimeout(new Runnable() {
+                public void run() {
+                    queue.poll();
+                }
+            });
+        assertTrue(queue.offer(bound,
+                               SynchronizedQueue.TIMEOUT_SECONDS,
+                               TimeUnit.SECONDS));
+        consumer.join();
+        assertEquals(bound, queue.size());
+        queue.clear();
+        assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * Starts a Thread that runs runnable once SHORT_TIMEOUT_MILLIS
+     * have passed, by which time the calling Thread should be
+     * waiting for it.
+     */
+    static Thread startAfterShortTimeout(final Runnable runnable) {
+        Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(SHORT_TIMEOUT_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    runnable.run();
+                }
+            });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Checks that drainTo() on queue, which must be empty, removes no
+     * elements when maxElements isn't positive, removes at most
+     * maxElements in order otherwise, and rejects a null or the queue
+     * itself as the destination.
+     */
+    static void assertDrainToLimits(BlockingQueue<Integer> queue) {
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(i));
+            expected.add(i);
+        }
+
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(0, queue.drainTo(drained, 0));
+        assertEquals(0, queue.drainTo(drained, -1));
+        assertEquals(10, queue.size());
+        assertEquals(3, queue.drainTo(drained, 3));
+        assertEquals(expected.subList(0, 3), drained);
+        assertEquals(7, queue.size());
+        assertEquals(7, queue.drainTo(drained, 100));
+        assertEquals(expected, drained);
+        assertEquals(0, queue.drainTo(drained, 5));
+        assertTrue(queue.isEmpty());
+
+        try {
+            queue.drainTo(null, 1);
+            fail("drainTo(null) didn't throw NullPointerException");
+        } catch (NullPointerException e) {
+            // Expected.
+        }
+        try {
+            queue.drainTo(queue, 1);
+            fail("drainTo(itself) didn't throw IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * A call that blocks until it's interrupted.
+     */
+    interface BlockingCall {
+        void call() throws Exception;
+    }
+
+    /**
+     * Checks that take() and a timed poll() blocked on queue, which
+     * must be empty, throw InterruptedException when they're
+     * interrupted, as do put() and a timed offer() blocked on it
+     * once it's full if it's bounded.
+     */
+    static void assertInterruptible(final BlockingQueue<Integer> queue)
+        throws InterruptedException {
+        assertInterruptedOutOf("take()", new BlockingCall() {
+                public void call() throws Exception {
+                    queue.take();
+                }
+            });
+        assertInterruptedOutOf("poll()", new BlockingCall() {
+                public void call() throws Exception {
+                    queue.poll(SynchronizedQueue.TIMEOUT_SECONDS,
+                               TimeUnit.SECONDS);
+                }
+            });
+
+        int bound = boundOf(queue);
+        if (bound == -1)
+            return;
+
+        for (int i = 0; i < bound; i++)
+            assertTrue(queue.offer(i));
+        assertInterruptedOutOf("put()", new BlockingCall() {
+                public void call() throws Exception {
+                    queue.put(-1);
+                }
+            });
+        assertInterruptedOutOf("offer()", new BlockingCall() {
+                public void call() throws Exception {
+                    queue.offer(-1,
+                                SynchronizedQueue.TIMEOUT_SECONDS,
+                                TimeUnit.SECONDS);
+                }
+            });
+        assertEquals(bound, queue.size());
+        queue.clear();
+    }
+
+    /**
+     * Runs blockingCall in a Thread of its own, interrupts it once
+     * it's had time to block and checks that it promptly throws
+     * InterruptedException.
+     */
+    static void assertInterruptedOutOf(String what,
+                                       final BlockingCall blockingCall)
+        throws InterruptedException {
+        final AtomicReference<Throwable> outcome =
+            new AtomicReference<Throwable>();
+        Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        blockingCall.call();
+                    } catch (Throwable t) {
+                        outcome.set(t);
+                    }
+                }
+            });
+        thread.start();
+        Thread.sleep(SHORT_TIMEOUT_MILLIS);
+        assertTrue(what + " returned without blocking", thread.isAlive());
+
+        thread.interrupt();
+        thread.join(TimeUnit.SECONDS.toMillis(SynchronizedQueue.TIMEOUT_SECONDS));
+        assertFalse(what + " ignored being interrupted", thread.isAlive());
+        assertTrue(what + " ended with " + outcome.get()
+                   + " rather than InterruptedException",
+                   outcome.get() instanceof InterruptedException);
+    }
+
     /**
      * Runs before each test. Sets mQueueSize.
      * @throws Exception
@@ -96,6 +433,1170 @@ public class SynchronizedQueueTest {
                    errors);
     }
 	
+    /**
+     * Tests the CircularBlockingQueue, both one element at a time
+     * and in batches, which should pass without error, and checks
+     * that elements removed from the middle of its circular buffer
+     * leave the rest in order.
+     */
+    @Test
+    public void circularBlockingQueueTest() {
+        assertRunsProperly("CircularBlockingQueue",
+                           new QueueAdapter<Integer>(new CircularBlockingQueue<Integer>(mQueueSize)));
+
+        SynchronizedQueueResult result =
+            new SynchronizedQueueImpl().testQueue(new QueueAdapter<Integer>(new CircularBlockingQueue<Integer>(mQueueSize)),
+                                                  "Batched CircularBlockingQueue",
+                                                  BATCH_SIZE);
+        assertEquals("Error occurred: " +
+                     result.getString(),
+                     SynchronizedQueueResult.RAN_PROPERLY,
+                     result);
+
+        // Wrap the buffer around before removing from the middle.
+        CircularBlockingQueue<Integer> queue = new CircularBlockingQueue<Integer>(4);
+        for (int i = 0; i < 3; i++)
+            queue.offer(i);
+        queue.poll();
+        queue.poll();
+        for (int i = 3; i < 6; i++)
+            assertTrue(queue.offer(i));
+        assertFalse(queue.offer(6));
+        assertTrue(queue.remove(Integer.valueOf(4)));
+        assertArrayEquals(new Object[] { 2, 3, 5 }, queue.toArray());
+        assertEquals(1, queue.remainingCapacity());
+    }
+
+    /**
+     * Checks that the CircularBlockingQueue keeps the BlockingQueue
+     * contract, with several producer and consumer Threads of its
+     * own, both with an unfair and with a fair lock.
+     */
+    @Test
+    public void circularBlockingQueueContractTest() throws InterruptedException {
+        for (boolean fair : new boolean[] { false, true })
+            assertKeepsContract("CircularBlockingQueue fair=" + fair,
+                                new CircularBlockingQueue<Integer>(16, fair),
+                                4,
+                                4);
+    }
+
+    /**
+     * Tests the SPSCBlockingQueue, which should pass without error
+     * since the test uses one producer and one consumer Thread.
+     */
+    @Test
+    public void spscBlockingQueueTest() {
+        // Make the appropriate QueueAdapter for the
+        // SPSCBlockingQueue.
+        QueueAdapter<Integer> queueAdapter =
+            new QueueAdapter<Integer>(new SPSCBlockingQueue<Integer>(mQueueSize));
+
+        // Run a test on the SPSCBlockingQueue.
+        assertRunsProperly("SPSCBlockingQueue", queueAdapter);
+    }
+
+    /**
+     * Checks that the SPSCBlockingQueue keeps the BlockingQueue
+     * contract, with one producer and one consumer Thread of its own,
+     * both spinning then parking and blocking while it waits.
+     */
+    @Test
+    public void spscBlockingQueueContractTest() throws InterruptedException {
+        assertKeepsContract("SPSCBlockingQueue",
+                            new SPSCBlockingQueue<Integer>(16),
+                            1,
+                            1);
+        assertKeepsContract("SPSCBlockingQueue blocking",
+                            new SPSCBlockingQueue<Integer>(16,
+                                                           WaitStrategy.blocking()),
+                            1,
+                            1);
+    }
+
+    /**
+     * Tests the MPMCBlockingQueue, which should pass without error.
+     */
+    @Test
+    public void mpmcBlockingQueueTest() {
+        // Make the appropriate QueueAdapter for the
+        // MPMCBlockingQueue.
+        QueueAdapter<Integer> queueAdapter =
+            new QueueAdapter<Integer>(new MPMCBlockingQueue<Integer>(mQueueSize));
+
+        // Run a test on the MPMCBlockingQueue.
+        assertRunsProperly("MPMCBlockingQueue", queueAdapter);
+    }
+
+    /**
+     * Checks that the MPMCBlockingQueue keeps the BlockingQueue
+     * contract, with several producer and consumer Threads of its
+     * own, both spinning then parking and blocking while it waits.
+     */
+    @Test
+    public void mpmcBlockingQueueContractTest() throws InterruptedException {
+        assertKeepsContract("MPMCBlockingQueue",
+                            new MPMCBlockingQueue<Integer>(16),
+                            4,
+                            4);
+        assertKeepsContract("MPMCBlockingQueue blocking",
+                            new MPMCBlockingQueue<Integer>(16,
+                                                           WaitStrategy.blocking()),
+                            4,
+                            4);
+    }
+
+    /**
+     * Tests the LinkedMPMCBlockingQueue, both one element at a time
+     * and in batches, which should pass without error.
+     */
+    @Test
+    public void linkedMPMCBlockingQueueTest() {
+        assertRunsProperly("LinkedMPMCBlockingQueue",
+                           new QueueAdapter<Integer>(new LinkedMPMCBlockingQueue<Integer>()));
+
+        SynchronizedQueueResult result =
+            new SynchronizedQueueImpl().testQueue(new QueueAdapter<Integer>(new LinkedMPMCBlockingQueue<Integer>()),
+                                                  "Batched LinkedMPMCBlockingQueue",
+                                                  BATCH_SIZE);
+        assertEquals("Error occurred: " +
+                     result.getString(),
+                     SynchronizedQueueResult.RAN_PROPERLY,
+                     result);
+    }
+
+    /**
+     * Checks that the LinkedMPMCBlockingQueue keeps the BlockingQueue
+     * contract, with several producer and consumer Threads of its
+     * own.  Since it's unbounded, only its takers ever wait.
+     */
+    @Test
+    public void linkedMPMCBlockingQueueContractTest() throws InterruptedException {
+        assertKeepsContract("LinkedMPMCBlockingQueue",
+                            new LinkedMPMCBlockingQueue<Integer>(),
+                            4,
+                            4);
+    }
+
+    /**
+     * Tests the PrioritySkipListBlockingQueue through a QueueAdapter,
+     * which should pass without error, and checks that it takes
+     * elements in priority order and that aging lets a waiting bulk
+     * element overtake a newer urgent one.
+     */
+    @Test
+    public void prioritySkipListBlockingQueueTest() throws InterruptedException {
+        PrioritySkipListBlockingQueue.Prioritizer<Integer> byValue =
+            new PrioritySkipListBlockingQueue.Prioritizer<Integer>() {
+                public int priorityOf(Integer e) {
+                    return e / 10;
+                }
+            };
+
+        assertRunsProperly("PrioritySkipListBlockingQueue",
+                           new QueueAdapter<Integer>(new PrioritySkipListBlockingQueue<Integer>(mQueueSize,
+                                                                                                byValue,
+                                                                                                4,
+                                                                                                TimeUnit.MILLISECONDS.toNanos(1))));
+
+        // Strict priority order, and FIFO within a priority.
+        PrioritySkipListBlockingQueue<Integer> queue =
+            new PrioritySkipListBlockingQueue<Integer>(5, byValue);
+        for (int e : new int[] { 21, 1, 11, 2, 22 })
+            assertTrue(queue.offer(e));
+        assertFalse(queue.offer(3));
+        for (int e : new int[] { 1, 2, 11, 21, 22 })
+            assertEquals(Integer.valueOf(e), queue.poll());
+        assertNull(queue.poll());
+
+        // A bulk element that has waited longer than the aging
+        // period goes ahead of an urgent one.
+        queue = new PrioritySkipListBlockingQueue<Integer>(5,
+                                                           byValue,
+                                                           1,
+                                                           TimeUnit.MILLISECONDS.toNanos(1));
+        queue.offer(10);
+        Thread.sleep(5);
+        queue.offer(0);
+        assertEquals(Integer.valueOf(10), queue.take());
+        assertEquals(Integer.valueOf(0), queue.take());
+    }
+
+    /**
+     * Checks that the PrioritySkipListBlockingQueue keeps the
+     * BlockingQueue contract when every element has the same
+     * priority, so that it must be FIFO, and that drainTo() takes the
+     * most urgent elements first.  It also runs a relaxed, aging
+     * queue with several producer and consumer Threads of its own.
+     */
+    @Test
+    public void prioritySkipListBlockingQueueContractTest() throws InterruptedException {
+        PrioritySkipListBlockingQueue.Prioritizer<Integer> samePriority =
+            new PrioritySkipListBlockingQueue.Prioritizer<Integer>() {
+                public int priorityOf(Integer e) {
+                    return 0;
+                }
+            };
+        assertKeepsContract("PrioritySkipListBlockingQueue",
+                            new PrioritySkipListBlockingQueue<Integer>(16,
+                                                                       samePriority),
+                            4,
+                            4);
+
+        PrioritySkipListBlockingQueue.Prioritizer<Integer> byValue =
+            new PrioritySkipListBlockingQueue.Prioritizer<Integer>() {
+                public int priorityOf(Integer e) {
+                    return e;
+                }
+            };
+        PrioritySkipListBlockingQueue<Integer> queue =
+            new PrioritySkipListBlockingQueue<Integer>(16, byValue);
+        for (int e : new int[] { 3, 1, 4, 0, 2 })
+            assertTrue(queue.offer(e));
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(0, queue.drainTo(drained, -1));
+        assertEquals(2, queue.drainTo(drained, 2));
+        assertEquals(3, queue.drainTo(drained, 100));
+        for (int i = 0; i < 5; i++)
+            assertEquals(Integer.valueOf(i), drained.get(i));
+
+        ScalingResult result =
+            ScalingDriver.testQueue(new QueueAdapter<Integer>(new PrioritySkipListBlockingQueue<Integer>(16,
+                                                                                                         byValue,
+                                                                                                         4,
+                                                                                                         TimeUnit.MILLISECONDS.toNanos(1))),
+                                    "Relaxed PrioritySkipListBlockingQueue",
+                                    4,
+                                    4);
+        assertEquals("Error occurred: " +
+                     result.mResult.getString(),
+                     SynchronizedQueueResult.RAN_PROPERLY,
+                     result.mResult);
+    }
+
+    /**
+     * Returns a new, empty directory for a JournalBlockingQueue.
+     */
+    static File newJournalDirectory() throws IOException {
+        File directory = File.createTempFile("journal", "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("can't create " + directory);
+        return directory;
+    }
+
+    /**
+     * Delete directory and the journal files in it.
+     */
+    static void deleteJournalDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    /**
+     * Tests the JournalBlockingQueue with segments small enough that
+     * the test rolls over several of them, which should pass without
+     * error.
+     */
+    @Test
+    public void journalBlockingQueueTest() throws IOException {
+        File directory = newJournalDirectory();
+        try {
+            JournalBlockingQueue<Integer> queue =
+                new JournalBlockingQueue<Integer>(directory,
+                                                  JournalBlockingQueue.INTEGER_CODEC,
+                                                  1024 * 1024,
+                                                  0);
+            assertRunsProperly("JournalBlockingQueue",
+                               new QueueAdapter<Integer>(queue));
+            queue.close();
+        } finally {
+            deleteJournalDirectory(directory);
+        }
+    }
+
+    /**
+     * Tests that a reopened JournalBlockingQueue holds exactly the
+     * elements that were put but not taken before it was closed, in
+     * order, even when they span several segments.
+     */
+    @Test
+    public void journalRecoveryTest() throws Exception {
+        File directory = newJournalDirectory();
+        try {
+            JournalBlockingQueue<Integer> queue =
+                new JournalBlockingQueue<Integer>(directory,
+                                                  JournalBlockingQueue.INTEGER_CODEC,
+                                                  4096,
+                                                  16);
+            for (int i = 0; i < 5000; i++)
+                queue.put(i);
+            for (int i = 0; i < 1234; i++)
+                assertEquals(Integer.valueOf(i), queue.take());
+            queue.close();
+
+            queue = new JournalBlockingQueue<Integer>(directory,
+                                                      JournalBlockingQueue.INTEGER_CODEC,
+                                                      4096,
+                                                      16);
+            assertEquals(5000 - 1234, queue.size());
+            queue.put(5000);
+            for (int i = 1234; i <= 5000; i++)
+                assertEquals(Integer.valueOf(i), queue.poll());
+            assertNull(queue.poll());
+            queue.close();
+        } finally {
+            deleteJournalDirectory(directory);
+        }
+    }
+
+    /**
+     * Tests that every operation on a closed JournalBlockingQueue
+     * throws IllegalStateException rather than touching the released
+     * mappings, and that close() wakes a Thread blocked in take().
+     */
+    @Test
+    public void journalUseAfterCloseTest() throws Exception {
+        File directory = newJournalDirectory();
+        try {
+            final JournalBlockingQueue<Integer> queue =
+                new JournalBlockingQueue<Integer>(directory,
+                                                  JournalBlockingQueue.INTEGER_CODEC,
+                                                  4096,
+                                                  0);
+            final AtomicReference<Throwable> thrown =
+                new AtomicReference<Throwable>();
+            Runnable takeOne = new Runnable() {
+                    public void run() {
+                        try {
+                            queue.take();
+                        } catch (Throwable t) {
+                            thrown.set(t);
+                        }
+                    }
+                };
+
+            // A put() wakes the taker as usual.
+            Thread taker = new Thread(takeOne);
+            taker.start();
+            while (taker.getState() != Thread.State.WAITING)
+                Thread.yield();
+            queue.put(1);
+            taker.join(TimeUnit.SECONDS.toMillis(SynchronizedQueue.TIMEOUT_SECONDS));
+            assertFalse(taker.isAlive());
+            assertNull(thrown.get());
+
+            // So does close(), which makes take() throw.
+            taker = new Thread(takeOne);
+            taker.start();
+            while (taker.getState() != Thread.State.WAITING)
+                Thread.yield();
+            queue.close();
+            taker.join(TimeUnit.SECONDS.toMillis(SynchronizedQueue.TIMEOUT_SECONDS));
+            assertFalse(taker.isAlive());
+            assertTrue(thrown.get() instanceof IllegalStateException);
+
+            List<Integer> drained = new ArrayList<Integer>();
+            try {
+                queue.offer(2);
+                fail("offer() after close()");
+            } catch (IllegalStateException e) {
+            }
+            try {
+                queue.poll();
+                fail("poll() after close()");
+            } catch (IllegalStateException e) {
+            }
+            try {
+                queue.poll(1, TimeUnit.MILLISECONDS);
+                fail("timed poll() after close()");
+            } catch (IllegalStateException e) {
+            }
+            try {
+                queue.take();
+                fail("take() after close()");
+            } catch (IllegalStateException e) {
+            }
+            try {
+                queue.peek();
+                fail("peek() after close()");
+            } catch (IllegalStateException e) {
+            }
+            try {
+                queue.drainTo(drained, 1);
+                fail("drainTo() after close()");
+            } catch (IllegalStateException e) {
+            }
+            try {
+                queue.iterator();
+                fail("iterator() after close()");
+            } catch (IllegalStateException e) {
+            }
+            assertTrue(drained.isEmpty());
+
+            // Closing again is harmless.
+            queue.close();
+        } finally {
+            deleteJournalDirectory(directory);
+        }
+    }
+
+    /**
+     * Tests the SharedMemorySPSCBlockingQueue, first with the
+     * producer and consumer Threads sharing one mapping of the file
+     * and then with each of them using a mapping of its own (as they
+     * would in different processes), which should pass without
+     * error.
+     */
+    @Test
+    public void sharedMemorySPSCBlockingQueueTest() throws Exception {
+        File file = File.createTempFile("queue", ".shm");
+        try {
+            assertRunsProperly("SharedMemorySPSCBlockingQueue",
+                               new QueueAdapter<Integer>(new SharedMemorySPSCBlockingQueue<Integer>(file,
+                                                                                                    JournalBlockingQueue.INTEGER_CODEC,
+                                                                                                    mQueueSize,
+                                                                                                    4)));
+
+            final SharedMemorySPSCBlockingQueue<Integer> producerSide =
+                new SharedMemorySPSCBlockingQueue<Integer>(file,
+                                                           JournalBlockingQueue.INTEGER_CODEC,
+                                                           mQueueSize,
+                                                           4);
+            SharedMemorySPSCBlockingQueue<Integer> consumerSide =
+                new SharedMemorySPSCBlockingQueue<Integer>(file,
+                                                           JournalBlockingQueue.INTEGER_CODEC,
+                                                           mQueueSize,
+                                                           4);
+            // Start from whatever the first run left behind.
+            consumerSide.clear();
+
+            Thread producer = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < SynchronizedQueue.mMaxIterations; i++)
+                                producerSide.put(i);
+                        } catch (InterruptedException e) {
+                            // Fall through and let the consumer time
+                            // out.
+                        }
+                    }
+                });
+            producer.start();
+            for (int i = 0; i < SynchronizedQueue.mMaxIterations; i++)
+                assertEquals(Integer.valueOf(i),
+                             consumerSide.poll(SynchronizedQueue.TIMEOUT_SECONDS,
+                                               TimeUnit.SECONDS));
+            producer.join();
+            assertTrue(producerSide.isEmpty());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Checks that the SharedMemorySPSCBlockingQueue keeps the
+     * BlockingQueue contract, with one producer and one consumer
+     * Thread of its own, both spinning then parking and spinning then
+     * yielding while it waits.
+     */
+    @Test
+    public void sharedMemorySPSCBlockingQueueContractTest() throws Exception {
+        for (WaitStrategy waitStrategy : new WaitStrategy[] {
+                WaitStrategy.spinThenPark(),
+                WaitStrategy.spinThenYield() }) {
+            File file = File.createTempFile("queue", ".shm");
+            try {
+                assertKeepsContract("SharedMemorySPSCBlockingQueue " + waitStrategy,
+                                    new SharedMemorySPSCBlockingQueue<Integer>(file,
+                                                                               JournalBlockingQueue.INTEGER_CODEC,
+                                                                               16,
+                                                                               4,
+                                                                               waitStrategy),
+                                    1,
+                                    1);
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Tests the IntBlockingQueue via the IntQueueAdapter, which should
+     * pass without error.
+     */
+    @Test
+    public void intBlockingQueueTest() {
+        // Make the appropriate IntQueueAdapter for the
+        // IntBlockingQueue.
+        IntQueueAdapter queueAdapter =
+            new IntQueueAdapter(new IntBlockingQueue(mQueueSize));
+
+        // Run a test on the IntBlockingQueue.
+        SynchronizedQueueResult result =
+            new SynchronizedQueueImpl().testQueue(queueAdapter,
+                                                  "IntBlockingQueue");
+
+        assertEquals("Error occurred: " +
+                     result.getString(),
+                     SynchronizedQueueResult.RAN_PROPERLY,
+                     result);
+    }
+
+    /**
+     * Checks that the IntBlockingQueue keeps the same contract as a
+     * BlockingQueue (with timed poll() throwing TimeoutException
+     * rather than returning null), and that several producer and
+     * consumer Threads of its own pass every element through it
+     * exactly once.
+     */
+    @Test
+    public void intBlockingQueueContractTest() throws Exception {
+        final IntBlockingQueue queue = new IntBlockingQueue(4);
+
+        // Wrap around with one Thread putting and taking.
+        int put = 0;
+        int taken = 0;
+        while (put < 4)
+            assertTrue(queue.offer(put++));
+        assertFalse(queue.offer(-1));
+        assertEquals(0, queue.remainingCapacity());
+        for (int i = 0; i < 13; i++) {
+            assertEquals(taken++, queue.take());
+            assertTrue(queue.offer(put++));
+        }
+        while (taken < put)
+            assertEquals(taken++, queue.take());
+        assertTrue(queue.isEmpty());
+
+        // Timed poll() on an empty queue.
+        long startTime = System.nanoTime();
+        try {
+            queue.poll(SHORT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            fail("poll() on an empty queue didn't time out");
+        } catch (TimeoutException e) {
+            assertTrue("poll() timed out early",
+                       System.nanoTime() - startTime
+                       >= TimeUnit.MILLISECONDS.toNanos(SHORT_TIMEOUT_MILLIS));
+        }
+        Thread producer = startAfterShortTimeout(new Runnable() {
+                public void run() {
+                    queue.offer(42);
+                }
+            });
+        assertEquals(42, queue.poll(SynchronizedQueue.TIMEOUT_SECONDS,
+                                    TimeUnit.SECONDS));
+        producer.join();
+
+        // Timed offer() on a full queue.
+        for (int i = 0; i < 4; i++)
+            assertTrue(queue.offer(i));
+        startTime = System.nanoTime();
+        assertFalse(queue.offer(-1, SHORT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue("offer() returned before its timeout",
+                   System.nanoTime() - startTime
+                   >= TimeUnit.MILLISECONDS.toNanos(SHORT_TIMEOUT_MILLIS));
+        Thread consumer = startAfterShortTimeout(new Runnable() {
+                public void run() {
+                    try {
+                        queue.take();
+                    } catch (InterruptedException e) {
+                        // The offer below will time out.
+                    }
+                }
+            });
+        assertTrue(queue.offer(4,
+                               SynchronizedQueue.TIMEOUT_SECONDS,
+                               TimeUnit.SECONDS));
+        consumer.join();
+
+        // Interrupt put() and a timed offer() on the full queue, and
+        // take() and a timed poll() on the empty one.
+        assertInterruptedOutOf("put()", new BlockingCall() {
+                public void call() throws Exception {
+                    queue.put(-1);
+                }
+            });
+        assertInterruptedOutOf("offer()", new BlockingCall() {
+                public void call() throws Exception {
+                    queue.offer(-1,
+                                SynchronizedQueue.TIMEOUT_SECONDS,
+                                TimeUnit.SECONDS);
+                }
+            });
+        queue.clear();
+        assertInterruptedOutOf("take()", new BlockingCall() {
+                public void call() throws Exception {
+                    queue.take();
+                }
+            });
+        assertInterruptedOutOf("poll()", new BlockingCall() {
+                public void call() throws Exception {
+                    queue.poll(SynchronizedQueue.TIMEOUT_SECONDS,
+                               TimeUnit.SECONDS);
+                }
+            });
+
+        // drainTo() stops at maxElements and at the end of dst, and
+        // removes nothing when maxElements isn't positive.
+        for (int i = 0; i < 4; i++)
+            assertTrue(queue.offer(i));
+        int[] drained = new int[3];
+        assertEquals(0, queue.drainTo(drained, 0, 0));
+        assertEquals(0, queue.drainTo(drained, 0, -1));
+        assertEquals(4, queue.size());
+        assertEquals(1, queue.drainTo(drained, 0, 1));
+        assertEquals(2, queue.drainTo(drained, 1, 100));
+        assertArrayEquals(new int[] { 0, 1, 2 }, drained);
+        assertEquals(1, queue.size());
+        try {
+            queue.drainTo(drained, 4, 1);
+            fail("drainTo() past the end of dst didn't throw");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected.
+        }
+        queue.clear();
+
+        // Several producers and consumers of its own, each of which
+        // sums what it passes, as ScalingDriver.testQueue() counts.
+        final int threads = 4;
+        final int perProducer = 10000;
+        final AtomicLong putSum = new AtomicLong();
+        final AtomicLong takenSum = new AtomicLong();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            for (int i = 1; i <= perProducer; i++) {
+                                queue.put(i);
+                                putSum.addAndGet(i);
+                            }
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }));
+            workers.add(new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < perProducer; i++)
+                                takenSum.addAndGet(queue.poll(SynchronizedQueue.TIMEOUT_SECONDS,
+                                                              TimeUnit.SECONDS));
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }));
+        }
+        for (Thread worker : workers)
+            worker.start();
+        for (Thread worker : workers)
+            worker.join(TimeUnit.SECONDS.toMillis(SynchronizedQueue.TIMEOUT_SECONDS));
+        for (Thread worker : workers)
+            assertFalse(worker.isAlive());
+        assertNull(failure.get());
+        assertEquals(putSum.get(), takenSum.get());
+        assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * Tests the batched putAll() and drainTo() operations on the
+     * ArrayBlockingQueue (which only supports batched removal) and
+     * the MPMCBlockingQueue (which supports both), which should pass
+     * without error.
+     */
+    @Test
+    public void batchedQueueTest() throws Exception {
+        QueueAdapter<Integer> queueAdapter =
+            new QueueAdapter<Integer>(new ArrayBlockingQueue<Integer>(mQueueSize));
+
+        // Asking for no elements mustn't wait for the empty queue.
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(0, queueAdapter.drainTo(drained, 0));
+        assertEquals(0, queueAdapter.drainTo(drained, -1));
+        assertTrue(drained.isEmpty());
+
+        SynchronizedQueueResult result =
+            new SynchronizedQueueImpl().testQueue(queueAdapter,
+                                                  "Batched ArrayBlockingQueue",
+                                                  BATCH_SIZE);
+        assertEquals("Error occurred: " +
+                     result.getString(),
+                     SynchronizedQueueResult.RAN_PROPERLY,
+                     result);
+
+        queueAdapter =
+            new QueueAdapter<Integer>(new MPMCBlockingQueue<Integer>(mQueueSize));
+
+        result =
+            new SynchronizedQueueImpl().testQueue(queueAdapter,
+                                                  "Batched MPMCBlockingQueue",
+                                                  BATCH_SIZE);
+        assertEquals("Error occurred: " +
+                     result.getString(),
+                     SynchronizedQueueResult.RAN_PROPERLY,
+                     result);
+    }
+
+    /**
+     * Tests every WaitStrategy, both when the QueueAdapter waits for
+     * an ArrayBlockingQueue and when the SPSCBlockingQueue and
+     * MPMCBlockingQueue wait themselves, which should pass without
+     * error.
+     */
+    @Test
+    public void waitStrategyTest() {
+        for (String name : new String[] { "busy-spin",
+                                          "spin-then-yield",
+                                          "spin-then-park",
+                                          "blocking" }) {
+            assertRunsProperly("ArrayBlockingQueue " + name,
+                               new QueueAdapter<Integer>(new ArrayBlockingQueue<Integer>(mQueueSize),
+                                                         WaitStrategy.forName(name)));
+            assertRunsProperly("SPSCBlockingQueue " + name,
+                               new QueueAdapter<Integer>(new SPSCBlockingQueue<Integer>(mQueueSize,
+                                                                                        WaitStrategy.forName(name))));
+            assertRunsProperly("MPMCBlockingQueue " + name,
+                               new QueueAdapter<Integer>(new MPMCBlockingQueue<Integer>(mQueueSize,
+                                                                                        WaitStrategy.forName(name))));
+
+            // putAll() waits via the strategy rather than in offerAll().
+            SynchronizedQueueResult result =
+                new SynchronizedQueueImpl().testQueue(new QueueAdapter<Integer>(new MPMCBlockingQueue<Integer>(mQueueSize),
+                                                                                 WaitStrategy.forName(name)),
+                                                      "Batched MPMCBlockingQueue " + name,
+                                                      BATCH_SIZE);
+            assertEquals("Error occurred: " +
+                         result.getString(),
+                         SynchronizedQueueResult.RAN_PROPERLY,
+                         result);
+        }
+    }
+
+    /**
+     * Checks that the blocking() WaitStrategy never misses a
+     * signalAll(), even though signalAll() skips the event count
+     * while no Thread is waiting: each round a waiter waits for a
+     * Sequence that another Thread publishes with a release-only
+     * setOrdered() (as the SPSCBlockingQueue and RingPipeline do)
+     * and then signals, and must see it well before the timeout.
+     */
+    @Test
+    public void blockingWaitStrategyTest() throws InterruptedException {
+        final WaitStrategy waitStrategy = WaitStrategy.blocking();
+        for (int round = 0; round < 1000; round++) {
+            final Sequence published = new Sequence(0);
+            final CountDownLatch done = new CountDownLatch(1);
+            Thread waiter = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            for (int attempt = 0; ; attempt++) {
+                                long token = waitStrategy.prepare();
+                                if (published.get() != 0)
+                                    break;
+                                waitStrategy.await(attempt,
+                                                   token,
+                                                   TimeUnit.SECONDS.toNanos(SynchronizedQueue.TIMEOUT_SECONDS));
+                            }
+                            done.countDown();
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                });
+            waiter.start();
+            if ((round & 1) == 0)
+                Thread.yield();
+            published.setOrdered(1);
+            waitStrategy.signalAll();
+
+            assertTrue("Waiter missed the signal in round " + round,
+                       done.await(1, TimeUnit.SECONDS));
+            waiter.join();
+        }
+    }
+
+    /**
+     * Tests the ArrayBlockingQueue, the MPMCBlockingQueue and the
+     * LinkedMPMCBlockingQueue with several producer and consumer
+     * Threads, which should pass without error at every point on
+     * the scaling curve.
+     */
+    @Test
+    public void scalingTest() {
+        QueueBenchmark.QueueType[] types = {
+            QueueBenchmark.QueueType.ARRAY_BLOCKING_QUEUE,
+            QueueBenchmark.QueueType.CIRCULAR_BLOCKING_QUEUE,
+            QueueBenchmark.QueueType.MPMC_BLOCKING_QUEUE,
+            QueueBenchmark.QueueType.LINKED_MPMC_BLOCKING_QUEUE,
+            QueueBenchmark.QueueType.PRIORITY_SKIP_LIST_BLOCKING_QUEUE
+        };
+
+        for (QueueBenchmark.QueueType type : types)
+            for (ScalingResult point
+                     : ScalingDriver.testScaling(type,
+                                                 type.toString(),
+                                                 mQueueSize,
+                                                 new int[] { 1, 2, 4 }))
+                assertEquals("Error occurred in " + type + ": " +
+                             point.mResult.getString(),
+                             SynchronizedQueueResult.RAN_PROPERLY,
+                             point.mResult);
+    }
+
+    /**
+     * Tests many producer/consumer pairs on platform Threads (and on
+     * virtual Threads if the JVM supports them), both with a
+     * MPMCBlockingQueue per pair and with pairs sharing queues, which
+     * should pass without error.
+     */
+    @Test
+    public void pairsTest() {
+        for (ThreadFactory threadFactory : new ThreadFactory[] {
+                ThreadFactories.platform(),
+                ThreadFactories.virtual() }) {
+            if (threadFactory == null)
+                continue;
+
+            for (int queues : new int[] { 64, 4 }) {
+                PairsResult result =
+                    PairsDriver.testPairs(QueueBenchmark.QueueType.MPMC_BLOCKING_QUEUE,
+                                          "Pairs MPMCBlockingQueue",
+                                          16,
+                                          64,
+                                          queues,
+                                          threadFactory);
+                assertEquals("Error occurred: " +
+                             result.mResult.getString(),
+                             SynchronizedQueueResult.RAN_PROPERLY,
+                             result.mResult);
+            }
+        }
+    }
+
+    /**
+     * Tests that when starting a Thread fails part way through
+     * testPairs(), as it does when the process runs out of native
+     * threads, every Thread that had already started is stopped
+     * rather than left waiting for the others.
+     */
+    @Test
+    public void pairsStartFailureTest() {
+        final List<Thread> made = new ArrayList<Thread>();
+        ThreadFactory failingFactory = new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    final boolean fail = made.size() == 10;
+                    Thread thread = new Thread(runnable) {
+                            public synchronized void start() {
+                                if (fail)
+                                    throw new OutOfMemoryError("unable to create native thread");
+                                super.start();
+                            }
+                        };
+                    made.add(thread);
+                    return thread;
+                }
+            };
+
+        PairsResult result =
+            PairsDriver.testPairs(QueueBenchmark.QueueType.MPMC_BLOCKING_QUEUE,
+                                  "Pairs start failure",
+                                  16,
+                                  16,
+                                  16,
+                                  failingFactory);
+        assertEquals(SynchronizedQueueResult.TESTING_LOGIC_THREW_EXCEPTION,
+                     result.mResult);
+        assertEquals(32, made.size());
+        for (Thread thread : made)
+            assertFalse("Thread " + thread.getName() + " was left running",
+                        thread.isAlive());
+    }
+
+    /**
+     * Tests a PartitionedQueue while rebalancing it between different
+     * numbers of consumers, which should pass without error and
+     * without handling any key's elements out of order.
+     */
+    @Test
+    public void partitionedQueueTest() {
+        for (ScalingResult point
+                 : PartitionedDriver.testPartitioned(QueueBenchmark.QueueType.CIRCULAR_BLOCKING_QUEUE,
+                                                     "PartitionedQueue",
+                                                     mQueueSize,
+                                                     8,
+                                                     2,
+                                                     new int[] { 1, 4, 2, 8 }))
+            assertEquals("Error occurred with " + point.mConsumers
+                         + " consumers: " + point.mResult.getString(),
+                         SynchronizedQueueResult.RAN_PROPERLY,
+                         point.mResult);
+
+        PartitionedQueue<Integer, Integer> queue =
+            new PartitionedQueue<Integer, Integer>(8,
+                                                   mQueueSize,
+                                                   QueueBenchmark.QueueType.CIRCULAR_BLOCKING_QUEUE,
+                                                   null,
+                                                   ThreadFactories.platform());
+        try {
+            queue.put(3, 0);
+            queue.put(3, 1);
+        } catch (InterruptedException e) {
+            fail("interrupted");
+        }
+        assertEquals(2, queue.depth(queue.partitionOf(3)));
+        assertEquals(-1, queue.ownerOf(0));
+    }
+
+    /**
+     * Tests that an ElasticConsumerGroup grows to absorb a burst of
+     * elements that would make a single consumer's producer wait,
+     * and shrinks back to its minimum once the burst is over.
+     */
+    @Test
+    public void elasticConsumerGroupTest() throws InterruptedException {
+        // The burst is many times the size of the queue.
+        final int burst = 2000;
+        CircularBlockingQueue<Integer> queue =
+            new CircularBlockingQueue<Integer>(100);
+        ElasticConsumerGroup<Integer> group =
+            new ElasticConsumerGroup<Integer>(queue,
+                                              new ElasticConsumerGroup.Handler<Integer>() {
+                                                  public void process(Integer element) {
+                                                      // Simulate waiting for I/O.
+                                                      LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(200));
+                                                  }
+                                              },
+                                              1,
+                                              8,
+                                              ThreadFactories.platform());
+        group.setSampling(20, 2, 5);
+        group.start();
+
+        try {
+            for (int i = 0; i < burst; i++)
+                assertTrue("offer() timed out",
+                           queue.offer(i,
+                                       SynchronizedQueue.TIMEOUT_SECONDS,
+                                       TimeUnit.SECONDS));
+
+            long deadline = System.currentTimeMillis()
+                + TimeUnit.SECONDS.toMillis(SynchronizedQueue.TIMEOUT_SECONDS);
+            while ((group.getProcessed() < burst || group.getConsumers() > 1)
+                   && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+
+            assertEquals(burst, group.getProcessed());
+            assertTrue("never grew", group.getPeakConsumers() > 1);
+            assertEquals("never shrank", 1, group.getConsumers());
+            assertFalse(group.getEvents().isEmpty());
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    /**
+     * Tests that an ElasticConsumerGroup rejects an unbounded queue,
+     * whose occupancy it has no way to measure.
+     */
+    @Test
+    public void elasticConsumerGroupUnboundedTest() {
+        try {
+            new ElasticConsumerGroup<Integer>(new LinkedBlockingQueue<Integer>(),
+                                              new ElasticConsumerGroup.Handler<Integer>() {
+                                                  public void process(Integer element) {
+                                                  }
+                                              },
+                                              1,
+                                              8,
+                                              ThreadFactories.platform());
+            fail("An unbounded queue was accepted.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Tests a decode, enrich and sink RingPipeline with a spinning
+     * and a blocking WaitStrategy, which should pass without error.
+     */
+    @Test
+    public void pipelineTest() {
+        for (WaitStrategy waitStrategy : new WaitStrategy[] {
+                WaitStrategy.spinThenPark(),
+                WaitStrategy.blocking() }) {
+            PipelineResult result =
+                PipelineDriver.testPipeline("RingPipeline",
+                                            mQueueSize,
+                                            waitStrategy);
+            assertEquals("Error occurred: " +
+                         result.mResult.getString(),
+                         SynchronizedQueueResult.RAN_PROPERLY,
+                         result.mResult);
+        }
+    }
+
+    /**
+     * Tests that elements flow from a QueueSubscriber through a
+     * bounded queue to a QueuePublisher in order, with neither end
+     * ever exceeding the demand of the other.
+     */
+    @Test
+    public void flowTest() throws Exception {
+        final int count = 100000;
+        final QueueAdapter<Integer> queue =
+            new QueueAdapter<Integer>(new ArrayBlockingQueue<Integer>(mQueueSize));
+        QueueBenchmark.CountingPublisher producer =
+            new QueueBenchmark.CountingPublisher(count);
+        QueueSubscriber<Integer> queueSubscriber =
+            new QueueSubscriber<Integer>(queue, 16);
+        producer.subscribe(queueSubscriber);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        QueuePublisher<Integer> publisher = new QueuePublisher<Integer>(queue);
+        publisher.subscribe(new QueueFlow.Subscriber<Integer>() {
+                QueueFlow.Subscription mSubscription;
+                int mNext;
+                long mOutstanding;
+
+                public void onSubscribe(QueueFlow.Subscription subscription) {
+                    mSubscription = subscription;
+                    mOutstanding = 7;
+                    subscription.request(7);
+                }
+
+                public void onNext(Integer item) {
+                    if (item != mNext++)
+                        failure.compareAndSet(null, "expected " + (mNext - 1)
+                                              + " but got " + item);
+                    if (--mOutstanding < 0)
+                        failure.compareAndSet(null, "sent more than requested");
+                    if (mOutstanding == 0) {
+                        mOutstanding = 7;
+                        mSubscription.request(7);
+                    }
+                }
+
+                public void onError(Throwable throwable) {
+                    failure.compareAndSet(null, throwable.toString());
+                    done.countDown();
+                }
+
+                public void onComplete() {
+                    if (mNext != count)
+                        failure.compareAndSet(null, "completed after " + mNext);
+                    done.countDown();
+                }
+            });
+
+        producer.join();
+        assertTrue(queueSubscriber.isDone());
+        assertNull(queueSubscriber.getError());
+        publisher.close();
+        assertTrue(done.await(SynchronizedQueue.TIMEOUT_SECONDS,
+                              TimeUnit.SECONDS));
+        assertNull(failure.get(), failure.get());
+        assertEquals(0, queue.size());
+    }
+
+    /**
+     * Tests that closing a QueuePublisher that feeds a QueueSubscriber
+     * loses no elements, even while the Publisher's Thread is inside
+     * the QueueSubscriber's onNext() waiting to put() an element into
+     * a full queue, and that the QueueSubscriber then completes
+     * normally.
+     */
+    @Test
+    public void flowCloseTest() throws Exception {
+        final int count = 50;
+        QueueAdapter<Integer> source =
+            new QueueAdapter<Integer>(new ArrayBlockingQueue<Integer>(count));
+        for (int i = 0; i < count; i++)
+            source.put(i);
+        QueueAdapter<Integer> sink =
+            new QueueAdapter<Integer>(new ArrayBlockingQueue<Integer>(4));
+
+        final AtomicReference<Thread> publisherThread =
+            new AtomicReference<Thread>();
+        QueuePublisher<Integer> publisher =
+            new QueuePublisher<Integer>(source, new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable);
+                        publisherThread.set(thread);
+                        return thread;
+                    }
+                });
+        QueueSubscriber<Integer> subscriber =
+            new QueueSubscriber<Integer>(sink, 1);
+        publisher.subscribe(subscriber);
+
+        // Wait until the sink is full and the Publisher's Thread is
+        // blocked putting the next element into it.
+        while (sink.remainingCapacity() > 0
+               || publisherThread.get().getState() != Thread.State.TIMED_WAITING)
+            Thread.yield();
+        publisher.close();
+
+        for (int i = 0; i < count; i++)
+            assertEquals(Integer.valueOf(i), sink.take());
+
+        publisherThread.get().join(TimeUnit.SECONDS.toMillis(SynchronizedQueue.TIMEOUT_SECONDS));
+        assertTrue(subscriber.isDone());
+        assertNull(subscriber.getError());
+        assertEquals(0, source.size());
+        assertEquals(0, sink.size());
+    }
+
+    /**
+     * Tests the ArrayBlockingQueue via the InstrumentedQueueAdapter,
+     * which should pass without error and report what it measured.
+     */
+    @Test
+    public void instrumentedQueueTest() {
+        InstrumentedQueueAdapter<Integer> queueAdapter =
+            new InstrumentedQueueAdapter<Integer>(new ArrayBlockingQueue<Integer>(mQueueSize));
+
+        QueueRunReport report =
+            new SynchronizedQueueImpl().testInstrumentedQueue(queueAdapter,
+                                                              "Instrumented ArrayBlockingQueue");
+
+        assertEquals("Error occurred: " +
+                     report.getResult().getString(),
+                     SynchronizedQueueResult.RAN_PROPERLY,
+                     report.getResult());
+        assertTrue(report.getPutLatency().getCount() > 0);
+        assertTrue(report.getTakeLatency().getCount() > 0);
+        assertTrue(report.getElapsedNanos() > 0);
+        assertTrue(report.getOccupancy().getMax() <= mQueueSize);
+    }
+
+    /**
+     * Tests that the AsyncConsoleSink used for diagnostics prints
+     * every line in order by the time flush() returns.
+     */
+    @Test
+    public void asyncConsoleSinkTest() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AsyncConsoleSink console =
+            new AsyncConsoleSink(new PrintStream(bytes, false, "UTF-8"));
+
+        StringBuilder expected = new StringBuilder();
+        String separator = System.getProperty("line.separator");
+        for (int i = 0; i < 1000; i++) {
+            console.println("iteration = " + i);
+            expected.append("iteration = " + i).append(separator);
+        }
+
+        assertTrue(console.flush(SynchronizedQueue.TIMEOUT_SECONDS,
+                                 TimeUnit.SECONDS));
+        assertEquals(0, console.getDropped());
+        assertEquals(expected.toString(), bytes.toString("UTF-8"));
+    }
+
     /**
      * Tests the BuggyBlockingQueue, an intentionally flawed class.
      * The buggyBlockingQueueTest() will succeed if the testQueue
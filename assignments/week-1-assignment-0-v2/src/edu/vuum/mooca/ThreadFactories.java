@@ -0,0 +1,44 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * @class ThreadFactories
+ *
+ * @brief Makes the ThreadFactories that PairsDriver.testPairs() can
+ *        run its producers and consumers on.
+ */
+public class ThreadFactories {
+    /**
+     * Returns a ThreadFactory that makes ordinary platform Threads,
+     * each of which is backed by an operating system thread.
+     */
+    public static ThreadFactory platform() {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable);
+            }
+        };
+    }
+
+    /**
+     * Returns a ThreadFactory that makes virtual Threads, which are
+     * scheduled by the JVM onto a small pool of carrier Threads, or
+     * null if this JVM doesn't support them.  Virtual Threads were
+     * only added in Java 21, so they're looked up reflectively to
+     * keep this project compiling on Java 6.
+     */
+    public static ThreadFactory virtual() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            // Call factory() via the public Thread.Builder interface,
+            // since the class of builder itself isn't public.
+            return (ThreadFactory)
+                Class.forName("java.lang.Thread$Builder")
+                     .getMethod("factory")
+                     .invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package edu.vuum.mooca;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @class WaitStrategy
+ *
+ * @brief Decides what a Thread does while it waits for a queue to
+ *        become non-full or non-empty.  It plays the role of the
+ *        Strategy in the Strategy pattern, so the same queue can
+ *        trade CPU time for latency differently in each deployment:
+ *
+ *        busySpin()      - retry immediately; lowest latency, burns a
+ *                          whole core per waiting Thread.
+ *        spinThenYield() - spin for a while, then yield the
+ *                          processor between retries.
+ *        spinThenPark()  - spin for a while, then park for
+ *                          exponentially longer periods between
+ *                          retries.
+ *        blocking()      - block on a Condition until another Thread
+ *                          signals; cheapest on CPU, highest
+ *                          latency.
+ *
+ *        A waiting Thread uses it like this:
+ *
+ *        for (int attempt = 0; ; attempt++) {
+ *            long token = waitStrategy.prepare();
+ *            if (tryOperation())
+ *                break;
+ *            waitStrategy.await(attempt, token, nanosLeft);
+ *        }
+ *
+ *        and every Thread whose operation may let a waiter make
+ *        progress calls signalAll() afterwards.  Taking the token
+ *        before retrying the operation ensures a signalAll() that
+ *        happens after the retry is never missed.
+ */
+public abstract class WaitStrategy {
+    /**
+     * Number of times the spinning strategies busy-spin before they
+     * start to back off.
+     */
+    static final int SPIN_TRIES = 100;
+
+    /**
+     * Returns a token that must be taken before the waiting Thread
+     * retries its operation and then passed to await().
+     */
+    public long prepare() {
+        return 0;
+    }
+
+    /**
+     * Wait after the attempt'th failed try at an operation for at
+     * most nanos, or until it's worth retrying the operation.
+     * Spurious returns are allowed, so callers always retry.
+     */
+    public abstract void await(int attempt, long token, long nanos)
+        throws InterruptedException;
+
+    /**
+     * Called by a Thread after an operation that may let waiting
+     * Threads make progress.
+     */
+    public void signalAll() {
+    }
+
+    /**
+     * Returns a new strategy that retries immediately.
+     */
+    public static WaitStrategy busySpin() {
+        return new BusySpin();
+    }
+
+    /**
+     * Returns a new strategy that spins and then yields.
+     */
+    public static WaitStrategy spinThenYield() {
+        return new SpinThenYield();
+    }
+
+    /**
+     * Returns a new strategy that spins and then parks with
+     * exponential backoff.
+     */
+    public static WaitStrategy spinThenPark() {
+        return new SpinThenPark();
+    }
+
+    /**
+     * Returns a new strategy that blocks until it's signalled.
+     */
+    public static WaitStrategy blocking() {
+        return new Blocking();
+    }
+
+    /**
+     * Returns a new strategy given its name, which is one of
+     * "busy-spin", "spin-then-yield", "spin-then-park" or "blocking".
+     */
+    public static WaitStrategy forName(String name) {
+        if (name.equals("busy-spin"))
+            return busySpin();
+        else if (name.equals("spin-then-yield"))
+            return spinThenYield();
+        else if (name.equals("spin-then-park"))
+            return spinThenPark();
+        else if (name.equals("blocking"))
+            return blocking();
+        else
+            throw new IllegalArgumentException("unknown wait strategy " + name);
+    }
+
+    /**
+     * @class BusySpin
+     *
+     * @brief Retries the operation straight away.
+     */
+    static class BusySpin extends WaitStrategy {
+        public void await(int attempt, long token, long nanos) {
+        }
+
+        public String toString() {
+            return "busy-spin";
+        }
+    }
+
+    /**
+     * @class SpinThenYield
+     *
+     * @brief Spins for SPIN_TRIES attempts and then yields the
+     *        processor before each retry.
+     */
+    static class SpinThenYield extends WaitStrategy {
+        public void await(int attempt, long token, long nanos) {
+            if (attempt >= SPIN_TRIES)
+                Thread.yield();
+        }
+
+        public String toString() {
+            return "spin-then-yield";
+        }
+    }
+
+    /**
+     * @class SpinThenPark
+     *
+     * @brief Spins for SPIN_TRIES attempts and then parks, starting
+     *        at MIN_PARK_NANOS and doubling each time up to
+     *        MAX_PARK_NANOS.
+     */
+    static class SpinThenPark extends WaitStrategy {
+        /**
+         * The first (and shortest) period to park for.
+         */
+        static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+
+        /**
+         * The longest period to park for.
+         */
+        static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+        public void await(int attempt, long token, long nanos) {
+            if (attempt < SPIN_TRIES)
+                return;
+
+            int doublings = Math.min(attempt - SPIN_TRIES, 20);
+            long parkNanos = Math.min(MIN_PARK_NANOS << doublings,
+                                      MAX_PARK_NANOS);
+            LockSupport.parkNanos(this, Math.min(parkNanos, nanos));
+        }
+
+        public String toString() {
+            return "spin-then-park";
+        }
+    }
+
+    /**
+     * @class Blocking
+     *
+     * @brief Blocks on a Condition until signalAll() is called.  The
+     *        token is an "event count" that signalAll() increments, so
+     *        a waiter only blocks if nothing has been signalled since
+     *        it took its token.  signalAll() only increments the count
+     *        once a waiter has armed mArmed, so while no Thread waits
+     *        it costs a single getAndSet(), and the lock is only
+     *        acquired when some Thread is actually blocked.
+     *
+     *        A waiter whose token was taken before mArmed was set
+     *        can't rely on the count, since a signalAll() in between
+     *        may have skipped it.  So await() sets mArmed and returns
+     *        at once, and the waiter retries its operation with a new
+     *        token: either that retry sees what the signalling Thread
+     *        changed, or the signalling Thread sees mArmed and changes
+     *        the count.
+     */
+    static class Blocking extends WaitStrategy {
+        /**
+         * Incremented by a call to signalAll() that finds mArmed set.
+         */
+        private final AtomicLong mEventCount = new AtomicLong();
+
+        /**
+         * Set by a Thread that's about to wait and cleared by the
+         * signalAll() that increments mEventCount for it.
+         */
+        private final AtomicBoolean mArmed = new AtomicBoolean();
+
+        /**
+         * The number of Threads that are blocked in await().
+         */
+        private final AtomicInteger mWaiters = new AtomicInteger();
+
+        /**
+         * Lock that's used with mSignalled.
+         */
+        private final ReentrantLock mLock = new ReentrantLock();
+
+        /**
+         * Condition that waiting Threads block on.
+         */
+        private final Condition mSignalled = mLock.newCondition();
+
+        /**
+         * Returns the event count shifted left by one, with the low
+         * bit set if mArmed was set.  The count is read first, so a
+         * signalAll() that clears mArmed after it's been read here is
+         * sure to change the count afterwards.
+         */
+        public long prepare() {
+            long token = mEventCount.get() << 1;
+            return mArmed.get() ? token | 1 : token;
+        }
+
+        public void await(int attempt, long token, long nanos)
+            throws InterruptedException {
+            if ((token & 1) == 0) {
+                // Arm signalAll() and retry before blocking.
+                mArmed.set(true);
+                return;
+            }
+
+            mLock.lockInterruptibly();
+            try {
+                // Announce ourselves before re-checking the event
+                // count, so that signalAll() either sees us or has
+                // already changed the count.
+                mWaiters.incrementAndGet();
+                try {
+                    if (mEventCount.get() == token >>> 1 && nanos > 0)
+                        mSignalled.awaitNanos(nanos);
+                } finally {
+                    mWaiters.decrementAndGet();
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        public void signalAll() {
+            // Don't check mArmed with a plain volatile read first:
+            // callers often publish with a release-only store (e.g.,
+            // Sequence.setOrdered()) just before calling this, and
+            // only the full fence of getAndSet() keeps the read of
+            // mArmed from moving ahead of that store, which would let
+            // a waiter arm mArmed, miss the store and block forever.
+            // If another Thread clears mArmed first it changes the
+            // count instead.
+            if (!mArmed.getAndSet(false))
+                return;
+
+            mEventCount.incrementAndGet();
+            if (mWaiters.get() > 0) {
+                mLock.lock();
+                try {
+                    mSignalled.signalAll();
+                } finally {
+                    mLock.unlock();
+                }
+            }
+        }
+
+        public String toString() {
+            return "blocking";
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package edu.vuum.mocca;
+
+/**
+ * @class AtomicLongCounter
+ *
+ * @brief The operations shared by every implementation of
+ *        SimpleAtomicLong, so the tests can run the same workload
+ *        against each of them.
+ *
+ *        Each update is atomic, so no increment or decrement is
+ *        ever lost and get() is exact once the updating Threads have
+ *        finished.  The value an update returns, though, is only
+ *        guaranteed to come from the same atomic step as the update
+ *        if the implementation says so.  StripedSimpleAtomicLong
+ *        doesn't: it updates and then sums its cells, so the value
+ *        it returns may include other Threads' concurrent updates.
+ *        Code that relies on the returned values (e.g., to hand out
+ *        unique ids) must not use it.
+ */
+interface AtomicLongCounter
+{
+    /**
+     * @brief Gets the current value.
+     * 
+     * @returns The current value
+     */
+    long get();
+
+    /**
+     * @brief Atomically decrements by one the current value
+     *
+     * @returns the updated value, which may include concurrent
+     *          updates unless the implementation says otherwise
+     */
+    long decrementAndGet();
+
+    /**
+     * @brief Atomically increments by one the current value
+     *
+     * @returns the previous value, which may include concurrent
+     *          updates unless the implementation says otherwise
+     */
+    long getAndIncrement();
+
+    /**
+     * @brief Atomically decrements by one the current value
+     *
+     * @returns the previous value, which may include concurrent
+     *          updates unless the implementation says otherwise
+     */
+    long getAndDecrement();
+
+    /**
+     * @brief Atomically increments by one the current value
+     *
+     * @returns the updated value, which may include concurrent
+     *          updates unless the implementation says otherwise
+     */
+    long incrementAndGet();
+}
@@ -0,0 +1,264 @@
+package edu.vuum.mocca;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * @class CasSimpleAtomicLong
+ *
+ * @brief This class implements the same subset of the
+ *        java.util.concurrent.atomic.AtomicLong class as
+ *        SimpleAtomicLong, but without a lock.  The value is a
+ *        volatile long that's updated via compare-and-swap through
+ *        a VarHandle, so a Thread never blocks another one: a get()
+ *        is a single volatile read and each update is a single
+ *        atomic instruction on hardware that has one.
+ *
+ *        Beyond the operations it shares with SimpleAtomicLong it
+ *        has the rest of the AtomicLong API, including the
+ *        functional updates, so it can replace a counter that's
+ *        guarded by a lock of its own.
+ */
+class CasSimpleAtomicLong implements AtomicLongCounter
+{
+    /**
+     * Performs the atomic updates on mValue.  A VarHandle keeps the
+     * value inline in this object, rather than in a separate
+     * AtomicLong that every access would have to go through, and
+     * unlike a field updater it doesn't check the receiver's class
+     * on every call.
+     */
+    private static final VarHandle sValueHandle;
+
+    static {
+        try {
+            sValueHandle = MethodHandles.lookup()
+                .findVarHandle(CasSimpleAtomicLong.class, "mValue", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * The value that's manipulated atomically via the methods.
+     */
+    private volatile long mValue;
+
+    /**
+     * Creates a new CasSimpleAtomicLong with the given initial value.
+     */
+    public CasSimpleAtomicLong(long initialValue)
+    {
+        mValue = initialValue;
+    }
+
+    /**
+     * @brief Gets the current value.
+     * 
+     * @returns The current value
+     */
+    public long get()
+    {
+        return mValue;
+    }
+
+    /**
+     * @brief Atomically decrements by one the current value
+     *
+     * @returns the updated value
+     */
+    public long decrementAndGet()
+    {
+        return (long) sValueHandle.getAndAdd(this, -1L) - 1;
+    }
+
+    /**
+     * @brief Atomically increments by one the current value
+     *
+     * @returns the previous value
+     */
+    public long getAndIncrement()
+    {
+        return (long) sValueHandle.getAndAdd(this, 1L);
+    }
+
+    /**
+     * @brief Atomically decrements by one the current value
+     *
+     * @returns the previous value
+     */
+    public long getAndDecrement()
+    {
+        return (long) sValueHandle.getAndAdd(this, -1L);
+    }
+
+    /**
+     * @brief Atomically increments by one the current value
+     *
+     * @returns the updated value
+     */
+    public long incrementAndGet()
+    {
+        return (long) sValueHandle.getAndAdd(this, 1L) + 1;
+    }
+
+    /**
+     * @brief Sets the value to newValue.
+     */
+    public void set(long newValue)
+    {
+        mValue = newValue;
+    }
+
+    /**
+     * @brief Eventually sets the value to newValue.  It's the older
+     *        name for setRelease().
+     */
+    public void lazySet(long newValue)
+    {
+        sValueHandle.setRelease(this, newValue);
+    }
+
+    /**
+     * @brief Sets the value to newValue with release semantics: writes
+     *        made before it can't be reordered after it, but it
+     *        doesn't wait for the value to become visible to other
+     *        Threads, which makes it cheaper than set().
+     */
+    public void setRelease(long newValue)
+    {
+        sValueHandle.setRelease(this, newValue);
+    }
+
+    /**
+     * @brief Atomically sets the value to newValue
+     *
+     * @returns the previous value
+     */
+    public long getAndSet(long newValue)
+    {
+        return (long) sValueHandle.getAndSet(this, newValue);
+    }
+
+    /**
+     * @brief Atomically sets the value to update if the current value
+     *        is expect.
+     *
+     * @returns true if it was, false if the value was left alone
+     */
+    public boolean compareAndSet(long expect, long update)
+    {
+        return sValueHandle.compareAndSet(this, expect, update);
+    }
+
+    /**
+     * @brief Atomically sets the value to update if the current value
+     *        is expect.  It may fail even when the value is expect,
+     *        and orders no other memory accesses, so it's only useful
+     *        in a retry loop that doesn't publish other data.
+     *
+     * @returns true if it was set
+     */
+    public boolean weakCompareAndSet(long expect, long update)
+    {
+        return sValueHandle.weakCompareAndSetPlain(this, expect, update);
+    }
+
+    /**
+     * @brief Atomically adds delta to the current value
+     *
+     * @returns the previous value
+     */
+    public long getAndAdd(long delta)
+    {
+        return (long) sValueHandle.getAndAdd(this, delta);
+    }
+
+    /**
+     * @brief Atomically adds delta to the current value
+     *
+     * @returns the updated value
+     */
+    public long addAndGet(long delta)
+    {
+        return (long) sValueHandle.getAndAdd(this, delta) + delta;
+    }
+
+    /**
+     * @brief Atomically replaces the current value with the result of
+     *        applying function to it, retrying if another Thread
+     *        changes it in the meantime.
+     *
+     * @returns the previous value
+     */
+    public long getAndUpdate(LongUnaryOperator function)
+    {
+        long prev, next;
+        do {
+            prev = mValue;
+            next = function.applyAsLong(prev);
+        } while (!sValueHandle.compareAndSet(this, prev, next));
+        return prev;
+    }
+
+    /**
+     * @brief Atomically replaces the current value with the result of
+     *        applying function to it, retrying if another Thread
+     *        changes it in the meantime.
+     *
+     * @returns the updated value
+     */
+    public long updateAndGet(LongUnaryOperator function)
+    {
+        long prev, next;
+        do {
+            prev = mValue;
+            next = function.applyAsLong(prev);
+        } while (!sValueHandle.compareAndSet(this, prev, next));
+        return next;
+    }
+
+    /**
+     * @brief Atomically replaces the current value with the result of
+     *        applying function to it and x, retrying if another
+     *        Thread changes it in the meantime.
+     *
+     * @returns the previous value
+     */
+    public long getAndAccumulate(long x, LongBinaryOperator function)
+    {
+        long prev, next;
+        do {
+            prev = mValue;
+            next = function.applyAsLong(prev, x);
+        } while (!sValueHandle.compareAndSet(this, prev, next));
+        return prev;
+    }
+
+    /**
+     * @brief Atomically replaces the current value with the result of
+     *        applying function to it and x, retrying if another
+     *        Thread changes it in the meantime.
+     *
+     * @returns the updated value
+     */
+    public long accumulateAndGet(long x, LongBinaryOperator function)
+    {
+        long prev, next;
+        do {
+            prev = mValue;
+            next = function.applyAsLong(prev, x);
+        } while (!sValueHandle.compareAndSet(this, prev, next));
+        return next;
+    }
+
+    /**
+     * Returns the current value as a String.
+     */
+    public String toString()
+    {
+        return Long.toString(mValue);
+    }
+}
@@ -0,0 +1,63 @@
+package edu.vuum.mocca;
+
+import static org.junit.Assert.*;
+
+import java.util.function.LongUnaryOperator;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @class CasSimpleAtomicLongMultithreadedTest
+ *
+ * @brief Runs the SimpleAtomicLongMultithreadedTest workload against
+ *        the lock-free CasSimpleAtomicLong, along with tests of the
+ *        updates only it supports.
+ */
+public class CasSimpleAtomicLongMultithreadedTest
+    extends SimpleAtomicLongMultithreadedTest {
+    /**
+     * Runs prior to all tests.  Hides the superclass method of the
+     * same name, so the CAS counter is the only one created.
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        setUpCounter(SimpleAtomicLongType.CAS);
+    }
+
+    /**
+     * Tests for proper concurrency and functionality of {@code
+     * updateAndGet()}, whose function must be reapplied whenever
+     * another thread wins the race to update the value.
+     */
+    @Test
+    public void multiUpdateAndGetTest() {
+        final CasSimpleAtomicLong counter = (CasSimpleAtomicLong) mCounter;
+        final LongUnaryOperator addTwo =
+            new LongUnaryOperator() {
+                public long applyAsLong(long operand) { return operand + 2; }
+            };
+        runThreads(new Runnable() { public void run() { counter.updateAndGet(addTwo); } });
+        assertEquals(preTestValue
+                     + 2 * mMaxIterations * numThreads,
+                     mCounter.get());
+    }
+
+    /**
+     * Tests for proper concurrency and functionality of {@code
+     * compareAndSet()} by decrementing in a retry loop.
+     */
+    @Test
+    public void multiCompareAndSetTest() {
+        final CasSimpleAtomicLong counter = (CasSimpleAtomicLong) mCounter;
+        runThreads(new Runnable() { public void run() {
+            long value;
+            do {
+                value = counter.get();
+            } while (!counter.compareAndSet(value, value - 1));
+        } });
+        assertEquals(preTestValue
+                     - mMaxIterations * numThreads,
+                     mCounter.get());
+    }
+}
@@ -0,0 +1,132 @@
+package edu.vuum.mocca;
+
+import static org.junit.Assert.*;
+
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+
+import org.junit.Test;
+
+/**
+ * @class CasSimpleAtomicLongSingleThreadedTest
+ *
+ * @brief Evaluates the logic of the parts of the AtomicLong API that
+ *        only CasSimpleAtomicLong implements, by testing each method
+ *        with each of the values in mTestValues.
+ */
+public class CasSimpleAtomicLongSingleThreadedTest {
+    /*
+     * Test possible edge cases at 0, and a large negative and
+     * positive.
+     */
+    final static long[] mTestValues = { -100, -1, 0, 1, 100 };
+
+    /**
+     * Doubles the value it's given.
+     */
+    final static LongUnaryOperator mDouble =
+        new LongUnaryOperator() {
+            public long applyAsLong(long operand) { return operand * 2; }
+        };
+
+    /**
+     * Returns the larger of the values it's given.
+     */
+    final static LongBinaryOperator mMax =
+        new LongBinaryOperator() {
+            public long applyAsLong(long left, long right) { return Math.max(left, right); }
+        };
+
+    /**
+     * test set(), lazySet() and setRelease()
+     */
+    @Test
+    public void setTest() {
+        for (long testValue : mTestValues) {
+            CasSimpleAtomicLong counter = new CasSimpleAtomicLong(0);
+            counter.set(testValue);
+            assertEquals(testValue, counter.get());
+            counter.lazySet(testValue + 1);
+            assertEquals(testValue + 1, counter.get());
+            counter.setRelease(testValue + 2);
+            assertEquals(testValue + 2, counter.get());
+        }
+    }
+
+    /**
+     * test getAndSet()
+     */
+    @Test
+    public void getAndSetTest() {
+        for (long testValue : mTestValues) {
+            CasSimpleAtomicLong counter = new CasSimpleAtomicLong(testValue);
+            assertEquals(testValue, counter.getAndSet(42));
+            assertEquals(42, counter.get());
+        }
+    }
+
+    /**
+     * test compareAndSet() and weakCompareAndSet()
+     */
+    @Test
+    public void compareAndSetTest() {
+        for (long testValue : mTestValues) {
+            CasSimpleAtomicLong counter = new CasSimpleAtomicLong(testValue);
+            assertFalse(counter.compareAndSet(testValue + 1, 7));
+            assertEquals(testValue, counter.get());
+            assertTrue(counter.compareAndSet(testValue, 7));
+            assertEquals(7, counter.get());
+
+            // A weak CAS may fail spuriously, so retry until it
+            // succeeds, which it must do while the value is expected.
+            while (!counter.weakCompareAndSet(7, testValue))
+                continue;
+            assertEquals(testValue, counter.get());
+            assertFalse(counter.weakCompareAndSet(testValue + 1, 7));
+            assertEquals(testValue, counter.get());
+        }
+    }
+
+    /**
+     * test getAndAdd() and addAndGet()
+     */
+    @Test
+    public void addTest() {
+        for (long testValue : mTestValues) {
+            CasSimpleAtomicLong counter = new CasSimpleAtomicLong(testValue);
+            assertEquals(testValue, counter.getAndAdd(10));
+            assertEquals(testValue + 10, counter.get());
+            assertEquals(testValue - 5, counter.addAndGet(-15));
+            assertEquals(testValue - 5, counter.get());
+        }
+    }
+
+    /**
+     * test getAndUpdate() and updateAndGet()
+     */
+    @Test
+    public void updateTest() {
+        for (long testValue : mTestValues) {
+            CasSimpleAtomicLong counter = new CasSimpleAtomicLong(testValue);
+            assertEquals(testValue, counter.getAndUpdate(mDouble));
+            assertEquals(testValue * 2, counter.get());
+            assertEquals(testValue * 4, counter.updateAndGet(mDouble));
+            assertEquals(testValue * 4, counter.get());
+        }
+    }
+
+    /**
+     * test getAndAccumulate() and accumulateAndGet()
+     */
+    @Test
+    public void accumulateTest() {
+        for (long testValue : mTestValues) {
+            CasSimpleAtomicLong counter = new CasSimpleAtomicLong(testValue);
+            assertEquals(testValue, counter.getAndAccumulate(0, mMax));
+            assertEquals(Math.max(testValue, 0), counter.get());
+            assertEquals(Math.max(testValue, 50),
+                         counter.accumulateAndGet(50, mMax));
+            assertEquals(Math.max(testValue, 50), counter.get());
+        }
+    }
+}
@@ -10,7 +10,7 @@ import java.util.concurrent.locks.Lock;
  *        java.util.concurrent.atomic.AtomicLong class using a
  *        ReentrantReadWriteLock to illustrate how they work.
  */
-class SimpleAtomicLong
+class SimpleAtomicLong implements AtomicLongCounter
 {
     /**
      * The value that's manipulated atomically via the methods.
@@ -20,16 +20,25 @@ class SimpleAtomicLong
     /**
      * The ReentrantReadWriteLock used to serialize access to mValue.
      */
-
-    // TODO -- you fill in here by replacing the null with an
-    // initialization of ReentrantReadWriteLock.
-    private final ReentrantReadWriteLock mRWLock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock mRWLock;
 
     /**
      * Creates a new SimpleAtomicLong with the given initial value.
      */
     public SimpleAtomicLong(long initialValue)
     {
+        this(initialValue, false);
+    }
+
+    /**
+     * Creates a new SimpleAtomicLong with the given initial value.
+     * If fair is true, Threads acquire the lock in the order they
+     * asked for it, at some cost in throughput.
+     */
+    public SimpleAtomicLong(long initialValue, boolean fair)
+    {
+        mRWLock = new ReentrantReadWriteLock(fair);
+
         // TODO -- you fill in here
     	mRWLock.writeLock().lock();
     	mValue = initialValue;
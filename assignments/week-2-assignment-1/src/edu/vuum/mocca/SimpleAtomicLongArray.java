@@ -0,0 +1,187 @@
+package edu.vuum.mocca;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @class SimpleAtomicLongArray
+ *
+ * @brief This class implements an array of longs with the same
+ *        atomic operations as SimpleAtomicLong, each taking the index
+ *        of the element it operates on.  It's meant for arrays of
+ *        per-worker counters, where each Thread updates its own
+ *        element.  Adjacent longs share a cache line, so when Threads
+ *        on different cores update neighbouring elements they keep
+ *        invalidating each other's copy of the line even though they
+ *        never touch the same value (i.e., "false sharing").
+ *
+ *        So by default each element is stored SLOT_STRIDE longs
+ *        apart, with SLOT_STRIDE longs of padding before the first
+ *        one, which puts every element on cache lines of its own.
+ *        When memory matters more than contention, a compact array
+ *        stores the elements next to each other instead.  Either way
+ *        the elements are updated via compare-and-swap, so no Thread
+ *        ever blocks another.
+ */
+class SimpleAtomicLongArray
+{
+    /**
+     * The distance, in longs, between elements of a padded array, in
+     * which element i is slot (i + 1) * SLOT_STRIDE.  At 128 bytes
+     * apart no two elements share a 64-byte line, or the pair of
+     * lines that some processors fetch together.
+     */
+    static final int SLOT_STRIDE = 16;
+
+    /**
+     * Holds the elements, and the padding around them if there is
+     * any.
+     */
+    private final AtomicLongArray mSlots;
+
+    /**
+     * The number of elements.
+     */
+    private final int mLength;
+
+    /**
+     * The distance, in longs, between elements, which is 1 if the
+     * array is compact.
+     */
+    private final int mStride;
+
+    /**
+     * Creates a new padded SimpleAtomicLongArray of the given length,
+     * with every element initially zero.
+     */
+    public SimpleAtomicLongArray(int length)
+    {
+        this(length, true);
+    }
+
+    /**
+     * Creates a new SimpleAtomicLongArray of the given length, with
+     * every element initially zero.  If padded is false the elements
+     * are stored next to each other, which takes SLOT_STRIDE times
+     * less memory but lets updates to adjacent elements slow each
+     * other down.
+     *
+     * @throws IllegalArgumentException if length is negative, or if
+     *         padded and length is too large for the padded slots to
+     *         be indexed by an int.
+     */
+    public SimpleAtomicLongArray(int length, boolean padded)
+    {
+        if (length < 0)
+            throw new IllegalArgumentException("length = " + length);
+        // Checking here keeps (length + 2) * SLOT_STRIDE below, and
+        // so (i + 1) * SLOT_STRIDE in slot(), from overflowing.
+        if (padded && length > Integer.MAX_VALUE / SLOT_STRIDE - 2)
+            throw new IllegalArgumentException("length = " + length
+                                               + " is too large to pad");
+        mLength = length;
+        mStride = padded ? SLOT_STRIDE : 1;
+        // A padded array also pads before the first element, so it
+        // doesn't share a line with the array's header, and after
+        // the last, so it doesn't share one with the next object.
+        mSlots = new AtomicLongArray(padded
+                                     ? (length + 2) * SLOT_STRIDE
+                                     : length);
+    }
+
+    /**
+     * @brief Returns the number of elements.
+     */
+    public int length()
+    {
+        return mLength;
+    }
+
+    /**
+     * @brief Returns true if every element is on cache lines of its
+     *        own.
+     */
+    public boolean isPadded()
+    {
+        return mStride != 1;
+    }
+
+    /**
+     * @brief Gets the current value of element i.
+     *
+     * @returns The current value
+     */
+    public long get(int i)
+    {
+        return mSlots.get(slot(i));
+    }
+
+    /**
+     * @brief Atomically decrements by one the current value of
+     *        element i
+     *
+     * @returns the updated value
+     */
+    public long decrementAndGet(int i)
+    {
+        return mSlots.decrementAndGet(slot(i));
+    }
+
+    /**
+     * @brief Atomically increments by one the current value of
+     *        element i
+     *
+     * @returns the previous value
+     */
+    public long getAndIncrement(int i)
+    {
+        return mSlots.getAndIncrement(slot(i));
+    }
+
+    /**
+     * @brief Atomically decrements by one the current value of
+     *        element i
+     *
+     * @returns the previous value
+     */
+    public long getAndDecrement(int i)
+    {
+        return mSlots.getAndDecrement(slot(i));
+    }
+
+    /**
+     * @brief Atomically increments by one the current value of
+     *        element i
+     *
+     * @returns the updated value
+     */
+    public long incrementAndGet(int i)
+    {
+        return mSlots.incrementAndGet(slot(i));
+    }
+
+    /**
+     * Returns the current values of the elements as a String.
+     */
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < mLength; i++) {
+            if (i > 0)
+                builder.append(", ");
+            builder.append(get(i));
+        }
+        return builder.append(']').toString();
+    }
+
+    /**
+     * Returns the index in mSlots of element i.
+     */
+    private int slot(int i)
+    {
+        if (i < 0 || i >= mLength)
+            throw new IndexOutOfBoundsException("index " + i);
+        return mStride == 1
+            ? i
+            : (i + 1) * SLOT_STRIDE;
+    }
+}
@@ -0,0 +1,131 @@
+package edu.vuum.mocca;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Test;
+
+/**
+ * @class SimpleAtomicLongArrayTest
+ *
+ * @brief Tests the logic and multithreaded implementation of both the
+ *        padded and the compact layouts of SimpleAtomicLongArray.
+ */
+public class SimpleAtomicLongArrayTest {
+    /**
+     * Number of iterations each thread runs.
+     */
+    final static long mMaxIterations = 1000000;
+
+    /**
+     * The number of threads, each of which has an element of its
+     * own.
+     */
+    final static int numThreads = 5;
+
+    /**
+     * Test the operations on each element of both layouts.
+     */
+    @Test
+    public void singleThreadedTest() {
+        for (boolean padded : new boolean[] { true, false }) {
+            SimpleAtomicLongArray array =
+                new SimpleAtomicLongArray(numThreads, padded);
+            assertEquals(numThreads, array.length());
+            assertEquals(padded, array.isPadded());
+
+            for (int i = 0; i < array.length(); i++) {
+                assertEquals(0, array.get(i));
+                assertEquals(0, array.getAndIncrement(i));
+                assertEquals(2, array.incrementAndGet(i));
+                assertEquals(2, array.getAndDecrement(i));
+                assertEquals(0, array.decrementAndGet(i));
+                assertEquals(-1, array.decrementAndGet(i));
+            }
+            // Each update only changed its own element.
+            for (int i = 0; i < array.length(); i++)
+                assertEquals(-1, array.get(i));
+        }
+    }
+
+    /**
+     * Test that indices outside the array are rejected.
+     */
+    @Test
+    public void indexOutOfBoundsTest() {
+        for (boolean padded : new boolean[] { true, false }) {
+            SimpleAtomicLongArray array =
+                new SimpleAtomicLongArray(numThreads, padded);
+            for (int index : new int[] { -1, numThreads }) {
+                try {
+                    array.incrementAndGet(index);
+                    fail("Index " + index + " was accepted.");
+                } catch (IndexOutOfBoundsException e) {
+                    // Expected.
+                }
+            }
+        }
+    }
+
+    /**
+     * Test that a padded length whose slots would overflow an int is
+     * rejected up front rather than wrapping around.
+     */
+    @Test
+    public void paddedLengthOverflowTest() {
+        int tooLong = Integer.MAX_VALUE / SimpleAtomicLongArray.SLOT_STRIDE - 1;
+        try {
+            new SimpleAtomicLongArray(tooLong, true);
+            fail("Length " + tooLong + " was accepted.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Tests concurrent updates of both layouts by threads that each
+     * increment an element of their own and all decrement a shared
+     * element.
+     */
+    @Test
+    public void multiThreadedTest() {
+        for (boolean padded : new boolean[] { true, false }) {
+            // The last element is shared by every thread.
+            final SimpleAtomicLongArray array =
+                new SimpleAtomicLongArray(numThreads + 1, padded);
+            final CyclicBarrier startBarrier = new CyclicBarrier(numThreads);
+            final CountDownLatch stopLatch = new CountDownLatch(numThreads);
+
+            for (int i = 0; i < numThreads; i++) {
+                final int index = i;
+                new Thread(new Runnable()
+                    { public void run() {
+                        try
+                            {
+                                startBarrier.await();
+                                for (long j = 0; j < mMaxIterations; ++j) {
+                                    array.incrementAndGet(index);
+                                    array.getAndDecrement(numThreads);
+                                }
+                            } catch (Exception e) {
+                            fail("Runnable failed.");
+                        } finally {
+                            stopLatch.countDown();
+                        }
+                    }}).start();
+            }
+
+            try {
+                stopLatch.await();
+            } catch (InterruptedException e) {
+                fail("Exception thrown.");
+            }
+
+            for (int i = 0; i < numThreads; i++)
+                assertEquals(mMaxIterations, array.get(i));
+            assertEquals(-mMaxIterations * numThreads, array.get(numThreads));
+        }
+    }
+}
@@ -0,0 +1,542 @@
+package edu.vuum.mocca;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @class SimpleAtomicLongBenchmark
+ *
+ * @brief Measures the throughput of the SimpleAtomicLong
+ *        implementations when several Threads update the same counter
+ *        at once, e.g.:
+ *
+ *        java edu.vuum.mocca.SimpleAtomicLongBenchmark [millis-per-run]
+ *        java edu.vuum.mocca.SimpleAtomicLongBenchmark ratio [millis-per-run]
+ *        java edu.vuum.mocca.SimpleAtomicLongBenchmark suite [millis-per-run [baseline-file]]
+ *
+ *        For each SimpleAtomicLongType and each number of Threads in
+ *        CONTENTION_THREADS, every Thread increments one shared
+ *        counter as fast as it can for a fixed period, and the total
+ *        number of increments per second is printed as one line per
+ *        combination.  The "ratio" form instead has RATIO_THREADS
+ *        Threads mix get()s with increments in each of the
+ *        proportions in READ_PERCENTAGES, which shows where each
+ *        counter is the best choice for a read-mostly workload.
+ *
+ *        The "suite" form runs every SimpleAtomicLongType, with a
+ *        fair and a non-fair lock if it has one, through each of the
+ *        Commands that SimpleAtomicLongMultithreadedTest uses and
+ *        through mixes of get()s and increments, with each number of
+ *        Threads in SUITE_THREADS.  Besides the throughput it prints
+ *        the mean time per operation and percentiles of the latency
+ *        of sampled operations.  If it's given a baseline-file, which
+ *        is the saved output of an earlier run, it marks every
+ *        combination whose throughput has dropped by more than
+ *        REGRESSION_TOLERANCE and exits with status 1 if there are
+ *        any, so it can gate changes to the counters.
+ */
+class SimpleAtomicLongBenchmark
+{
+    /**
+     * The numbers of Threads to measure.
+     */
+    static final int[] CONTENTION_THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+
+    /**
+     * Number of Threads in the "ratio" form.
+     */
+    static final int RATIO_THREADS = 4;
+
+    /**
+     * The percentages of operations that are get()s in the "ratio"
+     * form, with the rest being increments.
+     */
+    static final int[] READ_PERCENTAGES = { 0, 50, 90, 99, 100 };
+
+    /**
+     * The numbers of Threads in the "suite" form.
+     */
+    static final int[] SUITE_THREADS = { 1, 4, 16 };
+
+    /**
+     * The percentages of get()s in the mixes of get() and
+     * incrementAndGet() that the "suite" form measures, besides each
+     * Command on its own.
+     */
+    static final int[] SUITE_READ_PERCENTAGES = { 50, 90, 99 };
+
+    /**
+     * The fraction by which the throughput of a combination may drop
+     * below the baseline before the "suite" form reports it as a
+     * regression.  It's generous because runs on a shared machine
+     * are noisy.
+     */
+    static final double REGRESSION_TOLERANCE = 0.2;
+
+    /**
+     * Default number of milliseconds to measure each combination for.
+     */
+    static final int DEFAULT_MILLIS = 1000;
+
+    /**
+     * Number of operations each Thread does between checks of
+     * whether the run is over, so the check doesn't dominate.  It's
+     * a multiple of 100 so every percentage of reads is exact.  One
+     * operation of each of these batches has its latency sampled.
+     */
+    static final int OPERATIONS_PER_CHECK = 1000;
+
+    /**
+     * The most latency samples each Thread keeps.
+     */
+    static final int MAX_SAMPLES = 100000;
+
+    /**
+     * Set when the current run is over.
+     */
+    static volatile boolean mStopped;
+
+    /**
+     * @class Command
+     *
+     * @brief The operations SimpleAtomicLongMultithreadedTest runs,
+     *        which the "suite" form measures the same way.  Their
+     *        return values are discarded, so every
+     *        SimpleAtomicLongType can run them, including STRIPED,
+     *        whose returned values aren't atomic.
+     */
+    enum Command {
+        GET("get") {
+            Runnable bind(final AtomicLongCounter counter) {
+                return new Runnable() { public void run() { counter.get(); } };
+            }
+        },
+        INCREMENT_GET("incrementGet") {
+            Runnable bind(final AtomicLongCounter counter) {
+                return new Runnable() { public void run() { counter.incrementAndGet(); } };
+            }
+        },
+        GET_INCREMENT("getIncrement") {
+            Runnable bind(final AtomicLongCounter counter) {
+                return new Runnable() { public void run() { counter.getAndIncrement(); } };
+            }
+        },
+        DECREMENT_GET("decrementGet") {
+            Runnable bind(final AtomicLongCounter counter) {
+                return new Runnable() { public void run() { counter.decrementAndGet(); } };
+            }
+        },
+        GET_DECREMENT("getDecrement") {
+            Runnable bind(final AtomicLongCounter counter) {
+                return new Runnable() { public void run() { counter.getAndDecrement(); } };
+            }
+        };
+
+        /**
+         * The name the test gives the command.
+         */
+        final String mName;
+
+        Command(String name) {
+            mName = name;
+        }
+
+        /**
+         * Returns a Runnable that performs this command on counter.
+         */
+        abstract Runnable bind(AtomicLongCounter counter);
+    }
+
+    /**
+     * @class Result
+     *
+     * @brief The outcome of measuring one combination.
+     */
+    static class Result {
+        final int mThreads;
+        final long mOperations;
+        final long mElapsedNanos;
+
+        /**
+         * The latencies of the sampled operations, in nanoseconds,
+         * sorted in ascending order.
+         */
+        final long[] mLatencies;
+
+        Result(int threads, long operations, long elapsedNanos, long[] latencies) {
+            mThreads = threads;
+            mOperations = operations;
+            mElapsedNanos = elapsedNanos;
+            mLatencies = latencies;
+        }
+
+        /**
+         * Returns the number of operations per second.
+         */
+        double opsPerSecond() {
+            return mOperations * (double) TimeUnit.SECONDS.toNanos(1)
+                / mElapsedNanos;
+        }
+
+        /**
+         * Returns the mean time each Thread spent per operation, in
+         * nanoseconds.
+         */
+        double meanNanos() {
+            return mElapsedNanos * (double) mThreads / mOperations;
+        }
+
+        /**
+         * Returns the sampled latency, in nanoseconds, that the given
+         * fraction of the samples didn't exceed.  The samples include
+         * the cost of reading the clock, so they're best compared
+         * with each other rather than taken as absolute times.
+         */
+        long percentile(double fraction) {
+            if (mLatencies.length == 0)
+                return 0;
+            int index = (int) Math.ceil(fraction * mLatencies.length) - 1;
+            return mLatencies[Math.max(0, Math.min(index, mLatencies.length - 1))];
+        }
+    }
+
+    /**
+     * Main entry point that runs every combination.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("ratio")) {
+            printReadWriteRatios(args.length > 1
+                                 ? Integer.parseInt(args[1])
+                                 : DEFAULT_MILLIS);
+            return;
+        } else if (args.length > 0 && args[0].equals("suite")) {
+            boolean passed =
+                printSuite(args.length > 1
+                           ? Integer.parseInt(args[1])
+                           : DEFAULT_MILLIS,
+                           args.length > 2
+                           ? readBaseline(args[2])
+                           : null);
+            if (!passed)
+                System.exit(1);
+            return;
+        }
+
+        int millis = args.length > 0
+            ? Integer.parseInt(args[0])
+            : DEFAULT_MILLIS;
+
+        System.out.println(String.format("%-10s %7s %14s %14s",
+                                         "counter", "threads",
+                                         "ops/sec", "ops/sec/thread"));
+
+        for (SimpleAtomicLongType type : SimpleAtomicLongType.values()) {
+            // Warm up so the JIT compiler has finished with the
+            // counter before it's measured.
+            measure(type.newCounter(0),
+                    0,
+                    CONTENTION_THREADS[CONTENTION_THREADS.length - 1],
+                    millis);
+
+            for (int threads : CONTENTION_THREADS) {
+                double opsPerSecond =
+                    measure(type.newCounter(0), 0, threads, millis);
+                System.out.println(String.format("%-10s %7d %14.0f %14.0f",
+                                                 type,
+                                                 threads,
+                                                 opsPerSecond,
+                                                 opsPerSecond / threads));
+            }
+        }
+    }
+
+    /**
+     * Prints the throughput of every SimpleAtomicLongType for each
+     * mix of reads and increments in READ_PERCENTAGES.
+     */
+    static void printReadWriteRatios(int millis) throws Exception {
+        System.out.println(String.format("%-10s %7s %7s %14s",
+                                         "counter", "threads",
+                                         "reads", "ops/sec"));
+
+        for (SimpleAtomicLongType type : SimpleAtomicLongType.values()) {
+            measure(type.newCounter(0), 50, RATIO_THREADS, millis);
+
+            for (int readPercent : READ_PERCENTAGES) {
+                double opsPerSecond = measure(type.newCounter(0),
+                                              readPercent,
+                                              RATIO_THREADS,
+                                              millis);
+                System.out.println(String.format("%-10s %7d %6d%% %14.0f",
+                                                 type,
+                                                 RATIO_THREADS,
+                                                 readPercent,
+                                                 opsPerSecond));
+            }
+        }
+    }
+
+    /**
+     * Prints the throughput and latency of every combination of
+     * SimpleAtomicLongType, lock fairness, workload and number of
+     * Threads, comparing the throughput with baseline if it isn't
+     * null.
+     *
+     * @returns false if any combination regressed
+     */
+    static boolean printSuite(int millis, Map<String, Double> baseline)
+        throws Exception {
+        System.out.println(String.format("%-8s %-6s %-22s %7s %14s %9s %8s %8s %9s",
+                                         "counter", "lock", "workload",
+                                         "threads", "ops/sec", "mean(ns)",
+                                         "p50(ns)", "p99(ns)", "p99.9(ns)"));
+
+        boolean passed = true;
+        for (SimpleAtomicLongType type : SimpleAtomicLongType.values()) {
+            boolean[] fairnesses = type.isLockBased()
+                ? new boolean[] { false, true }
+                : new boolean[] { false };
+
+            for (boolean fair : fairnesses) {
+                String lock = !type.isLockBased()
+                    ? "-"
+                    : fair ? "fair" : "unfair";
+
+                // Warm up so the JIT compiler has finished with the
+                // counter before it's measured.
+                AtomicLongCounter warmUp = type.newCounter(0, fair);
+                measure(Command.GET.bind(warmUp),
+                        Command.INCREMENT_GET.bind(warmUp),
+                        50,
+                        SUITE_THREADS[SUITE_THREADS.length - 1],
+                        millis);
+
+                for (int threads : SUITE_THREADS) {
+                    for (Command command : Command.values()) {
+                        AtomicLongCounter counter = type.newCounter(0, fair);
+                        Runnable runnable = command.bind(counter);
+                        passed &= printSuiteLine(type, lock, command.mName, threads,
+                                                 measure(runnable, runnable, 0,
+                                                         threads, millis),
+                                                 baseline);
+                    }
+
+                    for (int readPercent : SUITE_READ_PERCENTAGES) {
+                        AtomicLongCounter counter = type.newCounter(0, fair);
+                        String workload = Command.GET.mName + ":"
+                            + Command.INCREMENT_GET.mName + "="
+                            + readPercent + ":" + (100 - readPercent);
+                        passed &= printSuiteLine(type, lock, workload, threads,
+                                                 measure(Command.GET.bind(counter),
+                                                         Command.INCREMENT_GET.bind(counter),
+                                                         readPercent,
+                                                         threads,
+                                                         millis),
+                                                 baseline);
+                    }
+                }
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Prints one line of the "suite" form, marking it if its
+     * throughput regressed from baseline.
+     *
+     * @returns false if it regressed
+     */
+    static boolean printSuiteLine(SimpleAtomicLongType type,
+                                  String lock,
+                                  String workload,
+                                  int threads,
+                                  Result result,
+                                  Map<String, Double> baseline) {
+        String line = String.format("%-8s %-6s %-22s %7d %14.0f %9.1f %8d %8d %9d",
+                                    type,
+                                    lock,
+                                    workload,
+                                    threads,
+                                    result.opsPerSecond(),
+                                    result.meanNanos(),
+                                    result.percentile(0.5),
+                                    result.percentile(0.99),
+                                    result.percentile(0.999));
+
+        Double expected = baseline == null
+            ? null
+            : baseline.get(suiteKey(type.toString(), lock, workload, threads));
+        if (expected != null
+            && result.opsPerSecond() < expected * (1 - REGRESSION_TOLERANCE)) {
+            System.out.println(line + String.format("  REGRESSION (baseline %.0f)",
+                                                    expected));
+            return false;
+        }
+        System.out.println(line);
+        return true;
+    }
+
+    /**
+     * Returns the key that identifies a combination in a baseline.
+     */
+    static String suiteKey(String type, String lock, String workload, int threads) {
+        return type + " " + lock + " " + workload + " " + threads;
+    }
+
+    /**
+     * Reads the throughput of each combination from the saved output
+     * of an earlier run of the "suite" form, ignoring any lines that
+     * aren't results.
+     */
+    static Map<String, Double> readBaseline(String fileName) throws Exception {
+        Map<String, Double> baseline = new HashMap<String, Double>();
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 5)
+                    continue;
+                try {
+                    baseline.put(suiteKey(fields[0],
+                                          fields[1],
+                                          fields[2],
+                                          Integer.parseInt(fields[3])),
+                                 Double.valueOf(fields[4]));
+                } catch (NumberFormatException e) {
+                    // The header, or something else that isn't a result.
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return baseline;
+    }
+
+    /**
+     * Returns a command that increments counter.  A striped counter
+     * is incremented via increment() rather than incrementAndGet(),
+     * since summing its cells on every update would defeat the point
+     * of striping them.
+     */
+    static Runnable incrementCommand(final AtomicLongCounter counter) {
+        if (counter instanceof StripedSimpleAtomicLong) {
+            final StripedSimpleAtomicLong striped =
+                (StripedSimpleAtomicLong) counter;
+            return new Runnable() { public void run() { striped.increment(); } };
+        }
+        return new Runnable() { public void run() { counter.incrementAndGet(); } };
+    }
+
+    /**
+     * Has the given number of Threads operate on counter for millis
+     * milliseconds.  readPercent out of every hundred operations are
+     * get()s and the rest are increments.
+     *
+     * @returns the number of operations per second
+     */
+    static double measure(AtomicLongCounter counter,
+                          int readPercent,
+                          int threads,
+                          long millis) throws Exception {
+        return measure(Command.GET.bind(counter),
+                       incrementCommand(counter),
+                       readPercent,
+                       threads,
+                       millis).opsPerSecond();
+    }
+
+    /**
+     * Has the given number of Threads run commands for millis
+     * milliseconds.  readPercent out of every hundred commands are
+     * reader and the rest are writer.
+     */
+    static Result measure(final Runnable reader,
+                          final Runnable writer,
+                          final int readPercent,
+                          int threads,
+                          long millis) throws Exception {
+        final CyclicBarrier startBarrier = new CyclicBarrier(threads + 1);
+        final CountDownLatch stopLatch = new CountDownLatch(threads);
+        final long[] operations = new long[threads];
+        final long[] starts = new long[threads];
+        final long[] ends = new long[threads];
+        final long[][] samples = new long[threads][];
+        mStopped = false;
+
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            new Thread(new Runnable()
+                { public void run() {
+                    long[] latencies = new long[MAX_SAMPLES];
+                    int sampled = 0;
+                    try
+                        {
+                            startBarrier.await();
+                            starts[index] = System.nanoTime();
+                            long count = 0;
+                            while (!mStopped) {
+                                // Time one operation per batch, moving
+                                // through the positions so reads and
+                                // writes are sampled in proportion.
+                                int sample = (int) (count / OPERATIONS_PER_CHECK % 100);
+                                for (int j = 0; j < OPERATIONS_PER_CHECK; j++) {
+                                    long before = j == sample ? System.nanoTime() : 0;
+                                    if (j % 100 < readPercent)
+                                        reader.run();
+                                    else
+                                        writer.run();
+                                    if (j == sample && sampled < latencies.length)
+                                        latencies[sampled++] = System.nanoTime() - before;
+                                }
+                                count += OPERATIONS_PER_CHECK;
+                            }
+                            ends[index] = System.nanoTime();
+                            operations[index] = count;
+                        } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        samples[index] = Arrays.copyOf(latencies, sampled);
+                        stopLatch.countDown();
+                    }
+                }}).start();
+        }
+
+        startBarrier.await();
+        Thread.sleep(millis);
+        mStopped = true;
+        stopLatch.await();
+
+        // Time the run from the first Thread to start to the last one
+        // to finish, rather than on this Thread, which may not be
+        // scheduled until well after the others when there are more
+        // Threads than processors.
+        long start = Long.MAX_VALUE;
+        long end = Long.MIN_VALUE;
+        long total = 0;
+        int sampleCount = 0;
+        for (int i = 0; i < threads; i++) {
+            start = Math.min(start, starts[i]);
+            end = Math.max(end, ends[i]);
+            total += operations[i];
+            sampleCount += samples[i].length;
+        }
+
+        // Merge every Thread's samples to compute the percentiles.
+        long[] latencies = new long[sampleCount];
+        int offset = 0;
+        for (long[] threadSamples : samples) {
+            System.arraycopy(threadSamples, 0, latencies, offset, threadSamples.length);
+            offset += threadSamples.length;
+        }
+        Arrays.sort(latencies);
+
+        return new Result(threads, total, end - start, latencies);
+    }
+}
@@ -45,7 +45,7 @@ public class SimpleAtomicLongMultithreadedTest {
      * defined as "volatile" to ensure proper visibility of its fields
      * after construction.
      */
-    static volatile SimpleAtomicLong mCounter;
+    static volatile AtomicLongCounter mCounter;
     
     /**
      * Runnable commands that use the mCounter methods
@@ -138,10 +138,19 @@ public class SimpleAtomicLongMultithreadedTest {
      */
     @BeforeClass
     public static void setUpBeforeClass() throws Exception {
+        setUpCounter(SimpleAtomicLongType.RW_LOCK);
+    }
+
+    /**
+     * Creates a static instance of the given type of SimpleAtomicLong
+     * and all runnable commands, so subclasses can run the same tests
+     * against another implementation.
+     */
+    static void setUpCounter(SimpleAtomicLongType type) {
         /**
          * Instance of SimpleAtomicLong class
          */
-        mCounter = new SimpleAtomicLong(INITIAL_VALUE);
+        mCounter = type.newCounter(INITIAL_VALUE);
 		
         /**
          * Runnable commands that execute get(), incrementAndGet(),
@@ -268,7 +277,7 @@ public class SimpleAtomicLongMultithreadedTest {
      * concurrency.
      * @param command
      */
-    private void runThreads(Runnable command) {
+    void runThreads(Runnable command) {
         mStartBarrier = new CyclicBarrier(numThreads);
         mStopLatch = new CountDownLatch(numThreads);
         try { 
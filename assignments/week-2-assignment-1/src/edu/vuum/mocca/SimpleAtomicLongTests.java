@@ -7,7 +7,12 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({ SimpleAtomicLongMultithreadedTest.class,
-		SimpleAtomicLongSingleThreadedTest.class })
+		CasSimpleAtomicLongMultithreadedTest.class,
+		StripedSimpleAtomicLongMultithreadedTest.class,
+		StampedSimpleAtomicLongMultithreadedTest.class,
+		SimpleAtomicLongSingleThreadedTest.class,
+		CasSimpleAtomicLongSingleThreadedTest.class,
+		SimpleAtomicLongArrayTest.class })
 /**
  * @class SimpleAtomicLongTest
  *
@@ -0,0 +1,77 @@
+package edu.vuum.mocca;
+
+/**
+ * @class SimpleAtomicLongType
+ *
+ * @brief The implementations of SimpleAtomicLong that the tests can
+ *        be run against.
+ */
+enum SimpleAtomicLongType
+{
+    /**
+     * Serializes every access with a ReentrantReadWriteLock.
+     */
+    RW_LOCK {
+        AtomicLongCounter newCounter(long initialValue, boolean fair) {
+            return new SimpleAtomicLong(initialValue, fair);
+        }
+
+        boolean isLockBased() {
+            return true;
+        }
+    },
+
+    /**
+     * Updates a volatile long via compare-and-swap.
+     */
+    CAS {
+        AtomicLongCounter newCounter(long initialValue, boolean fair) {
+            return new CasSimpleAtomicLong(initialValue);
+        }
+    },
+
+    /**
+     * Reads optimistically via a StampedLock and only locks to write,
+     * or when a read conflicts with a write.
+     */
+    STAMPED {
+        AtomicLongCounter newCounter(long initialValue, boolean fair) {
+            return new StampedSimpleAtomicLong(initialValue);
+        }
+    },
+
+    /**
+     * Spreads contended updates over padded cells that get() sums.
+     * Its updates are atomic but the values they return aren't, so
+     * it only suits workloads that check the final value.
+     */
+    STRIPED {
+        AtomicLongCounter newCounter(long initialValue, boolean fair) {
+            return new StripedSimpleAtomicLong(initialValue);
+        }
+    };
+
+    /**
+     * Creates a new counter of this type with the given initial
+     * value.
+     */
+    AtomicLongCounter newCounter(long initialValue) {
+        return newCounter(initialValue, false);
+    }
+
+    /**
+     * Creates a new counter of this type with the given initial
+     * value.  If fair is true and the counter has a lock that can be
+     * made fair, the lock is acquired in the order Threads asked for
+     * it, otherwise fair is ignored.
+     */
+    abstract AtomicLongCounter newCounter(long initialValue, boolean fair);
+
+    /**
+     * Returns true if the counter has a lock that can be made fair,
+     * and so whether it's fair makes a difference.
+     */
+    boolean isLockBased() {
+        return false;
+    }
+}
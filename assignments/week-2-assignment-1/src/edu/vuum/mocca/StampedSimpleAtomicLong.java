@@ -0,0 +1,126 @@
+package edu.vuum.mocca;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * @class StampedSimpleAtomicLong
+ *
+ * @brief This class implements the same subset of the
+ *        java.util.concurrent.atomic.AtomicLong class as
+ *        SimpleAtomicLong, for workloads that read the value far
+ *        more often than they change it.  Acquiring even the read
+ *        lock of a ReentrantReadWriteLock writes to the lock's
+ *        state, so readers on different cores keep stealing its
+ *        cache line from each other.  Here the value is guarded by
+ *        a StampedLock instead, and get() reads it optimistically:
+ *        it takes a stamp with tryOptimisticRead(), reads the value,
+ *        and only if validate() says a writer got in between does it
+ *        fall back to taking the read lock.  So a reader writes
+ *        nothing unless it conflicts with a writer.
+ *
+ *        Writers take the write lock, which invalidates the stamps
+ *        of any optimistic reads in progress.  A StampedLock can't
+ *        be made fair, so unlike SimpleAtomicLong there's no fair
+ *        constructor.
+ */
+class StampedSimpleAtomicLong implements AtomicLongCounter
+{
+    /**
+     * The value that's manipulated atomically via the methods.  It's
+     * a plain long, since validate() orders the optimistic read of
+     * it and the locks order every other access.
+     */
+    private long mValue;
+
+    /**
+     * The StampedLock that serializes writers, and that readers fall
+     * back on when an optimistic read fails.
+     */
+    private final StampedLock mLock = new StampedLock();
+
+    /**
+     * Creates a new StampedSimpleAtomicLong with the given initial
+     * value.
+     */
+    public StampedSimpleAtomicLong(long initialValue)
+    {
+        mValue = initialValue;
+    }
+
+    /**
+     * @brief Gets the current value, without acquiring the lock
+     *        unless a writer is changing the value at the same time.
+     *
+     * @returns The current value
+     */
+    public long get()
+    {
+        long stamp = mLock.tryOptimisticRead();
+        long value = mValue;
+        if (mLock.validate(stamp))
+            return value;
+
+        stamp = mLock.readLock();
+        try {
+            return mValue;
+        } finally {
+            mLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @brief Atomically decrements by one the current value
+     *
+     * @returns the updated value
+     */
+    public long decrementAndGet()
+    {
+        return add(-1);
+    }
+
+    /**
+     * @brief Atomically increments by one the current value
+     *
+     * @returns the previous value
+     */
+    public long getAndIncrement()
+    {
+        return add(1) - 1;
+    }
+
+    /**
+     * @brief Atomically decrements by one the current value
+     *
+     * @returns the previous value
+     */
+    public long getAndDecrement()
+    {
+        return add(-1) + 1;
+    }
+
+    /**
+     * @brief Atomically increments by one the current value
+     *
+     * @returns the updated value
+     */
+    public long incrementAndGet()
+    {
+        return add(1);
+    }
+
+    /**
+     * Adds delta to the value under the write lock, invalidating any
+     * optimistic reads in progress.
+     *
+     * @returns the updated value
+     */
+    private long add(long delta)
+    {
+        long stamp = mLock.writeLock();
+        try {
+            return mValue += delta;
+        } finally {
+            mLock.unlockWrite(stamp);
+        }
+    }
+}
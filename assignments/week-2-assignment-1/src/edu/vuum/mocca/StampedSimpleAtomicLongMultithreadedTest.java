@@ -0,0 +1,21 @@
+package edu.vuum.mocca;
+
+import org.junit.BeforeClass;
+
+/**
+ * @class StampedSimpleAtomicLongMultithreadedTest
+ *
+ * @brief Runs the SimpleAtomicLongMultithreadedTest workload against
+ *        the optimistic-read StampedSimpleAtomicLong.
+ */
+public class StampedSimpleAtomicLongMultithreadedTest
+    extends SimpleAtomicLongMultithreadedTest {
+    /**
+     * Runs prior to all tests.  Hides the superclass method of the
+     * same name, so the stamped counter is the only one created.
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        setUpCounter(SimpleAtomicLongType.STAMPED);
+    }
+}
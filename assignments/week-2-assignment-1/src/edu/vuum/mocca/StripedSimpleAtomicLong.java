@@ -0,0 +1,346 @@
+package edu.vuum.mocca;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * @class StripedSimpleAtomicLong
+ *
+ * @brief This class implements a counter for write-heavy workloads,
+ *        in the style of java.util.concurrent.atomic.LongAdder.
+ *        When one value is updated by many Threads, even a
+ *        compare-and-swap stops scaling because every core fights
+ *        over the same cache line.  So while there's no contention
+ *        updates go to a single base value, but once a
+ *        compare-and-swap on it fails the counter spreads the
+ *        updates over an array of cells, each padded onto a cache
+ *        line of its own.  Each Thread hashes to one cell, and gets
+ *        a new hash whenever it collides with another Thread, so
+ *        concurrent updaters soon end up on different cells.  The
+ *        value is the sum of the base and every cell.
+ *
+ *        Use increment(), decrement() and add() where the result
+ *        isn't needed, which is what makes the counter scale.  The
+ *        methods that return a value do the update and then read
+ *        the sum, which isn't atomic: if other Threads are updating
+ *        the counter at the same time the value returned may
+ *        include their updates too.  It's only exact once they've
+ *        finished, which is all that a statistics counter needs.
+ */
+class StripedSimpleAtomicLong implements AtomicLongCounter
+{
+    /**
+     * The longs that Cell lays out before its value; see Cell.
+     */
+    static abstract class CellLeftPadding {
+        protected long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    /**
+     * Cell's value, declared between its two runs of padding; see
+     * Cell.
+     */
+    static abstract class CellValue extends CellLeftPadding {
+        protected volatile long mValue;
+    }
+
+    /**
+     * @class Cell
+     *
+     * @brief One stripe of the counter.  Superclass fields are laid
+     *        out first, so mValue ends up with the seven longs of
+     *        CellLeftPadding before it and the seven declared here
+     *        after it.  Cells are allocated one at a time as Threads
+     *        collide and often end up next to each other on the
+     *        heap, and those 56 bytes either side keep any two Cells'
+     *        values on different cache lines.
+     */
+    static final class Cell extends CellValue {
+        protected long p9, p10, p11, p12, p13, p14, p15;
+
+        /**
+         * Updater used to perform atomic operations on mValue.
+         */
+        private static final AtomicLongFieldUpdater<CellValue> sUpdater =
+            AtomicLongFieldUpdater.newUpdater(CellValue.class, "mValue");
+
+        Cell(long initialValue) {
+            mValue = initialValue;
+        }
+
+        /**
+         * Atomically sets the value to update if it's currently
+         * expect.
+         */
+        boolean compareAndSet(long expect, long update) {
+            return sUpdater.compareAndSet(this, expect, update);
+        }
+    }
+
+    /**
+     * The most cells there can be.  There's no point having more
+     * cells than processors, since that's as many Threads as can
+     * update them at once.
+     */
+    private static final int MAX_CELLS;
+
+    static {
+        int cells = 1;
+        while (cells < Runtime.getRuntime().availableProcessors())
+            cells <<= 1;
+        MAX_CELLS = cells;
+    }
+
+    /**
+     * Seeds the hash of each Thread.
+     */
+    private static final Random sSeeds = new Random();
+
+    /**
+     * The hash that picks each Thread's cell.  It's kept in an array
+     * so that it can be changed without another ThreadLocal.set().
+     */
+    private static final ThreadLocal<int[]> sThreadHash =
+        new ThreadLocal<int[]>() {
+            protected int[] initialValue() {
+                // The xorshift in addContended() needs a non-zero hash.
+                int hash = sSeeds.nextInt();
+                return new int[] { hash == 0 ? 1 : hash };
+            }
+        };
+
+    /**
+     * Updater used to perform atomic operations on mBase.
+     */
+    private static final AtomicLongFieldUpdater<StripedSimpleAtomicLong> sBaseUpdater =
+        AtomicLongFieldUpdater.newUpdater(StripedSimpleAtomicLong.class, "mBase");
+
+    /**
+     * Updater used to acquire mCellsBusy.
+     */
+    private static final AtomicIntegerFieldUpdater<StripedSimpleAtomicLong> sBusyUpdater =
+        AtomicIntegerFieldUpdater.newUpdater(StripedSimpleAtomicLong.class, "mCellsBusy");
+
+    /**
+     * The value that's updated until there's contention, and the
+     * fallback while the cells are being changed.
+     */
+    private volatile long mBase;
+
+    /**
+     * The cells, which are created the first time there's contention
+     * and doubled in size while Threads keep colliding, up to
+     * MAX_CELLS.  The length is always a power of two.
+     */
+    private volatile Cell[] mCells;
+
+    /**
+     * A spin lock, held while mCells is created, grown or has a cell
+     * added to it.
+     */
+    private volatile int mCellsBusy;
+
+    /**
+     * Creates a new StripedSimpleAtomicLong with the given initial
+     * value.
+     */
+    public StripedSimpleAtomicLong(long initialValue)
+    {
+        mBase = initialValue;
+    }
+
+    /**
+     * @brief Adds x to the current value.
+     */
+    public void add(long x)
+    {
+        Cell[] cells = mCells;
+        if (cells == null) {
+            long base = mBase;
+            if (sBaseUpdater.compareAndSet(this, base, base + x))
+                return;
+        } else {
+            Cell cell = cells[sThreadHash.get()[0] & (cells.length - 1)];
+            if (cell != null) {
+                long value = cell.mValue;
+                if (cell.compareAndSet(value, value + x))
+                    return;
+            }
+        }
+        addContended(x);
+    }
+
+    /**
+     * @brief Increments the current value by one.
+     */
+    public void increment()
+    {
+        add(1);
+    }
+
+    /**
+     * @brief Decrements the current value by one.
+     */
+    public void decrement()
+    {
+        add(-1);
+    }
+
+    /**
+     * @brief Gets the current value, which is the sum of the base
+     *        and every cell.  It isn't a snapshot, so updates made
+     *        while it's being summed may or may not be included.
+     *
+     * @returns The current value
+     */
+    public long get()
+    {
+        long sum = mBase;
+        Cell[] cells = mCells;
+        if (cells != null)
+            for (Cell cell : cells)
+                if (cell != null)
+                    sum += cell.mValue;
+        return sum;
+    }
+
+    /**
+     * @brief Decrements by one the current value
+     *
+     * @returns the updated value, which may include concurrent updates
+     */
+    public long decrementAndGet()
+    {
+        add(-1);
+        return get();
+    }
+
+    /**
+     * @brief Increments by one the current value
+     *
+     * @returns the previous value, which may include concurrent updates
+     */
+    public long getAndIncrement()
+    {
+        add(1);
+        return get() - 1;
+    }
+
+    /**
+     * @brief Decrements by one the current value
+     *
+     * @returns the previous value, which may include concurrent updates
+     */
+    public long getAndDecrement()
+    {
+        add(-1);
+        return get() + 1;
+    }
+
+    /**
+     * @brief Increments by one the current value
+     *
+     * @returns the updated value, which may include concurrent updates
+     */
+    public long incrementAndGet()
+    {
+        add(1);
+        return get();
+    }
+
+    /**
+     * Returns the number of cells, which is zero until there's been
+     * contention.
+     */
+    int cells()
+    {
+        Cell[] cells = mCells;
+        return cells == null ? 0 : cells.length;
+    }
+
+    /**
+     * Adds x after the fast path in add() has failed, creating or
+     * growing the cells, adding a cell, or moving the calling Thread
+     * to another cell as needed.
+     */
+    private void addContended(long x)
+    {
+        int[] threadHash = sThreadHash.get();
+        int hash = threadHash[0];
+        boolean collided = false;
+        for (;;) {
+            Cell[] cells = mCells;
+            if (cells == null) {
+                // Create the cells, with one for this Thread.
+                if (mCellsBusy == 0 && sBusyUpdater.compareAndSet(this, 0, 1)) {
+                    try {
+                        if (mCells == null) {
+                            cells = new Cell[2];
+                            cells[hash & 1] = new Cell(x);
+                            mCells = cells;
+                            return;
+                        }
+                    } finally {
+                        mCellsBusy = 0;
+                    }
+                    continue;
+                }
+                // Someone else is creating them, so try the base.
+                long base = mBase;
+                if (sBaseUpdater.compareAndSet(this, base, base + x))
+                    return;
+                continue;
+            }
+
+            int index = hash & (cells.length - 1);
+            Cell cell = cells[index];
+            if (cell == null) {
+                // Add a cell for this Thread.
+                if (mCellsBusy == 0 && sBusyUpdater.compareAndSet(this, 0, 1)) {
+                    try {
+                        if (mCells == cells && cells[index] == null) {
+                            cells[index] = new Cell(x);
+                            return;
+                        }
+                    } finally {
+                        mCellsBusy = 0;
+                    }
+                    continue;
+                }
+                collided = false;
+            } else {
+                long value = cell.mValue;
+                if (cell.compareAndSet(value, value + x))
+                    return;
+                if (cells.length >= MAX_CELLS || mCells != cells)
+                    // Can't grow, so only move to another cell.
+                    collided = false;
+                else if (!collided)
+                    // Move to another cell before growing, since
+                    // the collision may have been a one-off.
+                    collided = true;
+                else if (mCellsBusy == 0 && sBusyUpdater.compareAndSet(this, 0, 1)) {
+                    // Collided again, so double the cells.
+                    try {
+                        if (mCells == cells) {
+                            Cell[] grown = new Cell[cells.length << 1];
+                            System.arraycopy(cells, 0, grown, 0, cells.length);
+                            mCells = grown;
+                        }
+                    } finally {
+                        mCellsBusy = 0;
+                    }
+                    collided = false;
+                    continue;
+                }
+            }
+
+            // Move to another cell via an xorshift step.
+            hash ^= hash << 13;
+            hash ^= hash >>> 17;
+            hash ^= hash << 5;
+            threadHash[0] = hash;
+        }
+    }
+}
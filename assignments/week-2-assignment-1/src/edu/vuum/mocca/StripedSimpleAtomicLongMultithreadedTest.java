@@ -0,0 +1,24 @@
+package edu.vuum.mocca;
+
+import org.junit.BeforeClass;
+
+/**
+ * @class StripedSimpleAtomicLongMultithreadedTest
+ *
+ * @brief Runs the SimpleAtomicLongMultithreadedTest workload against
+ *        the striped StripedSimpleAtomicLong.  That workload only
+ *        checks the value once its Threads have finished, so it
+ *        doesn't depend on the values the updates return, which
+ *        aren't atomic for this counter.
+ */
+public class StripedSimpleAtomicLongMultithreadedTest
+    extends SimpleAtomicLongMultithreadedTest {
+    /**
+     * Runs prior to all tests.  Hides the superclass method of the
+     * same name, so the striped counter is the only one created.
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        setUpCounter(SimpleAtomicLongType.STRIPED);
+    }
+}
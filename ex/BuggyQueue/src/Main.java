@@ -1,9 +1,26 @@
 import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.ArrayList;
 import java.util.List;
 
 public class Main
 { 
+   /* 
+    * @class StringQueue
+    *
+    * @brief The operations the producer and consumer threads use, so
+    *        they can run against either queue below.
+    */
+    interface StringQueue
+    {
+        // Insert msg at the tail of the queue.
+        void put(String msg) throws InterruptedException;
+
+        // Remove msg from the head of the queue.
+        String take() throws InterruptedException;
+    }
+
    /* 
     * @class BuggyQueue
     *
@@ -11,7 +28,7 @@ public class Main
     *        multiple threads since it's not synchronized properly.
     *
     */
-    static class BuggyQueue
+    static class BuggyQueue implements StringQueue
     {
         // Resizable-array implementation.
         private List<String> mQ = new ArrayList<String>();
@@ -23,13 +40,73 @@ public class Main
         public String take(){ return mQ.remove(0); }
     }
 
+   /* 
+    * @class CircularQueue
+    *
+    * @brief This class works properly when accessed via multiple
+    *        threads.  It keeps its elements in a fixed array used as
+    *        a circular buffer, so put() and take() just move an
+    *        index rather than shifting elements like remove(0), and
+    *        guards the buffer with a lock whose notFull and notEmpty
+    *        conditions make put() and take() wait when the queue is
+    *        full or empty.
+    */
+    static class CircularQueue implements StringQueue
+    {
+        private final String[] mItems;
+        private int mTakeIndex = 0;
+        private int mPutIndex = 0;
+        private int mCount = 0;
+        private final ReentrantLock mLock = new ReentrantLock();
+        private final Condition mNotFull = mLock.newCondition();
+        private final Condition mNotEmpty = mLock.newCondition();
+
+        public CircularQueue(int capacity) { mItems = new String[capacity]; }
+
+        // Insert msg at the tail of the queue, waiting while it's full.
+        public void put(String msg) throws InterruptedException {
+            mLock.lockInterruptibly();
+            try {
+                while (mCount == mItems.length)
+                    mNotFull.await();
+                mItems[mPutIndex] = msg;
+                mPutIndex = (mPutIndex + 1) % mItems.length;
+                mCount++;
+                mNotEmpty.signal();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        // Remove msg from the head of the queue, waiting while it's empty.
+        public String take() throws InterruptedException {
+            mLock.lockInterruptibly();
+            try {
+                while (mCount == 0)
+                    mNotEmpty.await();
+                String msg = mItems[mTakeIndex];
+                mItems[mTakeIndex] = null;
+                mTakeIndex = (mTakeIndex + 1) % mItems.length;
+                mCount--;
+                mNotFull.signal();
+                return msg;
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
     static int mMaxIterations = 100;
 
     /*
-     * Main entry point into the BuggyQueue class.
+     * Main entry point into the BuggyQueue class.  Run it with the
+     * argument "correct" to use a CircularQueue instead.
      */
     public static void main(String argv[]) {
-        final BuggyQueue buggyQueue = new BuggyQueue();
+        final StringQueue queue =
+            argv.length > 0 && argv[0].equals("correct")
+            ? new CircularQueue(10)
+            : new BuggyQueue();
 
         /* 
          * Create a producer thread.
@@ -37,8 +114,10 @@ public class Main
         Thread producer = 
             new Thread(new Runnable(){ 
                     public void run(){ 
-                        for(int i = 0; i < mMaxIterations; i++)
-                            buggyQueue.put(Integer.toString(i)); 
+                        try {
+                            for(int i = 0; i < mMaxIterations; i++)
+                                queue.put(Integer.toString(i)); 
+                        } catch (InterruptedException e) {}
                     }});
         /* 
          * Create a consumer thread.
@@ -46,8 +125,10 @@ public class Main
         Thread consumer =
             new Thread(new Runnable(){
                     public void run(){ 
-                        for(int i = 0; i < mMaxIterations; i++)
-                            System.out.println(buggyQueue.take());
+                        try {
+                            for(int i = 0; i < mMaxIterations; i++)
+                                System.out.println(queue.take());
+                        } catch (InterruptedException e) {}
                     }});
 
         /* 